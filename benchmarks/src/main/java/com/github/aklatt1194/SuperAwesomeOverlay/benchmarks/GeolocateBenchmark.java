@@ -0,0 +1,59 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.GeolocateDatabaseProvider;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.GeolocateDatabaseProvider.GeoIPEntry;
+
+/**
+ * GEOIP lookups of random addresses. Has to be run from the top of the repo,
+ * which is where GeolocateDatabaseProvider looks for the database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeolocateBenchmark {
+    private static final int ADDRESSES = 1024;
+
+    private GeolocateDatabaseProvider geodb;
+    private InetAddress[] addrs;
+    private int next;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        geodb = new GeolocateDatabaseProvider();
+
+        // the addresses come with a hostname, so lookupNode doesn't do a
+        // reverse DNS lookup and we only measure the database
+        Random random = new Random(42);
+        addrs = new InetAddress[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++) {
+            byte[] bytes = new byte[4];
+            random.nextBytes(bytes);
+            addrs[i] = InetAddress.getByAddress("node" + i, bytes);
+        }
+    }
+
+    @Benchmark
+    public GeoIPEntry lookupNode() {
+        next = (next + 1) % ADDRESSES;
+        return geodb.lookupNode(addrs[next]);
+    }
+}
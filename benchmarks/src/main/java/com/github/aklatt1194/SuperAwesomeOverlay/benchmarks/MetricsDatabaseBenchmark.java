@@ -0,0 +1,77 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseProvider;
+
+/**
+ * Inserts (what the testers do after every probe train) and the range
+ * queries behind the metrics pages, against a throwaway database that holds
+ * a day of latency data for one node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsDatabaseBenchmark {
+    private static final String NODE = "10.0.0.1";
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long PERIOD = 60 * 1000; // one sample a minute
+
+    private File file;
+    private MetricsDatabaseProvider db;
+    private long end;
+    private long nextTime;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("overlay-bench", ".db");
+        String path = file.getPath();
+        db = new MetricsDatabaseProvider(path.substring(0, path.length() - ".db".length()));
+
+        end = DAY;
+        for (long time = 0; time < end; time += PERIOD)
+            db.addLatencyData(NODE, time, 10 + time % 7);
+        nextTime = end;
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void insert() {
+        // somewhere else than the rows the queries look at
+        db.addThroughputData(NODE, nextTime++, 1e8);
+    }
+
+    @Benchmark
+    public Map<Long, Double> queryHour() {
+        return db.getLatencyData(NODE, end - HOUR, end);
+    }
+
+    @Benchmark
+    public Map<Long, Double> queryDayBucketed() {
+        return db.getLatencyData(NODE, 0, end, 10 * PERIOD);
+    }
+}
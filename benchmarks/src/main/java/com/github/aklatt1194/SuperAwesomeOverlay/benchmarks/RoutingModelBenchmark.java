@@ -0,0 +1,65 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+
+/**
+ * A full link state round: folding every node's update into the model and
+ * rebuilding the MST, forwarding table and shortest paths from it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingModelBenchmark {
+    @Param({ "10", "100", "1000", "5000" })
+    public int nodes;
+
+    @Param({ "8" })
+    public int degree;
+
+    private OverlayRoutingModel model;
+    private List<TopologyUpdate> updates;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        updates = Topologies.randomOverlay(nodes, degree, 42);
+
+        // node 0's links are the ones we have
+        InetAddress self = Topologies.address(0);
+        model = new OverlayRoutingModel(self);
+        for (InetAddress addr : updates.get(0).metrics.keySet()) {
+            if (!addr.equals(self))
+                model.addNode(addr);
+        }
+
+        // the first round grows the matrix, which later rounds don't have to
+        model.update(updates);
+    }
+
+    @Benchmark
+    public Map<InetAddress, InetAddress> update() {
+        model.update(updates);
+        return model.getForwardingTable();
+    }
+}
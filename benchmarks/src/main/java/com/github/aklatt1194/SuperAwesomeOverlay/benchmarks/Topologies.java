@@ -0,0 +1,68 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+
+/**
+ * Made up overlays for the benchmarks to chew on
+ */
+class Topologies {
+    /**
+     * The address of node i (10.x.y.z)
+     */
+    static InetAddress address(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8),
+                (byte) i });
+    }
+
+    /**
+     * The link state updates of a random connected overlay of n nodes where
+     * every node has about degree links, the way the PeerSelector builds them.
+     * Node 0 is the one doing the routing.
+     */
+    static List<TopologyUpdate> randomOverlay(int n, int degree, long seed)
+            throws UnknownHostException {
+        Random random = new Random(seed);
+
+        List<Map<Integer, Double>> links = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            links.add(new HashMap<Integer, Double>());
+
+        // a random spanning tree so that everyone is reachable, then random
+        // extra links up to the degree
+        for (int i = 1; i < n; i++)
+            link(links, i, random.nextInt(i), random);
+        for (int i = 0; i < n; i++) {
+            while (links.get(i).size() < Math.min(degree, n - 1)) {
+                int j = random.nextInt(n);
+                if (j != i)
+                    link(links, i, j, random);
+            }
+        }
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            TopologyUpdate update = new TopologyUpdate();
+            update.src = address(i);
+            update.metrics.put(update.src, -1.);
+            for (Map.Entry<Integer, Double> entry : links.get(i).entrySet())
+                update.metrics.put(address(entry.getKey()), entry.getValue());
+            updates.add(update);
+        }
+        return updates;
+    }
+
+    // both ends report the same latency (ms) for a link
+    private static void link(List<Map<Integer, Double>> links, int a, int b, Random random) {
+        double latency = 1 + 200 * random.nextDouble();
+        links.get(a).put(b, latency);
+        links.get(b).put(a, latency);
+    }
+}
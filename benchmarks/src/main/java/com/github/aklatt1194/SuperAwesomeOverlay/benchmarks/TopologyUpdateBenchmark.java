@@ -0,0 +1,61 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.benchmarks;
+
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+
+/**
+ * Link state update (de)serialization. Every node does one serialize and one
+ * deserialize per node in the overlay per round.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologyUpdateBenchmark {
+    // how many neighbors the update lists
+    @Param({ "8", "64" })
+    public int degree;
+
+    private TopologyUpdate update;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        Random random = new Random(42);
+
+        update = new TopologyUpdate();
+        update.src = Topologies.address(0);
+        update.metrics.put(update.src, -1.);
+        for (int i = 1; i <= degree; i++)
+            update.metrics.put(Topologies.address(i), 1 + 200 * random.nextDouble());
+
+        serialized = update.serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return update.serialize();
+    }
+
+    @Benchmark
+    public TopologyUpdate deserialize() {
+        return TopologyUpdate.deserialize(serialized);
+    }
+}
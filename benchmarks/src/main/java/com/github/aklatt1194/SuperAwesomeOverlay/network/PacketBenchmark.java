@@ -0,0 +1,59 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packet serialization and parsing, which every packet goes through on its
+ * way onto and off of a link. Lives in the network package so that it can
+ * get at createFromBuffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+    @Param({ "64", "1024", "16384" })
+    public int payloadSize;
+
+    private SimpleDatagramPacket packet;
+    private ByteBuffer raw;
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+
+        packet = new SimpleDatagramPacket(InetAddress.getByName("10.0.0.1"),
+                InetAddress.getByName("10.0.0.2"), 55555, 55555, payload);
+        raw = packet.getRawPacket();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        return packet.getRawPacket();
+    }
+
+    @Benchmark
+    public SimpleDatagramPacket parse() {
+        // duplicate() so that every call parses from the start
+        return SimpleDatagramPacket.createFromBuffer(raw.duplicate());
+    }
+}
@@ -1,2 +0,0 @@
-#!/bin/sh
-iperf -s -p 4545 -D -o scripts/iperf.log
@@ -12,22 +12,46 @@ import com.github.aklatt1194.SuperAwesomeOverlay.models.GeolocateDatabaseProvide
 import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseManager;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseProvider;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.RoutingStateFile;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.RoutingStateFile.Snapshot;
 import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
-import com.github.aklatt1194.SuperAwesomeOverlay.speedtest.IPerfTest;
+import com.github.aklatt1194.SuperAwesomeOverlay.speedtest.TestScheduler;
+import com.github.aklatt1194.SuperAwesomeOverlay.speedtest.ThroughputTester;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.Lifecycle;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.Lifecycle.Stoppable;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
 import com.github.aklatt1194.SuperAwesomeOverlay.views.ChatEndpoint;
 import com.github.aklatt1194.SuperAwesomeOverlay.views.KnownNodesEndpoint;
 import com.github.aklatt1194.SuperAwesomeOverlay.views.MetricsEndpoints;
 import com.github.aklatt1194.SuperAwesomeOverlay.views.NetworkTopologyEndpoint;
+import com.github.aklatt1194.SuperAwesomeOverlay.views.StatsEndpoint;
 import com.github.aklatt1194.SuperAwesomeOverlay.views.WebRoutes;
 
 public class Overlay {
     public static void main(String[] args) throws DeploymentException {
-        MetricsDatabaseManager metricsdb = new MetricsDatabaseProvider(
+        // everything that has to be stopped cleanly is added as it is
+        // started, and stopped the other way around when we are asked to exit
+        Lifecycle lifecycle = new Lifecycle();
+        lifecycle.stopOnExit();
+
+        final MetricsDatabaseManager metricsdb = new MetricsDatabaseProvider(
                 "metrics");
-        GeolocateDatabaseProvider geodb = new GeolocateDatabaseProvider();
+        final GeolocateDatabaseProvider geodb = new GeolocateDatabaseProvider();
+        lifecycle.started("databases", new Stoppable() {
+            @Override
+            public void shutdown() {
+                metricsdb.close();
+                geodb.close();
+            }
+        });
 
-        // create routing table and initialize the network interface
-        OverlayRoutingModel overlayRoutingModel = new OverlayRoutingModel();
+        // create routing table (starting from where we left off, if we were
+        // running not long ago) and initialize the network interface
+        final OverlayRoutingModel overlayRoutingModel = new OverlayRoutingModel();
+        final RoutingStateFile routingState = new RoutingStateFile();
+        Snapshot snapshot = routingState.load(overlayRoutingModel.getSelfAddress());
+        if (snapshot != null)
+            overlayRoutingModel.seed(snapshot.updates);
 
         try {
             NetworkInterface.getInstance().initialize(overlayRoutingModel);
@@ -35,20 +59,59 @@ public class Overlay {
             System.err.println("Unable to initialize network interface");
             System.exit(1);
         }
+        if (snapshot != null) {
+            System.out.println("Reconnecting to " + snapshot.neighbors.size()
+                    + " neighbors from the last run");
+            for (InetAddress addr : snapshot.neighbors)
+                NetworkInterface.getInstance().connectAndAdd(addr);
+        }
+        lifecycle.started("network interface", new Stoppable() {
+            @Override
+            public void shutdown() {
+                NetworkInterface.getInstance().shutdown();
+            }
+        });
 
-        new OverlayRoutingManager(overlayRoutingModel, metricsdb);
+        // keep the number of links we have in check
+        PeerSelector peerSelector = new PeerSelector(overlayRoutingModel, geodb);
+        final OverlayRoutingManager routingManager = new OverlayRoutingManager(
+                overlayRoutingModel, metricsdb, peerSelector);
+        lifecycle.started("routing manager", new Stoppable() {
+            @Override
+            public void shutdown() {
+                routingManager.shutdown();
+            }
+        });
 
-        // web routes and endpoints
+        // saved last thing before the links go down
+        routingState.startSaving(overlayRoutingModel);
+        lifecycle.started("routing state", new Stoppable() {
+            @Override
+            public void shutdown() {
+                routingState.shutdown(overlayRoutingModel);
+            }
+        });
+
+        // web routes and endpoints (Spark can't be stopped, it goes with the
+        // JVM)
         new WebRoutes();
         new KnownNodesEndpoint(geodb, overlayRoutingModel);
         new NetworkTopologyEndpoint(geodb, overlayRoutingModel);
         new MetricsEndpoints(metricsdb, geodb, overlayRoutingModel);
+        new StatsEndpoint(StatsRegistry.getInstance());
 
         // websockets
-        Server server = new Server("localhost", 8025, "/endpoints", null,
+        final Server server = new Server("localhost", 8025, "/endpoints", null,
                 ChatEndpoint.class);
         ChatEndpoint.init();
         server.start();
+        lifecycle.started("chat", new Stoppable() {
+            @Override
+            public void shutdown() {
+                server.stop();
+                ChatEndpoint.shutdown();
+            }
+        });
 
         InetAddress me = overlayRoutingModel.getSelfAddress();
         GeoIPEntry geoEntry = geodb.lookupNode(me);
@@ -57,7 +120,21 @@ public class Overlay {
         // uncomment for extended logging
         // BasicConfigurator.configure();
 
-        new PingTester(overlayRoutingModel, metricsdb);
-        new IPerfTest(overlayRoutingModel, metricsdb);
+        final PingTester pingTester = new PingTester(overlayRoutingModel, metricsdb);
+        lifecycle.started("ping tester", new Stoppable() {
+            @Override
+            public void shutdown() {
+                pingTester.shutdown();
+            }
+        });
+
+        final TestScheduler testScheduler = new TestScheduler(overlayRoutingModel, metricsdb,
+                new ThroughputTester());
+        lifecycle.started("throughput tests", new Stoppable() {
+            @Override
+            public void shutdown() {
+                testScheduler.shutdown();
+            }
+        });
     }
-}
\ No newline at end of file
+}
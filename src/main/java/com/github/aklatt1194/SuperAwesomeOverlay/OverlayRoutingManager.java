@@ -2,11 +2,12 @@ package com.github.aklatt1194.SuperAwesomeOverlay;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -15,10 +16,13 @@ import java.util.Set;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseManager;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModelListener;
-import com.github.aklatt1194.SuperAwesomeOverlay.network.BaseLayerSocket;
 import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.OverlaySocket;
 import com.github.aklatt1194.SuperAwesomeOverlay.network.SimpleDatagramPacket;
 import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Counter;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Histogram;
 
 public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListener {
     public static final int ROUTING_UPDATE_SIZE = 8192;
@@ -28,33 +32,99 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
     public static final long LS_TIMEOUT = 10 * 1000;
     public static final long BOOTUP_TIME = 2 * 1000;
 
-    private BaseLayerSocket socket;
+    // Between rounds we keep an eye on the RTT of our links. If one has moved
+    // far enough from what we last told everyone, on two checks in a row, we
+    // flood our own update on its own (never more often than
+    // MIN_LINK_STATE_PERIOD). That doesn't start a round, everyone else just
+    // folds it into their model.
+    public static final int LINK_CHANGE_PORT = 55557;
+    public static final long RTT_CHECK_PERIOD = 5 * 1000;
+    public static final long MIN_LINK_STATE_PERIOD = 15 * 1000;
+    public static final double RTT_CHANGE_THRESHOLD = 0.25; // fraction of the old value
+    public static final double RTT_CHANGE_MIN = 2; // ms
+
+    // A node that is shutting down floods a LEAVE, so that everyone can drop
+    // it (and route around it) right away instead of finding out a link at a
+    // time. Leaves that show up together are handled as one batch.
+    public static final int LEAVE_PORT = 55556;
+    private static final long LEAVE_BATCH_WAIT = 10; // ms
+
+    private OverlaySocket socket;
+    private OverlaySocket leaveSocket;
+    private OverlaySocket linkChangeSocket;
     private MetricsDatabaseManager db;
     private OverlayRoutingModel model;
+    private PeerSelector peerSelector;
+    private NetworkInterface networkInterface;
     private Set<InetAddress> expected;
+    // Nodes that left since the last round. A round or a LEAVE is folded
+    // into the model with it locked.
+    private Set<InetAddress> leftThisRound;
 
     private volatile long end;
+    private volatile long linkStatePeriod = LINK_STATE_PERIOD;
     private volatile boolean inUpdate;
+    private long lastRound;
+    private long lastAdvertised; // our last update, in a round or on its own
     
     private TopologyUpdate ourUpdate;
+    private volatile Map<InetAddress, Double> advertisedRtt; // what went into ourUpdate
+    private Set<InetAddress> drifting; // links that were off on the last check
+    private volatile int rounds;
+
+    private Counter roundCount;
+    private Counter updatesReceived;
+    private Histogram roundTime;
 
     private Thread managerThread;
+    private volatile boolean running = true;
+
+    public OverlayRoutingManager(OverlayRoutingModel model, MetricsDatabaseManager db,
+            PeerSelector peerSelector) {
+        this(model, db, peerSelector, NetworkInterface.getInstance());
+    }
 
-    public OverlayRoutingManager(OverlayRoutingModel model, MetricsDatabaseManager db) {
+    public OverlayRoutingManager(OverlayRoutingModel model, MetricsDatabaseManager db,
+            PeerSelector peerSelector, NetworkInterface networkInterface) {
         this.db = db;
         this.model = model;
-        this.socket = new BaseLayerSocket();
+        this.peerSelector = peerSelector;
+        this.networkInterface = networkInterface;
+
+        // Link state updates are flooded to the whole overlay, since we only
+        // have links to a few of the nodes
+        this.socket = new OverlaySocket(networkInterface);
+        this.socket.setFlooding(true);
         this.socket.bind(PORT);
 
+        this.leaveSocket = new OverlaySocket(networkInterface);
+        this.leaveSocket.setFlooding(true);
+        this.leaveSocket.bind(LEAVE_PORT);
+
+        this.linkChangeSocket = new OverlaySocket(networkInterface);
+        this.linkChangeSocket.setFlooding(true);
+        this.linkChangeSocket.bind(LINK_CHANGE_PORT);
+
+        StatsRegistry stats = StatsRegistry.getInstance();
+        roundCount = stats.counter("overlay_ls_rounds_total", "Link state rounds");
+        updatesReceived = stats.counter("overlay_ls_updates_received_total",
+                "Link state updates received from other nodes");
+        roundTime = stats.histogram("overlay_ls_round_ms",
+                "Time from the start of a link state round to the model update, in ms");
+
         expected = Collections.synchronizedSet(new HashSet<InetAddress>());
+        leftThisRound = new HashSet<InetAddress>();
+        drifting = new HashSet<InetAddress>();
         inUpdate = false;
         
-        ourUpdate = getMetricsFromDB();
+        refreshOurUpdate();
 
         model.addListener(this);
 
         managerThread = new Thread(this);
         managerThread.start();
+        new Thread(new LeaveListener()).start();
+        new Thread(new LinkChangeListener()).start();
     }
 
     @Override
@@ -67,8 +137,10 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
             Thread.sleep(BOOTUP_TIME);
         } catch (InterruptedException e) {
         }
+        lastRound = System.currentTimeMillis();
+        lastAdvertised = lastRound;
 
-        while (true) {
+        while (running) {
             SimpleDatagramPacket packet = null;
             List<InetAddress> neighbors = null;
             List<TopologyUpdate> received = new LinkedList<>();
@@ -76,38 +148,39 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
             
             // wait until we receive a LS packet
             try {
-                packet = socket.interruptibleReceive(LINK_STATE_PERIOD);
+                packet = waitForRound();
             } catch (InterruptedException e) { }
+            if (!running)
+                break;
             
-            ourUpdate = getMetricsFromDB();
+            refreshOurUpdate();
+            long roundStart = System.currentTimeMillis();
             
             synchronized (this) {
                 inUpdate = true; // flag that we are in an update
                 neighbors = model.getKnownNeighbors();
             }
             
-            TopologyUpdate ourUpdate = getMetricsFromDB();
-            received.add(ourUpdate);
-            
             expected.addAll(neighbors);
-            sendLinkStateUpdate(neighbors, ourUpdate);
+            sendLinkStateUpdate(ourUpdate);
             
             end = System.currentTimeMillis() + LS_TIMEOUT;
 
             while (true) {
                 if (packet != null) {
                     TopologyUpdate receivedUpdate = TopologyUpdate.deserialize(packet.getPayload());
-                    if (!expected.contains(receivedUpdate.src)) {
-                        sendLinkStateUpdate(Arrays.asList(receivedUpdate.src), ourUpdate);
+                    if (receivedUpdate != null) {
+                        updatesReceived.inc();
+                        received.add(receivedUpdate);
+                        expected.remove(receivedUpdate.src);
                     }
-                    
-                    received.add(receivedUpdate);
-                    expected.remove(receivedUpdate.src);
                 }                
                 
                 packet = socket.receive(end - System.currentTimeMillis());
                 
                 synchronized (this) {
+                    if (!running)
+                        return;
                     if (packet == null && System.currentTimeMillis() > end) {
                     	inUpdate = false;
                         break;
@@ -115,19 +188,161 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
                 }
             }
 
-            for (InetAddress addr : expected) {
-                NetworkInterface.getInstance().disconnectFromNode(addr);
+            synchronized (expected) {
+                for (InetAddress addr : expected) {
+                    networkInterface.disconnectFromNode(addr);
+                }
             }
             
-            model.update(received);
+            // our own update goes last, it may have been redone during the
+            // round if we got a new link
+            received.add(ourUpdate);
+            synchronized (leftThisRound) {
+                // an update sent before its source left (since the last
+                // round) mustn't bring it back
+                Iterator<TopologyUpdate> it = received.iterator();
+                while (it.hasNext()) {
+                    if (leftThisRound.contains(it.next().src))
+                        it.remove();
+                }
+                model.update(received);
+                leftThisRound.clear();
+            }
+            lastRound = System.currentTimeMillis();
+            lastAdvertised = lastRound;
+            drifting.clear();
+            rounds++;
+            roundCount.inc();
+            roundTime.record(lastRound - roundStart);
+
+            // now that we have a fresh view of the overlay, see if we have too
+            // few or too many links
+            peerSelector.rebalance();
         }
     }
     
+    /**
+     * Wait for the next round to start: either somebody else's update shows
+     * up (which is returned) or the period is up. If the RTT of one of our
+     * links changes significantly in the meantime, our own update goes out
+     * without waiting for the round.
+     */
+    private SimpleDatagramPacket waitForRound() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long remaining = lastRound + linkStatePeriod - now;
+            if (remaining <= 0)
+                return null;
+
+            SimpleDatagramPacket packet = socket.interruptibleReceive(Math.min(remaining,
+                    RTT_CHECK_PERIOD));
+            if (packet != null)
+                return packet;
+
+            if (linksChanged()
+                    && System.currentTimeMillis() - lastAdvertised >= MIN_LINK_STATE_PERIOD)
+                advertiseLinkChange();
+        }
+    }
+
+    /**
+     * True if the RTT of one of our links has moved far enough from the RTT
+     * we last advertised for it, and was already that far off on the last
+     * check (so a single noisy sample doesn't count)
+     */
+    private boolean linksChanged() {
+        Map<InetAddress, Double> advertised = advertisedRtt;
+        boolean changed = false;
+
+        Iterator<InetAddress> it = drifting.iterator();
+        while (it.hasNext()) {
+            if (!model.isNeighbor(it.next()))
+                it.remove();
+        }
+
+        for (InetAddress addr : model.getKnownNeighbors()) {
+            double rtt = networkInterface.getLinkRtt(addr);
+            Double last = advertised.get(addr);
+            if (rtt < 0 || last == null)
+                continue;
+
+            double change = Math.abs(rtt - last);
+            if (change > RTT_CHANGE_MIN && change > last * RTT_CHANGE_THRESHOLD) {
+                if (!drifting.add(addr))
+                    changed = true;
+            } else {
+                drifting.remove(addr);
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Flood our own update outside of a round, and put it in our own model
+     */
+    private void advertiseLinkChange() {
+        TopologyUpdate upd;
+        synchronized (this) {
+            if (inUpdate)
+                return;
+            upd = refreshOurUpdate();
+        }
+
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(upd.src, null, LINK_CHANGE_PORT,
+                LINK_CHANGE_PORT, upd.serialize());
+        try {
+            linkChangeSocket.send(packet);
+        } catch (IOException e) {
+            System.err.println("DEBUG: Unable to send link change update");
+        }
+
+        model.update(Collections.singletonList(upd));
+        lastAdvertised = System.currentTimeMillis();
+        drifting.clear();
+    }
+
+    /**
+     * Tell the overlay we are leaving and stop taking part in link state
+     * rounds. A round that is under way is dropped, the model keeps whatever
+     * it had. The LEAVE still has to make it out, so the NetworkInterface
+     * should be shut down after this.
+     */
+    public void shutdown() {
+        sendLeave();
+
+        running = false;
+        socket.close();
+        leaveSocket.close();
+        linkChangeSocket.close();
+        managerThread.interrupt();
+        try {
+            managerThread.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Set how long (in ms) we wait for somebody else to start a round before
+     * we start one ourselves
+     */
+    public void setLinkStatePeriod(long linkStatePeriod) {
+        this.linkStatePeriod = linkStatePeriod;
+    }
+
+    /**
+     * How many link state rounds we have been through
+     */
+    public int getRounds() {
+        return rounds;
+    }
+
     @Override
     public void nodeAddCallback(InetAddress addr) {
         synchronized (this) {
             if (inUpdate) {
-                sendLinkStateUpdate(Arrays.asList(addr), ourUpdate);
+                // tell everyone about the new link
+                sendLinkStateUpdate(refreshOurUpdate());
                 expected.add(addr);
                 end = System.currentTimeMillis() + LS_TIMEOUT;
             } else {
@@ -141,28 +356,117 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
         // TODO Do we need to do anything if a node is deleted?
     }
 
+    private void sendLeave() {
+        InetAddress self = model.getSelfAddress();
+        ByteBuffer buf = ByteBuffer.allocate(IPUtils.serializedLength(self));
+        IPUtils.serializeIPAddr(self, buf);
+
+        try {
+            leaveSocket.send(new SimpleDatagramPacket(self, null, LEAVE_PORT, LEAVE_PORT, buf
+                    .array()));
+        } catch (IOException e) {
+            System.err.println("DEBUG: Unable to send leave announcement");
+        }
+    }
+
     /**
-     * Send out a link state update to all of our neighbors and apply it to
-     * ourself
+     * Takes nodes that announce they are leaving out of the model (and out
+     * of the round that is under way, so that we don't go and disconnect
+     * them again)
      */
-    private void sendLinkStateUpdate(List<InetAddress> dests, TopologyUpdate upd) {
-        // Send it to all of our neighbors
-        for (InetAddress dst : dests) {
-            SimpleDatagramPacket packet = new SimpleDatagramPacket(upd.src, dst, PORT, PORT,
-                    upd.serialize());
-            try {
-                socket.send(packet);
-            } catch (IOException e) {
-                // TODO -- not connected to this host
+    class LeaveListener implements Runnable {
+        @Override
+        public void run() {
+            SimpleDatagramPacket packet;
+            while ((packet = leaveSocket.receive()) != null) {
+                // leaves that come in right behind this one go in the same batch
+                List<InetAddress> leaving = new LinkedList<>();
+                do {
+                    InetAddress addr;
+                    try {
+                        addr = IPUtils.deserializeIPAddr(ByteBuffer.wrap(packet.getPayload()));
+                    } catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    if (addr != null && !addr.equals(model.getSelfAddress()))
+                        leaving.add(addr);
+                } while ((packet = leaveSocket.receive(LEAVE_BATCH_WAIT)) != null);
+
+                if (leaving.isEmpty())
+                    continue;
+
+                System.out.println("DEBUG: " + leaving + " left the overlay");
+                synchronized (leftThisRound) {
+                    leftThisRound.addAll(leaving);
+                    expected.removeAll(leaving);
+                    model.removeNodes(leaving);
+                }
             }
         }
     }
 
+    /**
+     * Folds the updates that other nodes send outside of a round, when the
+     * RTT of one of their links changed, into the model
+     */
+    class LinkChangeListener implements Runnable {
+        @Override
+        public void run() {
+            SimpleDatagramPacket packet;
+            while ((packet = linkChangeSocket.receive()) != null) {
+                // updates that come in right behind this one go in the same
+                // batch
+                List<TopologyUpdate> updates = new LinkedList<>();
+                do {
+                    TopologyUpdate upd = TopologyUpdate.deserialize(packet.getPayload());
+                    if (upd != null && !upd.src.equals(model.getSelfAddress()))
+                        updates.add(upd);
+                } while ((packet = linkChangeSocket.receive(LEAVE_BATCH_WAIT)) != null);
+
+                synchronized (leftThisRound) {
+                    // same as in a round, a node that just left stays gone
+                    Iterator<TopologyUpdate> it = updates.iterator();
+                    while (it.hasNext()) {
+                        if (leftThisRound.contains(it.next().src))
+                            it.remove();
+                    }
+                    if (!updates.isEmpty())
+                        model.update(updates);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flood a link state update to the whole overlay
+     */
+    private void sendLinkStateUpdate(TopologyUpdate upd) {
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(upd.src, null, PORT, PORT,
+                upd.serialize());
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            System.err.println("DEBUG: Unable to send link state update");
+        }
+    }
+
+    /**
+     * Redo our own update, and remember the latencies that went into it
+     */
+    private TopologyUpdate refreshOurUpdate() {
+        Map<InetAddress, Double> rtts = new HashMap<InetAddress, Double>();
+        ourUpdate = getMetricsFromDB(rtts);
+        advertisedRtt = rtts;
+        return ourUpdate;
+    }
+
     /**
      * Query the database for metrics and return the result in the form of a
-     * topology update
+     * topology update. The latency of a link comes from its keepalives when we
+     * have measured it, since that is never more than a few seconds old. The
+     * latency used for each link goes in rtts.
      */
-    private TopologyUpdate getMetricsFromDB() {
+    private TopologyUpdate getMetricsFromDB(Map<InetAddress, Double> rtts) {
         TopologyUpdate upd = new TopologyUpdate();
 
         // Add the src
@@ -174,27 +478,32 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
         for (InetAddress addr : model.getKnownNeighbors()) {
             String node = addr.getHostAddress();
 
-            Map<Long, Double> latencies = db.getLatencyData(node, time - METRIC_AVERAGE_PERIOD,
-                    time);
+            double avgLat = networkInterface.getLinkRtt(addr);
+            if (avgLat < 0) {
+                Map<Long, Double> latencies = db.getLatencyData(node, time
+                        - METRIC_AVERAGE_PERIOD, time);
+
+                // If we don't have any recent data, get the most recent data
+                // that we do have
+                if (latencies.isEmpty()) {
+                    long lastTime = db.getLastLatencyRecordTime(node);
+                    latencies = db.getLatencyData(node, lastTime - METRIC_AVERAGE_PERIOD,
+                            lastTime + 1);
+                }
+                avgLat = getAvg(latencies);
+            }
+
             Map<Long, Double> throughputs = db.getThroughputData(node,
                     time - METRIC_AVERAGE_PERIOD, time);
-
-            // If we don't have any recent data, get the most recent data that
-            // we do have
-            if (latencies.isEmpty()) {
-                long lastTime = db.getLastLatencyRecordTime(node);
-                latencies = db.getLatencyData(node, lastTime - METRIC_AVERAGE_PERIOD, lastTime + 1);
-            }
             if (throughputs.isEmpty()) {
                 long lastTime = db.getLastThroughputRecordTime(node);
                 throughputs = db.getThroughputData(node, lastTime - METRIC_AVERAGE_PERIOD,
                         lastTime + 1);
             }
-
-            double avgLat = getAvg(latencies);
             double avgThrough = getAvg(throughputs);
 
             double metric = computeMetric(avgLat, avgThrough);
+            rtts.put(addr, avgLat);
 
             upd.metrics.put(addr, metric);
         }
@@ -249,16 +558,20 @@ public class OverlayRoutingManager implements Runnable, OverlayRoutingModelListe
             TopologyUpdate result = new TopologyUpdate();
 
             ByteBuffer buf = ByteBuffer.wrap(in);
-            InetAddress src = IPUtils.deserializeIPAddr(buf);
-            result.src = src;
-            while (buf.hasRemaining()) {
-                InetAddress addr = IPUtils.deserializeIPAddr(buf);
+            try {
+                InetAddress src = IPUtils.deserializeIPAddr(buf);
+                result.src = src;
+                while (buf.hasRemaining()) {
+                    InetAddress addr = IPUtils.deserializeIPAddr(buf);
 
-                if (addr == null)
-                    return null;
+                    if (addr == null)
+                        return null;
 
-                Double d = buf.getDouble();
-                result.metrics.put(addr, d);
+                    Double d = buf.getDouble();
+                    result.metrics.put(addr, d);
+                }
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                return null;
             }
             return result;
         }
@@ -0,0 +1,275 @@
+package com.github.aklatt1194.SuperAwesomeOverlay;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.GeolocateDatabaseProvider;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.GeolocateDatabaseProvider.GeoIPEntry;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.RedialPolicy;
+
+/**
+ * Decides which nodes we keep links to. We learn about every node in the
+ * overlay from the link state updates, but only link to up to maxDegree of
+ * them, so that the number of links (and the link state traffic) per node
+ * stays the same as the overlay grows.
+ *
+ * Half of the free slots go to the closest nodes, the other half to nodes in
+ * countries that none of our neighbors are in, so that the overlay doesn't
+ * fall apart into clusters. When we have too many links (other nodes are free
+ * to connect to us), the slowest links into the most crowded countries go
+ * first.
+ *
+ * It also tells the NetworkInterface which lost links are worth redialing:
+ * only while we are under maxDegree, and never one that we dropped ourselves
+ * less than HOLD_DOWN ago.
+ */
+public class PeerSelector implements RedialPolicy {
+    public static final int DEFAULT_MAX_DEGREE = 8;
+
+    // We only prune once we are this far over the cap, so that links that
+    // other nodes opened to us don't get dropped and redialed over and over
+    public static final int DEGREE_SLACK = 2;
+
+    // A node that we dropped isn't picked again for this long
+    public static final long HOLD_DOWN = 10 * 60 * 1000;
+
+    private static final double EARTH_RADIUS_KM = 6371;
+    private static final double FIBER_KM_PER_MS = 200; // about 2/3 of c
+    private static final String UNKNOWN_COUNTRY = "unknown";
+
+    private OverlayRoutingModel model;
+    private GeolocateDatabaseProvider geodb;
+    private NetworkInterface networkInterface;
+    private Map<InetAddress, GeoIPEntry> locations;
+    private Map<InetAddress, Long> heldDown;
+    private volatile int maxDegree = DEFAULT_MAX_DEGREE;
+
+    /**
+     * @param geodb Used to guess latencies to nodes we haven't measured, and
+     *        to tell where nodes are. May be null, in which case every node
+     *        looks the same.
+     */
+    public PeerSelector(OverlayRoutingModel model, GeolocateDatabaseProvider geodb) {
+        this(model, geodb, NetworkInterface.getInstance());
+    }
+
+    public PeerSelector(OverlayRoutingModel model, GeolocateDatabaseProvider geodb,
+            NetworkInterface networkInterface) {
+        this.model = model;
+        this.geodb = geodb;
+        this.networkInterface = networkInterface;
+        this.locations = new HashMap<>();
+        this.heldDown = new ConcurrentHashMap<>();
+
+        networkInterface.setRedialPolicy(this);
+    }
+
+    public void setMaxDegree(int maxDegree) {
+        this.maxDegree = maxDegree;
+    }
+
+    public int getMaxDegree() {
+        return maxDegree;
+    }
+
+    /**
+     * Connect to more nodes if we have fewer than maxDegree links, or drop
+     * the most redundant ones if we have too many. Meant to be called after
+     * every link state round.
+     */
+    public synchronized void rebalance() {
+        long now = System.currentTimeMillis();
+        Iterator<Long> held = heldDown.values().iterator();
+        while (held.hasNext()) {
+            if (now - held.next() > HOLD_DOWN)
+                held.remove();
+        }
+
+        List<InetAddress> neighbors = model.getKnownNeighbors();
+
+        if (neighbors.size() < maxDegree) {
+            for (InetAddress addr : choosePeers(neighbors, maxDegree - neighbors.size())) {
+                networkInterface.connectAndAdd(addr);
+            }
+        } else if (neighbors.size() > maxDegree + DEGREE_SLACK) {
+            for (InetAddress addr : choosePrunes(neighbors, neighbors.size() - maxDegree)) {
+                System.out.println("DEBUG: Dropping redundant link to " + addr);
+                heldDown.put(addr, now);
+                networkInterface.disconnectFromNode(addr);
+            }
+        }
+    }
+
+    // not synchronized, the selector thread mustn't wait for a rebalance
+    @Override
+    public boolean shouldRedial(InetAddress addr, int links) {
+        Long dropped = heldDown.get(addr);
+        if (dropped != null && System.currentTimeMillis() - dropped <= HOLD_DOWN)
+            return false;
+
+        return links < maxDegree;
+    }
+
+    /**
+     * Pick up to count nodes that we aren't linked to yet
+     */
+    protected List<InetAddress> choosePeers(List<InetAddress> neighbors, int count) {
+        InetAddress self = model.getSelfAddress();
+
+        List<InetAddress> candidates = new ArrayList<>();
+        for (InetAddress addr : model.getKnownNodes()) {
+            if (!addr.equals(self) && !neighbors.contains(addr) && !heldDown.containsKey(addr))
+                candidates.add(addr);
+        }
+
+        // shuffle first so that nodes that all look the same to us (e.g. no
+        // geo data) don't get picked by everyone in the same order
+        Collections.shuffle(candidates);
+        Collections.sort(candidates, byLatency());
+
+        Set<String> countries = new HashSet<>();
+        for (InetAddress addr : neighbors)
+            countries.add(getCountry(addr));
+
+        List<InetAddress> result = new ArrayList<>();
+
+        // the closest nodes get the first half of the slots
+        int closest = (count + 1) / 2;
+        while (result.size() < closest && !candidates.isEmpty()) {
+            InetAddress addr = candidates.remove(0);
+            countries.add(getCountry(addr));
+            result.add(addr);
+        }
+
+        // then the closest node in each country we don't have a link into
+        Iterator<InetAddress> it = candidates.iterator();
+        while (result.size() < count && it.hasNext()) {
+            InetAddress addr = it.next();
+            if (countries.add(getCountry(addr))) {
+                result.add(addr);
+                it.remove();
+            }
+        }
+
+        // and if there aren't enough of those, just the closest ones left
+        while (result.size() < count && !candidates.isEmpty())
+            result.add(candidates.remove(0));
+
+        return result;
+    }
+
+    /**
+     * Pick up to count neighbors to drop. Only neighbors that have other links
+     * are eligible, so that we never strand anyone.
+     */
+    protected List<InetAddress> choosePrunes(List<InetAddress> neighbors, int count) {
+        Map<String, List<InetAddress>> byCountry = new HashMap<>();
+        for (InetAddress addr : neighbors) {
+            if (model.getDegree(addr) <= 1)
+                continue;
+
+            String country = getCountry(addr);
+            if (!byCountry.containsKey(country))
+                byCountry.put(country, new ArrayList<InetAddress>());
+            byCountry.get(country).add(addr);
+        }
+
+        // slowest last, so they come off the end first
+        for (List<InetAddress> group : byCountry.values())
+            Collections.sort(group, byLatency());
+
+        List<InetAddress> result = new ArrayList<>();
+        while (result.size() < count) {
+            List<InetAddress> crowded = null;
+            for (List<InetAddress> group : byCountry.values()) {
+                if (crowded == null || group.size() > crowded.size())
+                    crowded = group;
+            }
+
+            // never drop our only link into a country
+            if (crowded == null || crowded.size() <= 1)
+                break;
+
+            result.add(crowded.remove(crowded.size() - 1));
+        }
+
+        return result;
+    }
+
+    private Comparator<InetAddress> byLatency() {
+        final Map<InetAddress, Double> latencies = new HashMap<>();
+        return new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress a, InetAddress b) {
+                return Double.compare(latency(a), latency(b));
+            }
+
+            private double latency(InetAddress addr) {
+                Double latency = latencies.get(addr);
+                if (latency == null) {
+                    latency = estimateLatency(addr);
+                    latencies.put(addr, latency);
+                }
+                return latency;
+            }
+        };
+    }
+
+    /**
+     * The latency to a node: measured if we have a link to it, otherwise a
+     * guess from how far away it is. Nodes we know nothing about go last.
+     */
+    private double estimateLatency(InetAddress addr) {
+        double measured = model.getLinkMetric(model.getSelfAddress(), addr);
+        if (measured > OverlayRoutingModel.NO_EDGE)
+            return measured;
+
+        GeoIPEntry us = getLocation(model.getSelfAddress());
+        GeoIPEntry them = getLocation(addr);
+        if (us == null || them == null || us.country == null || them.country == null)
+            return Double.MAX_VALUE;
+
+        // round trip at the speed of light in fiber
+        return 2 * greatCircleDistance(us, them) / FIBER_KM_PER_MS;
+    }
+
+    private String getCountry(InetAddress addr) {
+        GeoIPEntry entry = getLocation(addr);
+        return (entry == null || entry.country == null) ? UNKNOWN_COUNTRY : entry.country;
+    }
+
+    // lookups involve the database and a reverse DNS lookup, so remember them
+    private GeoIPEntry getLocation(InetAddress addr) {
+        if (geodb == null)
+            return null;
+
+        GeoIPEntry entry = locations.get(addr);
+        if (entry == null) {
+            entry = geodb.lookupNode(addr);
+            locations.put(addr, entry);
+        }
+        return entry;
+    }
+
+    private static double greatCircleDistance(GeoIPEntry a, GeoIPEntry b) {
+        double lat1 = Math.toRadians(a.lat);
+        double lat2 = Math.toRadians(b.lat);
+        double dLat = lat2 - lat1;
+        double dLon = Math.toRadians(b.lon - a.lon);
+
+        double h = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(lat1) * Math.cos(lat2)
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+}
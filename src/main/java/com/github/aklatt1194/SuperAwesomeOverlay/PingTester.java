@@ -3,57 +3,164 @@ package com.github.aklatt1194.SuperAwesomeOverlay;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseManager;
 import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
 import com.github.aklatt1194.SuperAwesomeOverlay.network.BaseLayerSocket;
 import com.github.aklatt1194.SuperAwesomeOverlay.network.SimpleDatagramPacket;
 
+/**
+ * Every interval, sends a train of probes to each neighbor and records the
+ * median and 90th percentile RTT, the jitter and the loss of the train. Probes are numbered, so
+ * a probe that never comes back is counted as lost rather than just missing,
+ * and times come from System.nanoTime(), so sub-millisecond links don't all
+ * look the same.
+ */
 public class PingTester {
     public static final byte REQUEST = 0x1;
     public static final byte RESPONSE = 0x2;
     public static final int PORT = 9876;
+
+    public static final long DEFAULT_INTERVAL = 60 * 1000;
+    public static final int DEFAULT_TRAIN_LENGTH = 10;
+    public static final long DEFAULT_PROBE_SPACING = 20; // ms
+    public static final long PROBE_TIMEOUT = 2 * 1000; // after the last probe
+
+    private static final int PROBE_LENGTH = 13; // type, sequence number, timestamp
+
     BaseLayerSocket socket;
     OverlayRoutingModel model;
     MetricsDatabaseManager db;
 
+    private volatile long interval = DEFAULT_INTERVAL;
+    private volatile int trainLength = DEFAULT_TRAIN_LENGTH;
+    private volatile long probeSpacing = DEFAULT_PROBE_SPACING;
+
+    private Map<InetAddress, ProbeTrain> trains;
+    private int nextSeq;
+
+    private Thread sender;
+    private volatile boolean running = true;
+
     public PingTester(OverlayRoutingModel model, MetricsDatabaseManager db) {
         this.model = model;
         this.db = db;
 
+        trains = new ConcurrentHashMap<>();
+
         socket = new BaseLayerSocket();
         socket.bind(PORT);
 
-        Thread sender = new Thread(new PingTestSender());
+        sender = new Thread(new PingTestSender());
         Thread receiver = new Thread(new PingTestReceiver());
         sender.start();
         receiver.start();
     }
 
+    /**
+     * Set how often each neighbor is probed, how many probes go in a train
+     * and how far apart (in ms) the probes of a train are sent.
+     */
+    public void setProbeTrain(long interval, int trainLength, long probeSpacing) {
+        this.interval = interval;
+        this.trainLength = trainLength;
+        this.probeSpacing = probeSpacing;
+    }
+
+    /**
+     * Stop probing. A train that is still out isn't recorded, since whatever
+     * hasn't come back yet would look lost.
+     */
+    public void shutdown() {
+        running = false;
+        sender.interrupt();
+        socket.close();
+        try {
+            sender.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
     class PingTestSender implements Runnable {
         @Override
         public void run() {
-            while (true) {
+            while (running) {
                 try {
-                    Thread.sleep(60000);
+                    Thread.sleep(interval);
                 } catch (InterruptedException e) {
                 }
-                for (InetAddress node : model.getKnownNeighbors()) {
-                    ByteBuffer buf = ByteBuffer.allocate(9);
-                    buf.put(REQUEST);
-                    buf.putLong(new Date().getTime());
+                if (!running)
+                    return;
 
-                    SimpleDatagramPacket packet = new SimpleDatagramPacket(
-                            model.getSelfAddress(), node, PORT, PORT,
-                            buf.array());
+                List<InetAddress> nodes = model.getKnownNeighbors();
+                int length = trainLength;
+                for (InetAddress node : nodes) {
+                    trains.put(node, new ProbeTrain(nextSeq, length));
+                    nextSeq += length;
+                }
+
+                // the trains to all of the neighbors go out side by side
+                for (int i = 0; i < length && running; i++) {
+                    for (InetAddress node : nodes) {
+                        ProbeTrain train = trains.get(node);
+                        if (train != null)
+                            sendProbe(node, train, i);
+                    }
 
                     try {
-                        socket.send(packet);
-                    } catch (IOException e) {
-                        // TODO -- This node is no longer connected
+                        Thread.sleep(probeSpacing);
+                    } catch (InterruptedException e) {
                     }
                 }
+
+                // anything that isn't back by now is lost
+                try {
+                    Thread.sleep(PROBE_TIMEOUT);
+                } catch (InterruptedException e) {
+                }
+                if (!running)
+                    return;
+
+                long time = System.currentTimeMillis();
+                for (InetAddress node : nodes) {
+                    ProbeTrain train = trains.remove(node);
+                    if (train != null)
+                        record(node, train.summarize(), time);
+                }
+            }
+        }
+
+        private void sendProbe(InetAddress node, ProbeTrain train, int index) {
+            ByteBuffer buf = ByteBuffer.allocate(PROBE_LENGTH);
+            buf.put(REQUEST);
+            buf.putInt(train.firstSeq + index);
+
+            long now = System.nanoTime();
+            buf.putLong(now);
+            train.sent(index, now);
+
+            SimpleDatagramPacket packet = new SimpleDatagramPacket(model.getSelfAddress(), node,
+                    PORT, PORT, buf.array());
+
+            try {
+                socket.send(packet);
+            } catch (IOException e) {
+                // This node is no longer connected, the probe counts as lost
+            }
+        }
+
+        private void record(InetAddress node, Summary summary, long time) {
+            String name = node.getHostAddress();
+
+            db.addLossData(name, time, summary.loss);
+            if (summary.received > 0) {
+                db.addLatencyData(name, time, summary.median);
+                db.addLatencyP90Data(name, time, summary.p90);
+                db.addJitterData(name, time, summary.jitter);
             }
         }
     }
@@ -61,10 +168,13 @@ public class PingTester {
     class PingTestReceiver implements Runnable {
         @Override
         public void run() {
-            while (true) {
-                SimpleDatagramPacket response = socket.receive();
+            SimpleDatagramPacket response;
+            while ((response = socket.receive()) != null) {
+                long now = System.nanoTime();
 
                 ByteBuffer buf = ByteBuffer.wrap(response.getPayload());
+                if (buf.remaining() < PROBE_LENGTH)
+                    continue;
                 byte flags = buf.get();
 
                 if (flags == REQUEST) {
@@ -75,15 +185,107 @@ public class PingTester {
                                 .getSelfAddress(), response.getSource(), PORT,
                                 PORT, payload));
                     } catch (IOException e) {
-                        // TODO -- This node is no longer connected
+                        // This node is no longer connected, its probe
+                        // counts as lost on the other end
                     }
                 } else {
+                    int seq = buf.getInt();
                     long timestamp = buf.getLong();
-                    db.addLatencyData(response.getSource().getHostAddress(),
-                            System.currentTimeMillis(), new Date().getTime()
-                                    - timestamp);
+
+                    ProbeTrain train = trains.get(response.getSource());
+                    if (train != null)
+                        train.received(seq, timestamp, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * The probes of a single train to a single node. Probe i has sequence
+     * number firstSeq + i.
+     */
+    static class ProbeTrain {
+        private int firstSeq;
+        private long[] sent;
+        private double[] rtts; // ms, NaN until the response shows up
+
+        ProbeTrain(int firstSeq, int length) {
+            this.firstSeq = firstSeq;
+            this.sent = new long[length];
+            this.rtts = new double[length];
+            Arrays.fill(rtts, Double.NaN);
+        }
+
+        synchronized void sent(int index, long now) {
+            sent[index] = now;
+        }
+
+        /**
+         * A response to probe seq (sent at timestamp) arrived at now. Anything
+         * that isn't from this train, or that we already have, is ignored.
+         */
+        synchronized void received(int seq, long timestamp, long now) {
+            int index = seq - firstSeq;
+            if (index < 0 || index >= rtts.length || sent[index] != timestamp
+                    || !Double.isNaN(rtts[index]))
+                return;
+
+            rtts[index] = (now - timestamp) / 1e6;
+        }
+
+        synchronized Summary summarize() {
+            Summary summary = new Summary();
+            summary.sent = rtts.length;
+
+            double[] sorted = new double[rtts.length];
+            double jitter = 0;
+            int jitterSamples = 0;
+            double last = Double.NaN;
+
+            for (double rtt : rtts) {
+                if (Double.isNaN(rtt))
+                    continue;
+
+                sorted[summary.received++] = rtt;
+
+                // the mean difference between back to back RTTs, lost probes
+                // are just skipped over
+                if (!Double.isNaN(last)) {
+                    jitter += Math.abs(rtt - last);
+                    jitterSamples++;
                 }
+                last = rtt;
             }
+
+            summary.loss = summary.sent == 0 ? 0
+                    : (summary.sent - summary.received) / (double) summary.sent;
+            if (summary.received == 0)
+                return summary;
+
+            sorted = Arrays.copyOf(sorted, summary.received);
+            Arrays.sort(sorted);
+            summary.median = percentile(sorted, 0.5);
+            summary.p90 = percentile(sorted, 0.9);
+            summary.jitter = jitterSamples == 0 ? 0 : jitter / jitterSamples;
+
+            return summary;
         }
+
+        // nearest rank
+        private static double percentile(double[] sorted, double p) {
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+    }
+
+    /**
+     * What a probe train found out about a link. All times are in ms.
+     */
+    static class Summary {
+        int sent;
+        int received;
+        double loss;
+        double median, p90;
+        double jitter;
     }
-}
\ No newline at end of file
+}
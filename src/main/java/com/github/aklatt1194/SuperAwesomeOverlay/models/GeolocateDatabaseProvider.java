@@ -89,6 +89,14 @@ public class GeolocateDatabaseProvider {
         return entry;
     }
 
+    public void close() {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing the GEOIP database");
+        }
+    }
+
     public static class GeoIPEntry {
         public String hostname;
         public String ip;
@@ -24,6 +24,49 @@ public interface MetricsDatabaseManager {
      */
     public void addThroughputData(String nodeName, long time, double value);
 
+    /**
+     * Add the given downstream throughput value (what we could get from the
+     * given node, as opposed to what we could send to it) at the given time to
+     * the db
+     * 
+     * @param nodeName The name of the node we are connected to
+     * @param time The time the data was collected
+     * @param value The data
+     */
+    public void addDownstreamThroughputData(String nodeName, long time, double value);
+
+    /**
+     * Add the given 90th percentile latency value (of the RTTs of one probe
+     * train, in ms) for the connection to the given node at the given time to
+     * the db
+     * 
+     * @param nodeName The name of the node we are connected to
+     * @param time The time the data was collected
+     * @param value The data
+     */
+    public void addLatencyP90Data(String nodeName, long time, double value);
+
+    /**
+     * Add the given jitter value (the mean difference between consecutive
+     * RTTs, in ms) for the connection to the given node at the given time to
+     * the db
+     * 
+     * @param nodeName The name of the node we are connected to
+     * @param time The time the data was collected
+     * @param value The data
+     */
+    public void addJitterData(String nodeName, long time, double value);
+
+    /**
+     * Add the given loss value (the fraction of probes that went unanswered)
+     * for the connection to the given node at the given time to the db
+     * 
+     * @param nodeName The name of the node we are connected to
+     * @param time The time the data was collected
+     * @param value The data
+     */
+    public void addLossData(String nodeName, long time, double value);
+
     /**
      * Get all latency data for the connection to the given node between
      * startTime and endTime
@@ -79,6 +122,64 @@ public interface MetricsDatabaseManager {
      */
     public Map<Long, Double> getThroughputData(String node, long startTime, long endTime, long bucketSize);
 
+    /**
+     * Get all downstream throughput data for the connection to the given node
+     * between startTime and endTime
+     * 
+     * @param node The node we are connected to
+     * @param startTime The beginning of the interval we are interested in
+     *        (inclusive) in UNIX ms since the epoch format.
+     * @param endTime The end of the interval we are interested in (exclusive)
+     *        in UNIX ms since the epoch format.
+     * @return A map from time to downstream throughput for the interval.
+     */
+    public Map<Long, Double> getDownstreamThroughputData(String node, long startTime, long endTime);
+
+    /**
+     * Get all 90th percentile latency data for the connection to the given
+     * node between startTime and endTime
+     * 
+     * @param node The node we are connected to
+     * @param startTime The beginning of the interval we are interested in
+     *        (inclusive) in UNIX ms since the epoch format.
+     * @param endTime The end of the interval we are interested in (exclusive)
+     *        in UNIX ms since the epoch format.
+     * @param bucketSize The bucket size in milliseconds.
+     * @return A map from time to 90th percentile latency for the interval.
+     */
+    public Map<Long, Double> getLatencyP90Data(String node, long startTime, long endTime,
+            long bucketSize);
+
+    /**
+     * Get all jitter data for the connection to the given node between
+     * startTime and endTime
+     * 
+     * @param node The node we are connected to
+     * @param startTime The beginning of the interval we are interested in
+     *        (inclusive) in UNIX ms since the epoch format.
+     * @param endTime The end of the interval we are interested in (exclusive)
+     *        in UNIX ms since the epoch format.
+     * @param bucketSize The bucket size in milliseconds.
+     * @return A map from time to jitter for the interval.
+     */
+    public Map<Long, Double> getJitterData(String node, long startTime, long endTime,
+            long bucketSize);
+
+    /**
+     * Get all loss data for the connection to the given node between
+     * startTime and endTime
+     * 
+     * @param node The node we are connected to
+     * @param startTime The beginning of the interval we are interested in
+     *        (inclusive) in UNIX ms since the epoch format.
+     * @param endTime The end of the interval we are interested in (exclusive)
+     *        in UNIX ms since the epoch format.
+     * @param bucketSize The bucket size in milliseconds.
+     * @return A map from time to loss for the interval.
+     */
+    public Map<Long, Double> getLossData(String node, long startTime, long endTime,
+            long bucketSize);
+
     /**
      * Get the time of the last latency ping saved in the db (returns -1 on
      * error or if no data exists)
@@ -90,4 +191,9 @@ public interface MetricsDatabaseManager {
      * error or if no data exists)
      */
     public long getLastThroughputRecordTime(String node);
+
+    /**
+     * Write out anything that hasn't been yet and close the db
+     */
+    public void close();
 }
@@ -8,14 +8,40 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Histogram;
 
 public class MetricsDatabaseProvider implements MetricsDatabaseManager {
 
     private static final String DEFAULT_NAME = "sqlite-test.db";
     private static final String LATENCY_TABLE = "latency";
     private static final String THROUGHPUT_TABLE = "throughput";
+    private static final String THROUGHPUT_DOWN_TABLE = "throughput_down";
+    private static final String LATENCY_P90_TABLE = "latency_p90";
+    private static final String JITTER_TABLE = "jitter";
+    private static final String LOSS_TABLE = "loss";
+
+    // Inserts are committed in batches, whenever COMMIT_BATCH of them have
+    // piled up or COMMIT_PERIOD has gone by, and when the database is closed.
+    // Reads go through the same connection, so they see everything right
+    // away.
+    public static final int COMMIT_BATCH = 100;
+    public static final long COMMIT_PERIOD = 5 * 1000;
 
     private Connection c;
+    private int uncommitted;
+    private boolean closed;
+    private ScheduledExecutorService committer;
+
+    private Histogram queryTime = StatsRegistry.getInstance().histogram("overlay_db_query_us",
+            "Metrics database query time, in microseconds");
+    private Histogram insertTime = StatsRegistry.getInstance().histogram("overlay_db_insert_us",
+            "Metrics database insert time, in microseconds");
 
     /**
      * Setup a connection and construct a default test database if necessary
@@ -44,10 +70,74 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
             if (!hasTable(c, LATENCY_TABLE)) {
                 createNetworkDataTable(c, LATENCY_TABLE);
             }
+
+            // Create the downstream throughput, p90 latency, jitter and loss
+            // tables if they do not exist (older databases won't have them)
+            if (!hasTable(c, THROUGHPUT_DOWN_TABLE)) {
+                createNetworkDataTable(c, THROUGHPUT_DOWN_TABLE);
+            }
+            if (!hasTable(c, LATENCY_P90_TABLE)) {
+                createNetworkDataTable(c, LATENCY_P90_TABLE);
+            }
+            if (!hasTable(c, JITTER_TABLE)) {
+                createNetworkDataTable(c, JITTER_TABLE);
+            }
+            if (!hasTable(c, LOSS_TABLE)) {
+                createNetworkDataTable(c, LOSS_TABLE);
+            }
+
+            c.setAutoCommit(false);
         } catch (Exception e) {
             System.err.println(e.getClass().getName() + ": " + e.getMessage());
             System.exit(0);
         }
+
+        committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        committer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, COMMIT_PERIOD, COMMIT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Commit anything that hasn't been yet and close the database. Anything
+     * added after this is dropped.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+
+        committer.shutdown();
+        commit();
+        closed = true;
+        try {
+            c.close();
+        } catch (SQLException e) {
+            System.err.println("Error closing the metrics database");
+        }
+    }
+
+    private synchronized void commit() {
+        if (closed || uncommitted == 0)
+            return;
+
+        try {
+            c.commit();
+            uncommitted = 0;
+        } catch (SQLException e) {
+            System.err.println("Committing metrics failed!");
+            e.printStackTrace();
+        }
     }
 
     public void addLatencyData(String nodeName, long time, double value) {
@@ -58,6 +148,22 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
         addNetworkData(nodeName, time, value, THROUGHPUT_TABLE);
     }
 
+    public void addDownstreamThroughputData(String nodeName, long time, double value) {
+        addNetworkData(nodeName, time, value, THROUGHPUT_DOWN_TABLE);
+    }
+
+    public void addLatencyP90Data(String nodeName, long time, double value) {
+        addNetworkData(nodeName, time, value, LATENCY_P90_TABLE);
+    }
+
+    public void addJitterData(String nodeName, long time, double value) {
+        addNetworkData(nodeName, time, value, JITTER_TABLE);
+    }
+
+    public void addLossData(String nodeName, long time, double value) {
+        addNetworkData(nodeName, time, value, LOSS_TABLE);
+    }
+
     public Map<Long, Double> getLatencyData(String node, long startTime,
             long endTime) {
         return getConnectionData(node, startTime, endTime, LATENCY_TABLE);
@@ -80,6 +186,29 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
                 THROUGHPUT_TABLE);
     }
 
+    public Map<Long, Double> getDownstreamThroughputData(String node, long startTime,
+            long endTime) {
+        return getConnectionData(node, startTime, endTime, THROUGHPUT_DOWN_TABLE);
+    }
+
+    public Map<Long, Double> getLatencyP90Data(String node, long startTime,
+            long endTime, long bucketSize) {
+        return getConnectionData(node, startTime, endTime, bucketSize,
+                LATENCY_P90_TABLE);
+    }
+
+    public Map<Long, Double> getJitterData(String node, long startTime,
+            long endTime, long bucketSize) {
+        return getConnectionData(node, startTime, endTime, bucketSize,
+                JITTER_TABLE);
+    }
+
+    public Map<Long, Double> getLossData(String node, long startTime,
+            long endTime, long bucketSize) {
+        return getConnectionData(node, startTime, endTime, bucketSize,
+                LOSS_TABLE);
+    }
+
     /* Private helper methods */
 
     /**
@@ -102,6 +231,7 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
         String select = String
                 .format("SELECT Time, %s FROM %s WHERE Node='%s' AND Time>=%d AND Time<=%d",
                         table, table, node, startTime, endTime);
+        long start = System.nanoTime();
         try {
             // Execute the statement
             Statement stmt = c.createStatement();
@@ -119,6 +249,8 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
             System.err.println("Error getting the data from table " + table
                     + " !");
             e.printStackTrace();
+        } finally {
+            queryTime.record((System.nanoTime() - start) / 1000);
         }
         return null;
     }
@@ -151,6 +283,7 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
                         bucketSize, bucketSize, table, table, table, node,
                         startTime, endTime, bucketSize / 2, bucketSize);
 
+        long start = System.nanoTime();
         try {
             // Execute the statement
             Statement stmt = c.createStatement();
@@ -168,6 +301,8 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
             System.err.println("Error getting the data from table " + table
                     + " !");
             e.printStackTrace();
+        } finally {
+            queryTime.record((System.nanoTime() - start) / 1000);
         }
 
         return null;
@@ -186,12 +321,24 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
         String insert = "INSERT INTO " + table + " VALUES(" + time + ", '"
                 + nodeName + "', " + value + ")";
 
-        try {
-            Statement stmt = c.createStatement();
-            stmt.executeUpdate(insert);
-        } catch (SQLException e) {
-            System.err.println("Insert into table: " + table + " failed!");
-            e.printStackTrace();
+        long start = System.nanoTime();
+        synchronized (this) {
+            if (closed)
+                return;
+
+            try {
+                Statement stmt = c.createStatement();
+                stmt.executeUpdate(insert);
+                stmt.close();
+            } catch (SQLException e) {
+                System.err.println("Insert into table: " + table + " failed!");
+                e.printStackTrace();
+            } finally {
+                insertTime.record((System.nanoTime() - start) / 1000);
+            }
+
+            if (++uncommitted >= COMMIT_BATCH)
+                commit();
         }
     }
 
@@ -251,9 +398,11 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
     }
     
     private long getLastRecordTime(String node, String table) {
-        String query = "SELECT Time FROM " + table + " ORDER BY Time DESC LIMIT 1";
+        String query = "SELECT Time FROM " + table + " WHERE Node='" + node
+                + "' ORDER BY Time DESC LIMIT 1";
         long result = -1;
         
+        long start = System.nanoTime();
         try {
             Statement stmt = c.createStatement();
             ResultSet rs = stmt.executeQuery(query);
@@ -262,6 +411,8 @@ public class MetricsDatabaseProvider implements MetricsDatabaseManager {
                 result = rs.getLong("Time");
         } catch (SQLException e) {
             System.err.println("Error retreiving last metric update time");
+        } finally {
+            queryTime.record((System.nanoTime() - start) / 1000);
         }
         return result;
     }
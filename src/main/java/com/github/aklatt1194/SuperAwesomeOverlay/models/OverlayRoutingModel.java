@@ -4,161 +4,412 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
-import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.EventBus;
 import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Histogram;
 
 public class OverlayRoutingModel {
     public static final int DEFAULT_METRIC = 1000;
+    public static final double NO_EDGE = 0; // metric of a link that doesn't exist
+    public static final int MAX_EQUAL_COST_PATHS = 4;
+    public static final double EQUAL_COST_TOLERANCE = 0.1; // within 10% counts as equal
 
-    public List<OverlayRoutingModelListener> listeners;
+    // How long we remember that a node left the overlay. Until then, updates
+    // that still list it (sent before their source heard it was leaving)
+    // don't bring it back, only an update of its own or a link to it does.
+    public static final long DEPARTED_HOLD = 2 * 60 * 1000;
 
-    // Used for managing the matrix of metrics
-    private Queue<InetAddress> nodesToAdd;
+    // Lost links are folded into the model in batches. The rebuild waits this
+    // long for more of them, so that a partition that takes out 50 links
+    // costs one rebuild instead of 50.
+    public static final long MEMBERSHIP_BATCH_WINDOW = 50; // ms
+
+    /**
+     * How packets should find their way through the overlay. Broadcasts always
+     * follow the MST, unicast traffic can pick either.
+     */
+    public enum RoutingPolicy {
+        MINIMUM_SPANNING_TREE, SHORTEST_PATH
+    }
+
+    // The nodes we have a link to. Every other node in the matrix is one that
+    // we only know about from link state updates.
+    private Set<InetAddress> neighbors;
+
+    // Nodes that announced they were leaving, and when
+    private Map<InetAddress, Long> departed;
+
+    // Neighbors we lost the link to since the last rebuild. Listeners hear
+    // about them once the rebuild is done.
+    private List<InetAddress> lostNeighbors;
+    private boolean rebuildScheduled;
+
+    // Links that came up or went down. The NetworkInterface's selector thread
+    // only queues them, so that it never waits for the model (which may be in
+    // the middle of a rebuild). They are applied by the batcher thread or by
+    // whoever uses the model next, whichever comes first.
+    private Queue<MembershipEvent> linkChanges;
+    private AtomicBoolean applyScheduled;
+    private ScheduledExecutorService batcher;
+
+    // Listeners hear about nodes coming and going through the bus, never with
+    // the model locked
+    private EventBus<OverlayRoutingModelListener> bus;
+
+    // Used for managing the matrix of metrics. Column j holds what node j
+    // reported about its links, row i what everyone reported about i.
+    private Set<InetAddress> nodesToAdd;
     private Map<InetAddress, Integer> nodeToIndex;
     private InetAddress[] indexToNode;
-    private InetAddress selfAddress;
+    private final InetAddress selfAddress;
     private double[][] metrics;
 
-    // Models
-    private TreeNode root;
-    private Map<InetAddress, InetAddress> fTable;
+    // The links in the matrix as of the last rebuild, as a list of neighbor
+    // indexes (and the weights of the links to them) per node. Every node
+    // only has a handful of links, so the tree and the paths are built from
+    // these instead of looking at every pair of nodes.
+    private int[][] adjacency;
+    private double[][] adjacencyWeights;
+
+    // Models. Each rebuild makes new ones and swaps them in when they are
+    // done, so they can be read without locking the model (the selector
+    // thread looks up a next hop for every packet it forwards).
+    private volatile TreeNode root;
+    private volatile Map<InetAddress, InetAddress> fTable;
+    private volatile Map<InetAddress, InetAddress> spTable;
+    private volatile Map<InetAddress, List<InetAddress>> mpTable;
+
+    private Histogram updateTime;
+    private Histogram mstTime;
 
     public OverlayRoutingModel() {
-        // figure out external ip
-        try {
-            selfAddress = IPUtils.getExternalAddress(); // Put ourselves in
-        } catch (IOException e) {
-            System.err.println("Error: Unable to determine external IP address");
-            System.exit(1);
-        }
+        this(lookupExternalAddress());
+    }
+
+    public OverlayRoutingModel(InetAddress selfAddress) {
+        this.selfAddress = selfAddress;
 
-        listeners = new ArrayList<>();
+        bus = new EventBus<>();
 
         // Initially, we are the only known node
         nodeToIndex = new HashMap<InetAddress, Integer>();
         indexToNode = new InetAddress[] { selfAddress };
         nodeToIndex.put(selfAddress, 0);
 
-        nodesToAdd = new LinkedList<InetAddress>();
+        nodesToAdd = new LinkedHashSet<InetAddress>();
+        neighbors = new LinkedHashSet<InetAddress>();
+        departed = new HashMap<InetAddress, Long>();
+        lostNeighbors = new ArrayList<InetAddress>();
+        linkChanges = new ConcurrentLinkedQueue<MembershipEvent>();
+        applyScheduled = new AtomicBoolean();
 
         metrics = new double[nodeToIndex.size()][nodeToIndex.size()];
 
         clearMatrix();
-    }
 
-    public synchronized void addListener(OverlayRoutingModelListener listener) {
-        listeners.add(listener);
+        // Until the first update, we can only route to ourselves
+        root = new TreeNode(selfAddress);
+        fTable = new HashMap<InetAddress, InetAddress>();
+        spTable = new HashMap<InetAddress, InetAddress>();
+        mpTable = new HashMap<InetAddress, List<InetAddress>>();
+
+        StatsRegistry stats = StatsRegistry.getInstance();
+        updateTime = stats.histogram("overlay_model_update_us",
+                "Time to fold a round of link state updates into the model, in microseconds");
+        mstTime = stats.histogram("overlay_mst_build_us",
+                "Time to rebuild the MST and its forwarding table, in microseconds");
+
+        batcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
-    public synchronized void notifyListenersAdd(InetAddress addr) {
-        for (OverlayRoutingModelListener listener : listeners) {
-            listener.nodeAddCallback(addr);
+    private static InetAddress lookupExternalAddress() {
+        // figure out external ip
+        try {
+            return IPUtils.getExternalAddress(); // Put ourselves in
+        } catch (IOException e) {
+            System.err.println("Error: Unable to determine external IP address");
+            System.exit(1);
         }
+        return null;
     }
 
-    public synchronized void notifyListenersDelete(InetAddress addr) {
-        for (OverlayRoutingModelListener listener : listeners) {
-            listener.nodeDeleteCallback(addr);
-        }
+    public void addListener(OverlayRoutingModelListener listener) {
+        bus.subscribe(listener);
+    }
+
+    private void notifyListenersAdd(InetAddress addr) {
+        bus.publish(new MembershipEvent(addr, true));
+    }
+
+    private void notifyListenersDelete(InetAddress addr) {
+        bus.publish(new MembershipEvent(addr, false));
     }
 
     /**
-     * Trigger all of the batched link state updates to rebuild the model
+     * Trigger all of the batched link state updates to rebuild the model. Each
+     * update replaces whatever its source told us before. Nodes that we hear
+     * about are added to the graph, but we don't connect to them (that is up
+     * to the PeerSelector).
      */
     public synchronized void update(List<TopologyUpdate> updates) {
-        Set<InetAddress> potentialNodes = new HashSet<>();
+        long start = System.nanoTime();
+        applyLinkChanges();
+
+        // Forget about nodes that were unreachable last time around, unless
+        // this batch brings them back
+        pruneUnreachable();
+
+        // a node that left and speaks up again is back
+        expireDeparted(System.currentTimeMillis());
+        for (TopologyUpdate update : updates)
+            departed.remove(update.src);
+
+        for (TopologyUpdate update : updates) {
+            addGraphNode(update.src);
+            for (InetAddress addr : update.metrics.keySet()) {
+                if (!departed.containsKey(addr))
+                    addGraphNode(addr);
+            }
+        }
 
         // Rebuild the matrix
         rebuildMatrix();
 
         for (TopologyUpdate update : updates) {
-            if (nodeToIndex.get(update.src) != null) {
-                for (Entry<InetAddress, Double> entry : update.metrics.entrySet()) {
-                    if (nodeToIndex.containsKey(entry.getKey())) {
-                        // insertMetricTable(nodeToIndex.get(entry.getKey()),
-                        // nodeToIndex.get(update.src), entry.getValue());
-                        metrics[nodeToIndex.get(entry.getKey())][nodeToIndex.get(update.src)] = entry
-                                .getValue();
-                    } else {
-                        potentialNodes.add(entry.getKey());
-                    }
-                }
+            int col = nodeToIndex.get(update.src);
+            for (int row = 0; row < metrics.length; row++)
+                metrics[row][col] = NO_EDGE;
+
+            for (Entry<InetAddress, Double> entry : update.metrics.entrySet()) {
+                Integer row = nodeToIndex.get(entry.getKey());
+                if (row != null)
+                    metrics[row][col] = entry.getValue();
             }
         }
-        
-        undirectGraph();
 
-        for (InetAddress addr : potentialNodes) {
-            NetworkInterface.getInstance().connectAndAdd(addr);
-        }
+        buildAdjacency();
 
-        // Build the tree
+        // Build the tree and its forwarding table
+        long mstStart = System.nanoTime();
         buildMst();
+        mstTime.record((System.nanoTime() - mstStart) / 1000);
+
+        // Build the shortest path table
+        buildShortestPaths();
+        updateTime.record((System.nanoTime() - start) / 1000);
 
-        // Build the forwarding table
-        constructForwardingTable();
+        // lost links are in the tables now
+        for (InetAddress addr : lostNeighbors)
+            notifyListenersDelete(addr);
+        lostNeighbors.clear();
     }
 
     /**
-     * Lazy insert a node. (Only call this if you are going to update right
-     * after)
+     * Lazy insert a node that we now have a link to. (Only call this if you
+     * are going to update right after) Doesn't block.
      */
-    public synchronized void addNode(InetAddress addr) {
-        if (!nodeToIndex.containsKey(addr) && !nodesToAdd.contains(addr)) {
-            nodesToAdd.add(addr);
+    public void addNode(InetAddress addr) {
+        linkChanges.offer(new MembershipEvent(addr, true));
+        scheduleApply();
+    }
+
+    /**
+     * Delete a node that we lost the link to. The link is gone from the
+     * matrix as soon as the change is applied, and the model is rebuilt within
+     * MEMBERSHIP_BATCH_WINDOW (together with any other links lost in the
+     * meantime) instead of waiting for the next round of updates. If the lost
+     * node was adjacent to this node, the tree would be disconnected until
+     * then. Listeners hear about it after the rebuild. Doesn't block.
+     * 
+     * The node itself stays in the graph as long as we can still reach it
+     * through somebody else.
+     */
+    public void deleteNode(InetAddress addr) {
+        linkChanges.offer(new MembershipEvent(addr, false));
+        scheduleApply();
+    }
+
+    private void scheduleApply() {
+        if (!applyScheduled.compareAndSet(false, true))
+            return;
+
+        batcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (OverlayRoutingModel.this) {
+                    applyLinkChanges();
+                }
+            }
+        });
+    }
+
+    // Apply every queued link change, in order. Call with the model locked.
+    private void applyLinkChanges() {
+        applyScheduled.set(false);
+
+        MembershipEvent change;
+        while ((change = linkChanges.poll()) != null) {
+            if (change.added)
+                applyAdd(change.addr);
+            else
+                applyDelete(change.addr);
+        }
+    }
+
+    private void applyAdd(InetAddress addr) {
+        if (!neighbors.add(addr))
+            return;
+
+        departed.remove(addr);
+        addGraphNode(addr);
+
+        // the link came right back, as far as anyone else can tell it never
+        // went away
+        if (!lostNeighbors.remove(addr))
             notifyListenersAdd(addr);
+    }
+
+    private void applyDelete(InetAddress addr) {
+        // already gone if it told us it was leaving
+        if (!neighbors.remove(addr))
+            return;
+        nodesToAdd.remove(addr);
+
+        Integer index = nodeToIndex.get(addr);
+        if (index != null) {
+            // neither end gets to claim the link anymore
+            int self = nodeToIndex.get(selfAddress);
+            metrics[index][self] = NO_EDGE;
+            metrics[self][index] = NO_EDGE;
         }
+
+        lostNeighbors.add(addr);
+        if (rebuildScheduled)
+            return;
+
+        rebuildScheduled = true;
+        batcher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                rebuildLost();
+            }
+        }, MEMBERSHIP_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void rebuildLost() {
+        rebuildScheduled = false;
+        applyLinkChanges();
+
+        // a round of updates may have beaten us to it
+        if (!lostNeighbors.isEmpty())
+            update(Collections.<TopologyUpdate> emptyList());
     }
 
     /**
-     * Delete a node and rebuild the model.
-     * 
-     * TODO -- Let's try the not lazy delete. It seems that if the
-     * NetworkInterface has lost a connection to a node, we need to rebuild
-     * immediately. If the lost node was adjacent to this node, the tree would
-     * then be disconnected and we shouldn't wait around for an update.
+     * Remove nodes that have left the overlay, along with every link anyone
+     * had to them, and rebuild the model once for all of them. Unlike
+     * deleteNode, this doesn't wait for the next round of updates to find
+     * out that nobody else can reach them either.
      */
-    public synchronized void deleteNode(InetAddress addr) {
-        if (nodeToIndex.containsKey(addr)) {
-            indexToNode[nodeToIndex.get(addr)] = null;
-            nodeToIndex.remove(addr);
+    public synchronized void removeNodes(Collection<InetAddress> addrs) {
+        long now = System.currentTimeMillis();
+        applyLinkChanges();
+
+        for (InetAddress addr : addrs) {
+            if (addr.equals(selfAddress))
+                continue;
+
+            departed.put(addr, now);
+            if (neighbors.remove(addr))
+                lostNeighbors.add(addr);
+            nodesToAdd.remove(addr);
+
+            // dropped from the matrix by the rebuild
+            Integer index = nodeToIndex.remove(addr);
+            if (index != null) {
+                for (int i = 0; i < metrics.length; i++) {
+                    metrics[i][index] = NO_EDGE;
+                    metrics[index][i] = NO_EDGE;
+                }
+                indexToNode[index] = null;
+            }
         }
 
-        // remove the node immediately from the tree
-        update(Arrays.asList());
-        notifyListenersDelete(addr);
+        update(Collections.<TopologyUpdate> emptyList());
     }
 
     /**
      * MST getter. Normally a deep copy would be a good idea.
      */
-    public synchronized TreeNode getMST() {
+    public TreeNode getMST() {
         return root;
     }
     
     /**
-     * Forwarding table getter.
+     * Forwarding table getter. The table is read only.
      */
-    public synchronized Map<InetAddress, InetAddress> getForwardingTable() {
-        return new HashMap<InetAddress, InetAddress>(fTable);
+    public Map<InetAddress, InetAddress> getForwardingTable() {
+        return Collections.unmodifiableMap(fTable);
     }
 
     /**
-     * Known Node getter. Returns an array of all the nodes including any that
-     * are pending.
+     * Shortest path forwarding table getter. Maps each destination to the
+     * next hop on the lowest cost path to it.
+     */
+    public Map<InetAddress, InetAddress> getShortestPathTable() {
+        return Collections.unmodifiableMap(spTable);
+    }
+
+    /**
+     * Multipath forwarding table getter. Maps each destination to up to
+     * MAX_EQUAL_COST_PATHS next hops whose paths cost about the same as the
+     * shortest one, best first.
+     */
+    public Map<InetAddress, List<InetAddress>> getMultipathTable() {
+        return Collections.unmodifiableMap(mpTable);
+    }
+
+    /**
+     * Forwarding table getter for the given routing policy.
+     */
+    public Map<InetAddress, InetAddress> getForwardingTable(RoutingPolicy policy) {
+        return policy == RoutingPolicy.SHORTEST_PATH ? getShortestPathTable()
+                : getForwardingTable();
+    }
+
+    /**
+     * Known Node getter. Returns an array of all the nodes in the overlay that
+     * we know about (linked to us or not), including ourself and any that are
+     * pending.
      */
     public synchronized List<InetAddress> getKnownNodes() {
+        applyLinkChanges();
         List<InetAddress> result = new ArrayList<>(Arrays.asList(indexToNode));
         result.addAll(nodesToAdd);
 
@@ -166,30 +417,125 @@ public class OverlayRoutingModel {
     }
 
     /**
-     * Known Neighbors getter. Returns an array of all the nodes except self.
+     * Known Neighbors getter. Returns an array of all the nodes that we have a
+     * link to.
      */
     public synchronized List<InetAddress> getKnownNeighbors() {
-        List<InetAddress> result = new ArrayList<>();
+        applyLinkChanges();
+        return new ArrayList<>(neighbors);
+    }
 
-        for (InetAddress addr : indexToNode) {
-            if (!addr.equals(selfAddress)) {
-                result.add(addr);
-            }
+    public synchronized boolean isNeighbor(InetAddress addr) {
+        applyLinkChanges();
+        return neighbors.contains(addr);
+    }
+
+    /**
+     * The metric of the link between a and b as of the last update, or NO_EDGE
+     * if there isn't one.
+     */
+    public synchronized double getLinkMetric(InetAddress a, InetAddress b) {
+        applyLinkChanges();
+        Integer i = nodeToIndex.get(a);
+        Integer j = nodeToIndex.get(b);
+        if (i == null || j == null || i.equals(j))
+            return NO_EDGE;
+
+        return edgeWeight(i, j);
+    }
+
+    /**
+     * How many links the given node has as of the last update.
+     */
+    public synchronized int getDegree(InetAddress addr) {
+        applyLinkChanges();
+        Integer i = nodeToIndex.get(addr);
+        if (i == null)
+            return 0;
+
+        int degree = 0;
+        for (int j = 0; j < metrics.length; j++) {
+            if (j != i && edgeWeight(i, j) > NO_EDGE)
+                degree++;
         }
-        result.addAll(nodesToAdd);
+        return degree;
+    }
 
+    public InetAddress getSelfAddress() {
+        return selfAddress;
+    }
+
+    /**
+     * The link state database as of the last update: for every node that has
+     * reported its links, what it reported (including ourselves).
+     */
+    public synchronized List<TopologyUpdate> getLinkStateDatabase() {
+        List<TopologyUpdate> result = new ArrayList<>();
+        for (int j = 0; j < indexToNode.length; j++) {
+            if (indexToNode[j] == null || !hasReported(j))
+                continue;
+
+            TopologyUpdate update = new TopologyUpdate();
+            update.src = indexToNode[j];
+            for (int i = 0; i < indexToNode.length; i++) {
+                if (indexToNode[i] != null && metrics[i][j] != NO_EDGE)
+                    update.metrics.put(indexToNode[i], metrics[i][j]);
+            }
+            result.add(update);
+        }
         return result;
     }
 
-    public synchronized InetAddress getSelfAddress() {
-        return selfAddress;
+    /**
+     * Start from a link state database saved by an earlier run, so that there
+     * are routes (through our old neighbors) before the first round of
+     * updates. What we used to report ourselves is left out, our links have
+     * to come back up first. Until we report again, the other end of a link
+     * to us is taken at its word.
+     */
+    public synchronized void seed(List<TopologyUpdate> updates) {
+        List<TopologyUpdate> others = new ArrayList<>();
+        for (TopologyUpdate update : updates) {
+            if (!update.src.equals(selfAddress))
+                others.add(update);
+        }
+        update(others);
     }
 
     private void clearMatrix() {
-        // Fill metrics with default values
+        // Nobody has told us about any links yet
         for (int i = 0; i < metrics.length; i++) {
             for (int j = 0; j < metrics.length; j++) {
-                metrics[i][j] = DEFAULT_METRIC;
+                metrics[i][j] = NO_EDGE;
+            }
+        }
+    }
+
+    private void expireDeparted(long now) {
+        Iterator<Long> times = departed.values().iterator();
+        while (times.hasNext()) {
+            if (now - times.next() > DEPARTED_HOLD)
+                times.remove();
+        }
+    }
+
+    private void addGraphNode(InetAddress addr) {
+        if (!nodeToIndex.containsKey(addr) && !nodesToAdd.contains(addr))
+            nodesToAdd.add(addr);
+    }
+
+    /**
+     * Drop every node that isn't linked to us and that we had no route to
+     * after the last update. Otherwise nodes that left the overlay would
+     * stick around forever.
+     */
+    private void pruneUnreachable() {
+        for (int i = 0; i < indexToNode.length; i++) {
+            InetAddress addr = indexToNode[i];
+            if (addr != null && !addr.equals(selfAddress) && !neighbors.contains(addr)
+                    && !spTable.containsKey(addr)) {
+                indexToNode[i] = null;
+                nodeToIndex.remove(addr);
             }
         }
     }
@@ -219,21 +565,22 @@ public class OverlayRoutingModel {
             }
         }
 
-        // Create the new metrics matrix
+        // Create the new metrics matrix, the rows and columns of the new
+        // nodes start out as NO_EDGE
         double[][] newMetrics = new double[newSize][newSize];
 
         // Populate the new matrix with the pertinent old metrics -- TODO: Why
         // are we doing this? Do we want stale values to carry over if for some
         // reason we didn't receive fresh ones in the last update?
-        for (int i = 0; i < newSize; i++) {
-            for (int j = 0; j < newSize; j++) {
-                if (j >= newIndexToNode.size() || i >= newIndexToNode.size()) {
-                    newMetrics[i][j] = DEFAULT_METRIC;
-                } else {
-                    newMetrics[i][j] = metrics[nodeToIndex.get(newIndexToNode.get(i))][nodeToIndex
-                            .get(newIndexToNode.get(j))];
-                }
-            }
+        int kept = newIndexToNode.size();
+        int[] oldIndex = new int[kept];
+        for (int i = 0; i < kept; i++)
+            oldIndex[i] = nodeToIndex.get(newIndexToNode.get(i));
+
+        for (int i = 0; i < kept; i++) {
+            double[] oldRow = metrics[oldIndex[i]];
+            for (int j = 0; j < kept; j++)
+                newMetrics[i][j] = oldRow[oldIndex[j]];
         }
 
         // Assign indexes to the new nodes
@@ -250,96 +597,240 @@ public class OverlayRoutingModel {
     }
 
     /**
-     * Build the tree with prim's algorithm
+     * Pull the links out of the matrix. Every pair of nodes is looked at once,
+     * and each node's neighbors come out in index order.
      */
-    private void buildMst() {
-        Map<InetAddress, TreeNode> nodesInTree = new HashMap<InetAddress, TreeNode>();
-        Queue<Edge> edges = new PriorityQueue<Edge>();
-
-        // Initialize with ourself
-        InetAddress addr;
-        TreeNode node = new TreeNode(selfAddress);
-        edges.add(new Edge(node, node, 1.));
-
-        // While there are more edges in the queue, examine them one at a time
-        do {
-            Edge nextEdge = edges.remove();
-            node = nextEdge.dest;
-            addr = node.address;
-
-            // We already have an edge to this node, continue
-            if (nodesInTree.containsKey(addr))
-                continue;
+    private void buildAdjacency() {
+        int n = indexToNode.length;
+        int[] degree = new int[n];
+        int[] ends = new int[16];
+        double[] weights = new double[8];
+        int links = 0;
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double weight = edgeWeight(i, j);
+                if (weight <= NO_EDGE)
+                    continue;
+
+                if (links == weights.length) {
+                    ends = Arrays.copyOf(ends, 4 * links);
+                    weights = Arrays.copyOf(weights, 2 * links);
+                }
+                ends[2 * links] = i;
+                ends[2 * links + 1] = j;
+                weights[links++] = weight;
+                degree[i]++;
+                degree[j]++;
+            }
+        }
+
+        adjacency = new int[n][];
+        adjacencyWeights = new double[n][];
+        for (int i = 0; i < n; i++) {
+            adjacency[i] = new int[degree[i]];
+            adjacencyWeights[i] = new double[degree[i]];
+            degree[i] = 0;
+        }
+        for (int k = 0; k < links; k++) {
+            int i = ends[2 * k];
+            int j = ends[2 * k + 1];
+            adjacency[i][degree[i]] = j;
+            adjacencyWeights[i][degree[i]++] = weights[k];
+            adjacency[j][degree[j]] = i;
+            adjacencyWeights[j][degree[j]++] = weights[k];
+        }
+    }
 
-            // Add the edge to the tree (The if statement is needed for the case
-            // of the first node, which has no parent in the nodesInTree).
-            if (nodesInTree.containsKey(nextEdge.src.address)) {
-                nodesInTree.get(nextEdge.src.address).children.add(node);
+    /**
+     * Build the tree with prim's algorithm. Nodes join the tree after their
+     * parent, so the first hop towards each one (which is what the forwarding
+     * table needs) can be filled in as they go.
+     */
+    private void buildMst() {
+        int n = indexToNode.length;
+        int self = nodeToIndex.get(selfAddress);
+        double[] cost = new double[n]; // cheapest link into the tree so far
+        int[] parent = new int[n];
+        boolean[] inTree = new boolean[n];
+        int[] joined = new int[n];
+        int count = 0;
+        IndexedMinHeap heap = new IndexedMinHeap(n, cost);
+
+        Arrays.fill(cost, Double.POSITIVE_INFINITY);
+        cost[self] = 0;
+        heap.insert(self);
+
+        while (!heap.isEmpty()) {
+            int u = heap.removeMin();
+            inTree[u] = true;
+            joined[count++] = u;
+
+            for (int k = 0; k < adjacency[u].length; k++) {
+                int v = adjacency[u][k];
+                double weight = adjacencyWeights[u][k];
+                if (!inTree[v] && weight < cost[v]) {
+                    cost[v] = weight;
+                    parent[v] = u;
+                    heap.insertOrDecrease(v);
+                }
             }
+        }
 
-            // Add the node to the set
-            nodesInTree.put(addr, node);
+        TreeNode[] treeNodes = new TreeNode[n];
+        int[] firstHop = new int[n];
+        Map<InetAddress, InetAddress> fTable = new HashMap<InetAddress, InetAddress>();
 
-            /** Debug stuff **/
-            if (nodeToIndex.get(addr) == null) {
-                System.out.println("\n\n\nI am node: " + selfAddress.toString());
-                System.out.println("I failed on this address:" + addr.toString());
-                System.out.println("I know about these nodes");
-                for (int i = 0; i < indexToNode.length; i++)
-                    System.out.println(i + ": " + indexToNode[i].toString());
+        treeNodes[self] = new TreeNode(selfAddress);
+        for (int k = 1; k < count; k++) {
+            int v = joined[k];
+            treeNodes[v] = new TreeNode(indexToNode[v]);
+            treeNodes[parent[v]].children.add(treeNodes[v]);
 
-                System.out.println("\n\n");
-            }
+            firstHop[v] = (parent[v] == self) ? v : firstHop[parent[v]];
+            fTable.put(indexToNode[v], indexToNode[firstHop[v]]);
+        }
+
+        this.root = treeNodes[self];
+        this.fTable = fTable;
+    }
 
-            // Add all of this new node's edges to the queue
-            int index = nodeToIndex.get(addr);
-            for (int i = 0; i < metrics.length; i++) {
-                // If this is a valid edge to a new node, add it to the queue
-                if (!nodesInTree.containsKey(indexToNode[i]) && metrics[index][i] > 0)
-                    edges.add(new Edge(node, new TreeNode(indexToNode[i]), metrics[index][i]));
+    /**
+     * Build the shortest path forwarding table with Dijkstra's algorithm. The
+     * heap holds node indexes so that we don't allocate anything per edge.
+     */
+    private void buildShortestPaths() {
+        int n = indexToNode.length;
+        int self = nodeToIndex.get(selfAddress);
+        double[] dist = new double[n];
+        int[] firstHop = new int[n];
+        IndexedMinHeap heap = new IndexedMinHeap(n, dist);
+
+        for (int i = 0; i < n; i++) {
+            dist[i] = Double.POSITIVE_INFINITY;
+            firstHop[i] = -1;
+        }
+        dist[self] = 0;
+        heap.insert(self);
+
+        while (!heap.isEmpty()) {
+            int u = heap.removeMin();
+
+            for (int k = 0; k < adjacency[u].length; k++) {
+                int v = adjacency[u][k];
+                double alt = dist[u] + adjacencyWeights[u][k];
+                if (alt < dist[v]) {
+                    dist[v] = alt;
+                    firstHop[v] = (u == self) ? v : firstHop[u];
+                    heap.insertOrDecrease(v);
+                }
             }
+        }
 
-        } while (!edges.isEmpty());
+        Map<InetAddress, InetAddress> spTable = new HashMap<InetAddress, InetAddress>();
+        for (int i = 0; i < n; i++) {
+            if (firstHop[i] != -1)
+                spTable.put(indexToNode[i], indexToNode[firstHop[i]]);
+        }
+        this.spTable = spTable;
 
-        this.root = nodesInTree.get(selfAddress);
+        buildMultipathTable(self, dist);
     }
 
     /**
-     * Use the MST to build a forwarding table
+     * Find the near-equal cost next hops for every destination. Nodes are
+     * visited in order of distance so that every node's candidate hops are
+     * final before anything downstream of it looks at them. A hop is only kept
+     * if the rest of the path from it is strictly shorter than our own
+     * distance, which keeps hop by hop forwarding loop free.
      */
-    private void constructForwardingTable() {
-        fTable = new HashMap<InetAddress, InetAddress>();
+    private void buildMultipathTable(int self, double[] dist) {
+        int n = indexToNode.length;
+        int[][] hops = new int[n][MAX_EQUAL_COST_PATHS];
+        double[][] hopCosts = new double[n][MAX_EQUAL_COST_PATHS];
+        int[] hopCounts = new int[n];
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> Double.compare(dist[x], dist[y]));
+
+        for (int v : order) {
+            if (v == self || dist[v] == Double.POSITIVE_INFINITY)
+                continue;
 
-        for (int i = 0; i < indexToNode.length; i++) {
-            for (TreeNode nodeInterface : root.children) {
-                // If this interface has a path to reach the node, update the
-                // table
-                if (hasPathToNode(nodeInterface, indexToNode[i])) {
-                    fTable.put(indexToNode[i], nodeInterface.address);
-                    break;
+            double limit = dist[v] * (1 + EQUAL_COST_TOLERANCE);
+
+            // The direct link is a candidate
+            double direct = edgeWeight(self, v);
+            if (direct > NO_EDGE && direct <= limit)
+                addHop(hops[v], hopCosts[v], hopCounts, v, v, direct);
+
+            // As is every hop of any closer node that has an edge to v
+            for (int e = 0; e < adjacency[v].length; e++) {
+                int u = adjacency[v][e];
+                if (u == self || dist[u] >= dist[v])
+                    continue;
+
+                double weight = adjacencyWeights[v][e];
+
+                for (int k = 0; k < hopCounts[u]; k++) {
+                    int hop = hops[u][k];
+                    double cost = hopCosts[u][k] + weight;
+                    if (cost <= limit && cost - edgeWeight(self, hop) < dist[v])
+                        addHop(hops[v], hopCosts[v], hopCounts, v, hop, cost);
                 }
             }
         }
+
+        Map<InetAddress, List<InetAddress>> mpTable = new HashMap<>();
+        for (int v = 0; v < n; v++) {
+            if (hopCounts[v] == 0)
+                continue;
+
+            List<InetAddress> nextHops = new ArrayList<>();
+            for (int k = 0; k < hopCounts[v]; k++)
+                nextHops.add(indexToNode[hops[v][k]]);
+            mpTable.put(indexToNode[v], Collections.unmodifiableList(nextHops));
+        }
+        this.mpTable = mpTable;
     }
 
     /**
-     * Helper method for constructForwardingTable()
-     * 
-     * Recursively search the MST to determine if the given src has a downstream
-     * path to dest
+     * Helper method for buildMultipathTable(). Keeps the hops sorted by cost,
+     * keeps only the cheapest cost per hop and drops the most expensive hop
+     * when there are too many.
      */
-    private boolean hasPathToNode(TreeNode src, InetAddress dest) {
-        // Base case, is src the node we are looking for
-        if (src.address.equals(dest))
-            return true;
+    private void addHop(int[] hops, double[] costs, int[] counts, int v, int hop, double cost) {
+        int count = counts[v];
+
+        for (int k = 0; k < count; k++) {
+            if (hops[k] == hop) {
+                if (costs[k] <= cost)
+                    return;
+                // remove it, it gets re-inserted below at the lower cost
+                System.arraycopy(hops, k + 1, hops, k, count - k - 1);
+                System.arraycopy(costs, k + 1, costs, k, count - k - 1);
+                count--;
+                break;
+            }
+        }
 
-        // Recursively search all children
-        for (TreeNode child : src.children) {
-            if (hasPathToNode(child, dest))
-                return true;
+        if (count == hops.length) {
+            if (costs[count - 1] <= cost)
+                return;
+            count--;
         }
 
-        return false;
+        int k = count;
+        while (k > 0 && costs[k - 1] > cost) {
+            hops[k] = hops[k - 1];
+            costs[k] = costs[k - 1];
+            k--;
+        }
+        hops[k] = hop;
+        costs[k] = cost;
+        counts[v] = count + 1;
     }
 
     /**
@@ -358,23 +849,29 @@ public class OverlayRoutingModel {
         metrics[col][row] = value;
     }
     
-    /*
-     * Take the average of the two edges between each node.
+    /**
+     * The undirected weight of the link between i and j: the average of what
+     * both ends reported. A link that only one end reported only counts if
+     * the other end hasn't sent us an update yet (i.e. the link is new), so
+     * that a stale update from a node that is gone can't keep its links
+     * alive.
      */
-    private void undirectGraph() {
-        for (int i = 0; i < nodeToIndex.size(); i++) {
-            for (int j = i + 1; j < nodeToIndex.size(); j++) {
-                if (metrics[i][j] == DEFAULT_METRIC) {
-                    metrics[i][j] = metrics[j][i];
-                } else if (metrics[j][i] == DEFAULT_METRIC) {
-                    metrics[j][i] = metrics[i][j];
-                } else {
-                    double avg = (metrics[i][j] + metrics[j][i]) / 2.0;
-                    metrics[i][j] = avg;
-                    metrics[j][i] = avg;
-                }
-            }
-        }
+    private double edgeWeight(int i, int j) {
+        double fromJ = metrics[i][j];
+        double fromI = metrics[j][i];
+
+        if (fromJ > NO_EDGE && fromI > NO_EDGE)
+            return (fromJ + fromI) / 2.0;
+        if (fromJ > NO_EDGE && !hasReported(i))
+            return fromJ;
+        if (fromI > NO_EDGE && !hasReported(j))
+            return fromI;
+        return NO_EDGE;
+    }
+
+    // Every update lists its source with a metric of -1
+    private boolean hasReported(int i) {
+        return metrics[i][i] < NO_EDGE;
     }
 
     /* ------------------------ Static Inner Classes ----------------------- */
@@ -408,40 +905,104 @@ public class OverlayRoutingModel {
     }
 
     /**
-     * A class used to represent an edge between two nodes
+     * A binary min heap of node indexes keyed on an external distance array.
+     * It keeps track of where each index lives so that decrease-key is
+     * O(log n).
      */
-    private static class Edge implements Comparable<Edge> {
-        public TreeNode src;
-        public TreeNode dest;
-        public double weight;
+    private static class IndexedMinHeap {
+        private int[] heap;
+        private int[] position; // -1 if the index isn't in the heap
+        private double[] keys;
+        private int size;
+
+        public IndexedMinHeap(int capacity, double[] keys) {
+            this.heap = new int[capacity];
+            this.position = new int[capacity];
+            this.keys = keys;
+            Arrays.fill(position, -1);
+        }
 
-        public Edge(TreeNode src, TreeNode dest, double weight) {
-            this.src = src;
-            this.dest = dest;
-            this.weight = weight;
+        public boolean isEmpty() {
+            return size == 0;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (o instanceof Edge) {
-                Edge e = (Edge) o;
-                return dest.equals(e.dest) && src.equals(e.src) && weight == e.weight;
+        public void insert(int index) {
+            heap[size] = index;
+            position[index] = size;
+            siftUp(size++);
+        }
+
+        public void insertOrDecrease(int index) {
+            if (position[index] == -1)
+                insert(index);
+            else
+                siftUp(position[index]);
+        }
+
+        public int removeMin() {
+            int min = heap[0];
+            position[min] = -1;
+            if (--size > 0) {
+                heap[0] = heap[size];
+                position[heap[0]] = 0;
+                siftDown(0);
             }
-            return false;
+            return min;
         }
 
-        @Override
-        public int compareTo(Edge e) {
-            double diff = weight - e.weight;
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (keys[heap[parent]] <= keys[heap[i]])
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && keys[heap[left]] < keys[heap[smallest]])
+                    smallest = left;
+                if (right < size && keys[heap[right]] < keys[heap[smallest]])
+                    smallest = right;
+                if (smallest == i)
+                    return;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+            position[heap[i]] = i;
+            position[heap[j]] = j;
+        }
+    }
+
+    /**
+     * A link to a node coming up or going down
+     */
+    private static class MembershipEvent implements EventBus.Event<OverlayRoutingModelListener> {
+        private InetAddress addr;
+        private boolean added;
 
-            if (diff > 0.)
-                return 1;
-            if (diff < 0.)
-                return -1;
+        private MembershipEvent(InetAddress addr, boolean added) {
+            this.addr = addr;
+            this.added = added;
+        }
 
-            if (src.compareTo(e.src) != 0)
-                return src.compareTo(e.src);
-            return dest.compareTo(e.dest);
+        @Override
+        public void deliverTo(OverlayRoutingModelListener listener) {
+            if (added)
+                listener.nodeAddCallback(addr);
+            else
+                listener.nodeDeleteCallback(addr);
         }
     }
 }
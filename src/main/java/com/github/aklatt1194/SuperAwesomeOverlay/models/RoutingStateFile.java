@@ -0,0 +1,217 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.models;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+
+/**
+ * Keeps a copy of the routing state (the link state database and who our
+ * neighbors were) on disk, so that a node that restarts can go straight back
+ * to its old neighbors and has routes before its first round of updates,
+ * instead of starting out knowing only itself.
+ *
+ * The file is rewritten every SAVE_PERIOD and when the node shuts down. A
+ * snapshot older than MAX_AGE, or one that some other node wrote, is ignored.
+ */
+public class RoutingStateFile {
+    public static final String DEFAULT_NAME = "routing-state";
+    public static final long SAVE_PERIOD = 30 * 1000;
+    public static final long MAX_AGE = 30 * 60 * 1000;
+
+    private static final int VERSION = 1;
+
+    private Path path;
+    private ScheduledExecutorService saver;
+
+    /**
+     * The routing state as of some earlier run
+     */
+    public static class Snapshot {
+        public long savedAt;
+        public InetAddress self;
+        public List<InetAddress> neighbors;
+        public List<TopologyUpdate> updates;
+
+        public Snapshot() {
+            neighbors = new ArrayList<>();
+            updates = new ArrayList<>();
+        }
+    }
+
+    public RoutingStateFile() {
+        this(DEFAULT_NAME);
+    }
+
+    public RoutingStateFile(String path) {
+        this.path = Paths.get(path);
+    }
+
+    /**
+     * Save the state of model every SAVE_PERIOD from now on
+     */
+    public synchronized void startSaving(final OverlayRoutingModel model) {
+        if (saver != null)
+            return;
+
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        saver.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                save(model);
+            }
+        }, SAVE_PERIOD, SAVE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop saving periodically and save one last time
+     */
+    public synchronized void shutdown(OverlayRoutingModel model) {
+        if (saver != null)
+            saver.shutdown();
+        save(model);
+    }
+
+    /**
+     * Write out the current state of model. The old file is only replaced once
+     * the new one is complete.
+     */
+    public synchronized void save(OverlayRoutingModel model) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.savedAt = System.currentTimeMillis();
+        snapshot.self = model.getSelfAddress();
+        snapshot.neighbors = model.getKnownNeighbors();
+        snapshot.updates = model.getLinkStateDatabase();
+
+        try {
+            Path tmp = Paths.get(path + ".tmp");
+            Files.write(tmp, serialize(snapshot));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to save the routing state to " + path);
+        }
+    }
+
+    /**
+     * Read back what an earlier run of the node at self saved, or return null
+     * if there is nothing (recent enough) to go on
+     */
+    public Snapshot load(InetAddress self) {
+        Snapshot snapshot;
+        try {
+            snapshot = deserialize(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Unable to read the routing state from " + path);
+            return null;
+        }
+
+        if (snapshot == null) {
+            System.err.println("DEBUG: Ignoring unreadable routing state in " + path);
+            return null;
+        }
+        if (!self.equals(snapshot.self)) {
+            System.err.println("DEBUG: Ignoring routing state saved by " + snapshot.self);
+            return null;
+        }
+        if (System.currentTimeMillis() - snapshot.savedAt > MAX_AGE)
+            return null;
+
+        return snapshot;
+    }
+
+    /**
+     * Version, time, our address, the neighbors, then each update as it would
+     * have been sent (prefixed by its length)
+     */
+    protected static byte[] serialize(Snapshot snapshot) {
+        List<byte[]> updates = new ArrayList<>();
+        int length = 4 + 8 + IPUtils.serializedLength(snapshot.self) + 4 + 4;
+        for (InetAddress addr : snapshot.neighbors)
+            length += IPUtils.serializedLength(addr);
+        for (TopologyUpdate update : snapshot.updates) {
+            byte[] bytes = update.serialize();
+            updates.add(bytes);
+            length += 4 + bytes.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.putInt(VERSION);
+        buf.putLong(snapshot.savedAt);
+        IPUtils.serializeIPAddr(snapshot.self, buf);
+
+        buf.putInt(snapshot.neighbors.size());
+        for (InetAddress addr : snapshot.neighbors)
+            IPUtils.serializeIPAddr(addr, buf);
+
+        buf.putInt(updates.size());
+        for (byte[] bytes : updates) {
+            buf.putInt(bytes.length);
+            buf.put(bytes);
+        }
+        return buf.array();
+    }
+
+    /**
+     * The snapshot in the given bytes, or null if they don't hold one
+     */
+    protected static Snapshot deserialize(byte[] in) {
+        ByteBuffer buf = ByteBuffer.wrap(in);
+        Snapshot snapshot = new Snapshot();
+
+        try {
+            if (buf.getInt() != VERSION)
+                return null;
+            snapshot.savedAt = buf.getLong();
+            snapshot.self = IPUtils.deserializeIPAddr(buf);
+
+            int neighbors = buf.getInt();
+            for (int i = 0; i < neighbors; i++)
+                snapshot.neighbors.add(IPUtils.deserializeIPAddr(buf));
+
+            int updates = buf.getInt();
+            for (int i = 0; i < updates; i++) {
+                int length = buf.getInt();
+                if (length < 0 || length > buf.remaining())
+                    return null;
+                byte[] bytes = new byte[length];
+                buf.get(bytes);
+
+                TopologyUpdate update = TopologyUpdate.deserialize(bytes);
+                if (update == null || update.src == null)
+                    return null;
+                snapshot.updates.add(update);
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException
+                | IllegalArgumentException e) {
+            return null;
+        }
+
+        if (snapshot.self == null || snapshot.neighbors.contains(null) || buf.hasRemaining())
+            return null;
+        return snapshot;
+    }
+}
@@ -4,11 +4,19 @@ import java.io.IOException;
 
 public class BaseLayerSocket extends SimpleSocket {
     private static final int DEFAULT_TTL = 1;
-    
+
+    public BaseLayerSocket() {
+        super();
+    }
+
+    public BaseLayerSocket(NetworkInterface networkInterface) {
+        super(networkInterface);
+    }
+
     @Override
     public void send(SimpleDatagramPacket packet) throws IOException {
         packet.flags |= SimpleDatagramPacket.BASELAYER;
         packet.ttl = DEFAULT_TTL;
-        NetworkInterface.getInstance().send(packet);        
+        networkInterface.send(packet);        
     }
 }
\ No newline at end of file
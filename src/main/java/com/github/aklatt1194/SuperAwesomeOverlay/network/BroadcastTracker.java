@@ -0,0 +1,268 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+
+/**
+ * Keeps track of the overlay broadcasts we have seen from every origin. It
+ * filters out duplicates with a sliding window over the sequence numbers, holds
+ * on to out of order packets so that they can be delivered in order, and keeps
+ * a small cache of recent packets so that we can answer NACKs from our
+ * neighbors.
+ */
+class BroadcastTracker {
+    public static final byte NACK = 0x1;
+
+    protected static final int WINDOW_SIZE = 64; // bits in the window mask
+    protected static final int CACHE_SIZE = 128; // packets kept per origin for repair
+    protected static final int MAX_NACK_SEQS = 32;
+    protected static final long RESYNC_GAP = 4096; // a jump this big means the origin restarted
+    protected static final long NACK_INTERVAL = 250;
+    protected static final long REORDER_TIMEOUT = 2000;
+
+    private Map<InetAddress, OriginState> origins;
+
+    protected BroadcastTracker() {
+        origins = new HashMap<>();
+    }
+
+    /**
+     * Record a broadcast that originated here so that we can repair it for our
+     * neighbors if they ask.
+     */
+    protected synchronized void sent(SimpleDatagramPacket packet) {
+        getState(packet.getSource()).cache.put(packet.getSequenceNumber(), packet.copy());
+    }
+
+    /**
+     * Process a broadcast that was received from lastHop.
+     *
+     * @return null if the packet is a duplicate (it shouldn't be delivered or
+     *         forwarded), otherwise the list of packets that are now ready to
+     *         be delivered in order (possibly empty).
+     */
+    protected synchronized List<SimpleDatagramPacket> receive(SimpleDatagramPacket packet,
+            InetAddress lastHop, List<Nack> nacks, long now) {
+        OriginState state = origins.get(packet.getSource());
+        long seq = packet.getSequenceNumber();
+
+        if (state == null || seq - state.highest > RESYNC_GAP) {
+            // first packet from this origin (or it restarted), start a new window
+            state = new OriginState(seq);
+            origins.put(packet.getSource(), state);
+        } else if (!state.markSeen(seq)) {
+            return null;
+        }
+
+        // the packet itself is forwarded with its ttl counted down, a repair
+        // goes out with the ttl it came in with
+        state.cache.put(seq, packet.copy());
+        state.repairFrom = lastHop;
+
+        List<SimpleDatagramPacket> deliverable = new ArrayList<>();
+        if (seq < state.nextDeliver) {
+            // we already gave up on this one and moved on, deliver it late
+            deliverable.add(packet);
+        } else if (seq == state.nextDeliver) {
+            deliverable.add(packet);
+            state.nextDeliver++;
+            state.drain(deliverable);
+        } else {
+            state.held.put(seq, packet);
+            if (state.gapSince == 0) {
+                state.gapSince = now;
+                state.addNack(packet.getSource(), nacks, now);
+            }
+            state.slide(deliverable, now);
+        }
+
+        return deliverable;
+    }
+
+    /**
+     * Give up on any gaps that have been open longer than the reorder timeout
+     * and queue up NACKs for the gaps that are still worth repairing.
+     *
+     * @return the packets that can be delivered now that we have skipped ahead
+     */
+    protected synchronized List<SimpleDatagramPacket> expire(List<Nack> nacks, long now) {
+        List<SimpleDatagramPacket> deliverable = new ArrayList<>();
+
+        for (Map.Entry<InetAddress, OriginState> entry : origins.entrySet()) {
+            OriginState state = entry.getValue();
+            if (state.held.isEmpty())
+                continue;
+
+            if (now - state.gapSince > REORDER_TIMEOUT) {
+                state.skip(deliverable, now);
+            } else if (now - state.lastNack >= NACK_INTERVAL) {
+                state.addNack(entry.getKey(), nacks, now);
+            }
+        }
+
+        return deliverable;
+    }
+
+    /**
+     * Look up a recent broadcast so that it can be resent to a neighbor
+     */
+    protected synchronized SimpleDatagramPacket lookup(InetAddress origin, long seq) {
+        OriginState state = origins.get(origin);
+        return state == null ? null : state.cache.get(seq);
+    }
+
+    private OriginState getState(InetAddress origin) {
+        OriginState state = origins.get(origin);
+        if (state == null) {
+            state = new OriginState(0);
+            origins.put(origin, state);
+        }
+        return state;
+    }
+
+    /**
+     * A request for a neighbor to resend the given broadcasts
+     */
+    protected static class Nack {
+        protected InetAddress target;
+        protected InetAddress origin;
+        protected List<Long> seqs;
+
+        protected Nack(InetAddress target, InetAddress origin, List<Long> seqs) {
+            this.target = target;
+            this.origin = origin;
+            this.seqs = seqs;
+        }
+
+        protected byte[] serialize() {
+            ByteBuffer buf = ByteBuffer.allocate(1 + IPUtils.serializedLength(origin) + 4 + 8
+                    * seqs.size());
+            buf.put(NACK);
+            IPUtils.serializeIPAddr(origin, buf);
+            buf.putInt(seqs.size());
+            for (long seq : seqs)
+                buf.putLong(seq);
+            return buf.array();
+        }
+
+        // assumes the type byte has already been read off of the buffer.
+        // Throws an IllegalArgumentException if the NACK is malformed.
+        protected static Nack deserialize(InetAddress target, ByteBuffer buf) {
+            InetAddress origin = IPUtils.deserializeIPAddr(buf);
+            if (origin == null || buf.remaining() < 4)
+                throw new IllegalArgumentException("Truncated NACK");
+
+            int count = buf.getInt();
+            if (count < 0 || count > buf.remaining() / 8)
+                throw new IllegalArgumentException("Malformed NACK count: " + count);
+            count = Math.min(count, MAX_NACK_SEQS);
+            List<Long> seqs = new ArrayList<>();
+            for (int i = 0; i < count; i++)
+                seqs.add(buf.getLong());
+            return new Nack(target, origin, seqs);
+        }
+    }
+
+    /**
+     * Everything we know about the broadcasts from a single origin
+     */
+    private static class OriginState {
+        private long highest; // highest sequence number seen
+        private long mask; // bit i is set if we have seen highest - i
+        private long nextDeliver; // the next sequence number to hand to the socket
+        private long gapSince; // when the oldest open gap was noticed (0 if none)
+        private long lastNack;
+        private InetAddress repairFrom; // the neighbor most likely to have the missing packets
+        private TreeMap<Long, SimpleDatagramPacket> held;
+        private Map<Long, SimpleDatagramPacket> cache;
+
+        @SuppressWarnings("serial")
+        private OriginState(long seq) {
+            highest = seq;
+            mask = 1;
+            nextDeliver = seq;
+            held = new TreeMap<>();
+            cache = new LinkedHashMap<Long, SimpleDatagramPacket>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, SimpleDatagramPacket> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+        }
+
+        // Mark seq as seen, returns false if it was a duplicate (or too old to tell)
+        private boolean markSeen(long seq) {
+            if (seq > highest) {
+                long shift = seq - highest;
+                mask = shift >= WINDOW_SIZE ? 1 : (mask << shift) | 1;
+                highest = seq;
+                return true;
+            }
+
+            long offset = highest - seq;
+            if (offset >= WINDOW_SIZE || (mask & (1L << offset)) != 0)
+                return false;
+
+            mask |= 1L << offset;
+            return true;
+        }
+
+        // Move any held packets that are now in order onto the deliverable list
+        private void drain(List<SimpleDatagramPacket> deliverable) {
+            SimpleDatagramPacket next;
+            while ((next = held.remove(nextDeliver)) != null) {
+                deliverable.add(next);
+                nextDeliver++;
+            }
+            if (held.isEmpty())
+                gapSince = 0;
+        }
+
+        // Give up on the current gap and jump ahead to the next held packet
+        private void skip(List<SimpleDatagramPacket> deliverable, long now) {
+            nextDeliver = held.firstKey();
+            drain(deliverable);
+            if (!held.isEmpty())
+                gapSince = now;
+        }
+
+        // Give up on anything that has fallen out of the window. We couldn't
+        // tell a repair for it from a duplicate, so there is no point in
+        // waiting for one. This also keeps at most WINDOW_SIZE packets held.
+        private void slide(List<SimpleDatagramPacket> deliverable, long now) {
+            long oldest = highest - WINDOW_SIZE + 1;
+            if (nextDeliver >= oldest)
+                return;
+
+            SortedMap<Long, SimpleDatagramPacket> stale = held.headMap(oldest);
+            deliverable.addAll(stale.values());
+            stale.clear();
+            nextDeliver = oldest;
+            drain(deliverable);
+            if (!held.isEmpty())
+                gapSince = now;
+        }
+
+        private void addNack(InetAddress origin, List<Nack> nacks, long now) {
+            List<Long> missing = new ArrayList<>();
+            long first = Math.max(nextDeliver, highest - WINDOW_SIZE + 1);
+            for (long seq = first; seq < highest && missing.size() < MAX_NACK_SEQS; seq++) {
+                if (!held.containsKey(seq))
+                    missing.add(seq);
+            }
+
+            lastNack = now;
+            if (!missing.isEmpty() && repairFrom != null)
+                nacks.add(new Nack(repairFrom, origin, missing));
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+
+/**
+ * Makes links look like something other than what they are, e.g. gives links
+ * between nodes on the same machine the latency and loss of real ones. See
+ * NetworkInterface.setLinkConditioner().
+ */
+public interface LinkConditioner {
+    /**
+     * How long (ms) a packet from one node to another is held up. Should be
+     * the same for every packet of a link, or packets get reordered.
+     */
+    public long getDelay(InetAddress from, InetAddress to);
+
+    /**
+     * True if a packet from one node to another is lost
+     */
+    public boolean drop(InetAddress from, InetAddress to);
+}
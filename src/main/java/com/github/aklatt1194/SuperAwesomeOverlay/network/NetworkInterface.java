@@ -4,163 +4,360 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.BroadcastTracker.Nack;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Counter;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Gauge;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.GaugeFamily;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Histogram;
 
 public class NetworkInterface implements Runnable {
     public static final String[] NODES_BOOTSTRAP = { "ec2-54-172-69-181.compute-1.amazonaws.com",
             "ec2-54-77-160-172.eu-west-1.compute.amazonaws.com" };
-    private static final int LINK_PORT = 3333;
+    protected static final int LINK_PORT = 3333;
+    private static final long ROUTER_TICK = 100; // how often the router checks for stalled broadcasts
+    private static final int WRITE_BUFFER_SIZE = 2 * SimpleDatagramPacket.MAX_PACKET_LENGTH;
+
+    // Small packets are held for up to the flush delay so that they can go
+    // out in a single write, unless enough bytes pile up to flush right away.
+    public static final long DEFAULT_FLUSH_DELAY = 2; // ms
+    public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024; // bytes
+
+    // Both ends of a link start with a HELLO carrying their identity, protocol
+    // version and features. A link only uses the features both ends
+    // advertised, and a node is only added to the model once its HELLO checks
+    // out.
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int FEATURE_COMPRESSION = 0x1;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 512; // bytes of payload
+
+    // Every link sends a keepalive every interval, and a link that we haven't
+    // heard anything on for the timeout is considered dead. Keepalives carry
+    // timestamps, which is how we keep track of each link's RTT.
+    public static final long DEFAULT_KEEPALIVE_INTERVAL = 2 * 1000;
+    public static final long DEFAULT_KEEPALIVE_TIMEOUT = 6 * 1000;
+
+    // At most this many connects are in flight at once, and a connect that
+    // hasn't finished by the timeout is abandoned and retried later
+    public static final int MAX_CONCURRENT_CONNECTS = 8;
+    public static final long CONNECT_TIMEOUT = 10 * 1000;
+
+    // How long a shutdown waits for queued packets to go out
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5 * 1000;
+
+    // control frame types
+    protected static final byte HELLO = 0x2;
+    private static final byte KEEPALIVE = 0x3;
+    private static final byte DISCONNECT = 0x4; // the link was dropped on purpose, don't redial
 
     private static NetworkInterface instance = null;
 
+    private InetAddress bindAddress; // null for all of them
     private OverlayRoutingModel model;
     private Map<InetAddress, SocketChannel> tcpLinkTable;
     private Map<Integer, SimpleSocket> portMap;
 
     private Selector selector;
-    private ByteBuffer readBuffer;
-
-    private BlockingQueue<ChangeRequest> pendingChangeRequests;
-    private Map<InetAddress, BlockingQueue<ByteBuffer>> pendingWrites;
+    private SelectedKeySet selectedKeys; // null if the selector wouldn't take it
+
+    private Queue<ChangeRequest> pendingChangeRequests;
+    private long changeCycle; // selector thread only
+    private Map<InetAddress, LinkWriteQueue> pendingWrites;
+    private Queue<LinkWriteQueue> scheduledFlushes;
+    private volatile long flushDelay = DEFAULT_FLUSH_DELAY;
+    private volatile int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+
+    private Map<InetAddress, Integer> linkFeatures;
+    private volatile boolean compressionEnabled = true;
+    private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    private Set<InetAddress> establishedLinks; // links whose HELLO we have accepted
+    // A HELLO (on the router thread) establishes a link and closeLink (on the
+    // selector thread) takes it down. This makes sure a link that is going
+    // away can't be established after it is gone.
+    private final Object establishLock = new Object();
+    private Map<InetAddress, Link> links; // the state of the channel in the link table
+    private Map<InetAddress, RttEstimator> rttEstimators;
+    private Map<InetAddress, ThroughputEstimator> throughputEstimators;
+    private volatile long keepaliveInterval = DEFAULT_KEEPALIVE_INTERVAL;
+    private volatile long keepaliveTimeout = DEFAULT_KEEPALIVE_TIMEOUT;
+    private long lastKeepaliveCheck;
 
     private BlockingQueue<InetAddress> potentialNodes;
+    private ReconnectScheduler reconnects;
+    private Map<SocketChannel, Link> pendingConnects; // selector thread only
+    private Map<InetAddress, InetSocketAddress> linkAddresses; // selector thread only
+    private InetSocketAddress localAddress; // what outgoing links bind to, if anything
     private BlockingQueue<InetAddress> nodesToRemove;
 
     private PacketRouter packetRouter;
+    private BroadcastTracker broadcastTracker;
+    private AtomicLong broadcastSeq;
+
+    private volatile LinkConditioner linkConditioner;
+    private volatile RedialPolicy redialPolicy;
+    private ScheduledExecutorService conditionerTimer;
+
+    private Thread selectorThread;
+    private Thread routerThread;
+    private volatile boolean running = true;
+    private volatile boolean stopping; // no new links, we are on our way out
+
+    private StatsRegistry stats;
+    private Counter packetsSent;
+    private Counter packetsReceived;
+    private Counter duplicateLinks;
+    private Counter dials;
+    private Histogram selectorLoopTime;
 
+    /**
+     * The interface that the node's own components use
+     */
     public static NetworkInterface getInstance() {
         if (instance == null)
-            instance = new NetworkInterface();
+            instance = new NetworkInterface(null, StatsRegistry.getInstance());
         return instance;
     }
 
-    private NetworkInterface() {
+    /**
+     * A separate interface, e.g. for one of several nodes running in the same
+     * process. It only listens on (and connects from) bindAddress, so that
+     * the other end can tell which node a link belongs to. Components of the
+     * node have to be handed the instance, getInstance() doesn't know about
+     * it.
+     */
+    public NetworkInterface(InetAddress bindAddress) {
+        this(bindAddress, new StatsRegistry());
+    }
+
+    private NetworkInterface(InetAddress bindAddress, StatsRegistry stats) {
+        this.bindAddress = bindAddress;
+        this.stats = stats;
     }
 
+    /**
+     * Start up and connect to the bootstrap nodes
+     */
     public void initialize(OverlayRoutingModel model) throws IOException {
+        // try to connect to any of the bootstrap nodes (hopefully at least
+        // one), and keep trying until we get through
+        List<InetAddress> bootstrap = new ArrayList<>();
+        for (String node : NODES_BOOTSTRAP) {
+            try {
+                bootstrap.add(InetAddress.getByName(node));
+            } catch (UnknownHostException e) {
+                System.err.println("Unable to resolve bootstrap node " + node);
+            }
+        }
+
+        initialize(model, bootstrap);
+    }
+
+    /**
+     * Start up and connect to the given nodes, which we keep trying to
+     * connect to for as long as we don't have a link to them
+     */
+    public void initialize(OverlayRoutingModel model, List<InetAddress> bootstrap)
+            throws IOException {
         this.model = model;
         tcpLinkTable = new ConcurrentHashMap<>();
         portMap = new ConcurrentHashMap<>();
 
         // various buffers to keep track of read/writes
-        readBuffer = ByteBuffer.allocateDirect(8192);
-        pendingChangeRequests = new LinkedBlockingQueue<>();
+        pendingChangeRequests = new ConcurrentLinkedQueue<>();
         pendingWrites = new ConcurrentHashMap<>();
+        scheduledFlushes = new ConcurrentLinkedQueue<>();
+        linkFeatures = new ConcurrentHashMap<>();
+        establishedLinks = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+        links = new ConcurrentHashMap<>();
+        rttEstimators = new ConcurrentHashMap<>();
+        throughputEstimators = new ConcurrentHashMap<>();
 
         // the main selector that we will use
         selector = SelectorProvider.provider().openSelector();
+        selectedKeys = SelectedKeySet.install(selector);
 
         // any potentially new nodes that the interface should connect to
         potentialNodes = new LinkedBlockingQueue<>();
         nodesToRemove = new LinkedBlockingQueue<>();
+        reconnects = new ReconnectScheduler(System.currentTimeMillis());
+        pendingConnects = new HashMap<>();
+        linkAddresses = new HashMap<>();
+        if (bindAddress != null)
+            localAddress = new InetSocketAddress(bindAddress, 0);
+
+        // start our broadcast sequence numbers off of the clock so that a
+        // restart looks like a jump forward rather than a bunch of duplicates
+        broadcastTracker = new BroadcastTracker();
+        broadcastSeq = new AtomicLong(System.currentTimeMillis() << 20);
+
+        registerStats();
 
         // create the serverChannel and register it with the selector
         ServerSocketChannel serverChannel = ServerSocketChannel.open();
         serverChannel.configureBlocking(false);
-        serverChannel.socket().bind(new InetSocketAddress(LINK_PORT));
+        serverChannel.socket().bind(new InetSocketAddress(bindAddress, LINK_PORT));
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
         // start the main thread and packet router thread
         packetRouter = new PacketRouter();
-        new Thread(packetRouter).start();
-        new Thread(this).start();
-
-        // try to connect to any of the bootstrap nodes (hopefully at least one)
-        for (String node : NODES_BOOTSTRAP) {
-            connectAndAdd(InetAddress.getByName(node));
+        routerThread = new Thread(packetRouter);
+        selectorThread = new Thread(this);
+        routerThread.start();
+        selectorThread.start();
+
+        for (InetAddress addr : bootstrap) {
+            reconnects.addPersistent(addr);
+            connectAndAdd(addr);
         }
     }
 
     @Override
     public void run() {
-        while (true) {
+        // Everything in here happens for every packet we send or receive, so
+        // none of it allocates. The state of a link hangs off of its
+        // selection key, and the requests to flush a link are made once per
+        // link and reused.
+        while (running) {
             try {
-                if (!pendingChangeRequests.isEmpty()) {
-                    ChangeRequest request = pendingChangeRequests.take();
-                    SocketChannel socketChannel = tcpLinkTable.get(request.addr);
-                    if (socketChannel == null) {
-                        break;
-                    }
-
-                    SelectionKey key = socketChannel.keyFor(selector);
-                    key.interestOps(request.ops);
-                }
-
-                // wait for an event
-                this.selector.select();
-
-                while (!potentialNodes.isEmpty()) {
-                    InetAddress addr = potentialNodes.poll();
-                    SocketChannel socketChannel = SocketChannel.open();
-                    socketChannel.configureBlocking(false);
-
-                    boolean result = socketChannel.connect(new InetSocketAddress(addr, LINK_PORT));
-                    if (result) {
-                        System.err.println("The node is attempting to connect to itself!");
-                        socketChannel.close();
-                    } else {
-                        socketChannel.register(selector, SelectionKey.OP_CONNECT);
-                    }
-                }
+                // wait for an event, or until the next batch or keepalive
+                // check is due
+                long timeout = flushScheduledBatches();
+                long keepaliveWait = checkKeepalives();
+                timeout = (timeout == 0) ? keepaliveWait : Math.min(timeout, keepaliveWait);
+                if (reconnects.hasPending())
+                    timeout = Math.min(timeout, ReconnectScheduler.TICK);
+                this.selector.select(timeout);
+                long woke = System.nanoTime();
+
+                processChangeRequests();
+                startConnects();
 
                 while (!nodesToRemove.isEmpty()) {
-                    InetAddress addr = nodesToRemove.poll();
-                    SocketChannel socketChannel = tcpLinkTable.remove(addr);
-
-                    if (socketChannel != null) {
-                        // get rid of any buffers that this channel may have had
-                        pendingWrites.remove(addr);
-
-                        socketChannel.keyFor(selector).cancel();
-                        try {
-                            socketChannel.close();
-                        } catch (IOException e) {
-                            System.out.println("DEBUG: exception on socket close");
-                        }
-
-                        model.deleteNode(addr);
-                    }
+                    closeLink(nodesToRemove.poll(), false);
                 }
 
-                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-                while (selectedKeys.hasNext()) {
-                    SelectionKey key = selectedKeys.next();
-                    selectedKeys.remove();
-
-                    if (!key.isValid())
-                        continue;
-
-                    if (key.isAcceptable()) {
-                        this.accept(key);
-                    } else if (key.isConnectable()) {
-                        this.connect(key);
-                    } else if (key.isReadable()) {
-                        this.read(key);
-                    } else if (key.isWritable()) {
-                        this.write(key);
+                if (selectedKeys != null) {
+                    // a key that fails mustn't leave the whole lot to be
+                    // handled again next time around
+                    try {
+                        for (int i = 0; i < selectedKeys.size(); i++)
+                            processKey(selectedKeys.get(i));
+                    } finally {
+                        selectedKeys.reset();
+                    }
+                } else {
+                    Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        processKey(key);
                     }
                 }
 
+                selectorLoopTime.record((System.nanoTime() - woke) / 1000);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
+
+        // shut down, whatever is left (including the server channel) gets
+        // closed
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    // Apply every change request that has piled up since the last select.
+    // Flushes are written right away instead of waiting for the next select
+    // to tell us the socket is writable (it nearly always is), so a packet
+    // goes out in the same cycle it woke us up in.
+    //
+    // Every link has a single request, which is only queued again once the
+    // link has been flushed, so each key is touched at most once per drain.
+    // That also means a busy link can't keep us here: once a request shows
+    // up a second time, it and everything queued behind it waits for the
+    // next cycle (which is right away, whoever queued them woke us up).
+    private void processChangeRequests() {
+        long cycle = ++changeCycle;
+
+        ChangeRequest request;
+        while ((request = pendingChangeRequests.peek()) != null && request.cycle != cycle) {
+            pendingChangeRequests.poll();
+            request.cycle = cycle;
+
+            // the link may have gone away since the request was made
+            SocketChannel socketChannel = tcpLinkTable.get(request.addr);
+            SelectionKey key = socketChannel == null ? null : socketChannel.keyFor(selector);
+            if (key == null || !key.isValid())
+                continue;
+
+            // a write that didn't fit is already waiting for the socket
+            if ((key.interestOps() & request.ops) == request.ops)
+                continue;
+
+            key.interestOps(request.ops);
+            if ((request.ops & SelectionKey.OP_WRITE) != 0)
+                write(key);
+        }
+    }
+
+    private void processKey(SelectionKey key) throws IOException {
+        if (!key.isValid())
+            return;
+
+        if (key.isAcceptable()) {
+            this.accept(key);
+        } else if (key.isConnectable()) {
+            this.connect(key);
+        } else {
+            // a link that is flushing a batch keeps reading too
+            if (key.isReadable())
+                this.read(key);
+            if (key.isValid() && key.isWritable())
+                this.write(key);
+        }
     }
 
     // Accept a new connection. Save this socket in the tcpLinkTable and then
@@ -169,112 +366,775 @@ public class NetworkInterface implements Runnable {
         ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 
         SocketChannel socketChannel = serverSocketChannel.accept();
+        if (socketChannel == null)
+            return; // somebody gave up before we got to them
+
+        if (stopping) {
+            socketChannel.close();
+            return;
+        }
         socketChannel.configureBlocking(false);
 
         // figure out the remote address
-        InetAddress addr = socketChannel.socket().getInetAddress();
-
-        // add the new socketChannel to the table
-        tcpLinkTable.put(addr, socketChannel);
+        Link link = new Link(socketChannel.socket().getInetAddress(), Direction.INBOUND);
 
-        // add this newly connected node to model
-        model.addNode(addr);
+        // add the new socketChannel to the table, the node is added to the
+        // model once its HELLO shows up
+        if (!addLink(link, socketChannel))
+            return;
 
         // set selector to notify when data is to be read
-        socketChannel.register(this.selector, SelectionKey.OP_READ);
+        socketChannel.register(this.selector, SelectionKey.OP_READ, link);
+
+        sendHello(link.addr);
     }
 
     // Finish connecting to a remote node
     private void connect(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
+        Link link = (Link) key.attachment();
+        pendingConnects.remove(socketChannel);
 
         try {
             socketChannel.finishConnect();
-            InetAddress addr = socketChannel.socket().getInetAddress();
+            linkUp(socketChannel, link);
+        } catch (IOException e) {
+            // connecting to this node didn't work out so well, try again later
+            closeChannel(socketChannel);
+            reconnects.schedule(link.addr, System.currentTimeMillis());
+        }
+    }
+
+    // Set up the link on a channel that just finished connecting
+    private void linkUp(SocketChannel socketChannel, Link link) throws IOException {
+        if (!addLink(link, socketChannel))
+            return;
+
+        socketChannel.register(selector, SelectionKey.OP_READ, link);
+
+        sendHello(link.addr);
+    }
+
+    // Start as many of the requested connects (and then any retries that are
+    // due) as the in flight limit allows
+    private void startConnects() {
+        if (stopping)
+            return;
+        long now = System.currentTimeMillis();
+
+        while (pendingConnects.size() < MAX_CONCURRENT_CONNECTS) {
+            InetAddress addr = potentialNodes.poll();
+            if (addr == null) {
+                addr = reconnects.poll(now);
+                if (addr != null && !shouldRedial(addr)) {
+                    reconnects.deferred(addr, now);
+                    continue;
+                }
+            }
+            if (addr == null)
+                break;
+
+            // we already have a link, don't set up a duplicate
+            if (tcpLinkTable.containsKey(addr))
+                continue;
+
+            // the same nodes get dialed over and over, keep their addresses
+            InetSocketAddress remote = linkAddresses.get(addr);
+            if (remote == null) {
+                remote = new InetSocketAddress(addr, LINK_PORT);
+                linkAddresses.put(addr, remote);
+            }
+
+            SocketChannel socketChannel = null;
+            try {
+                socketChannel = SocketChannel.open();
+                socketChannel.configureBlocking(false);
+                if (localAddress != null)
+                    socketChannel.socket().bind(localAddress);
+
+                // connects over loopback can finish right away (connecting to
+                // ourselves is caught by the HELLO)
+                Link link = new Link(addr, Direction.OUTBOUND);
+                dials.inc();
+                if (socketChannel.connect(remote)) {
+                    linkUp(socketChannel, link);
+                } else {
+                    link.connectStarted = now;
+                    socketChannel.register(selector, SelectionKey.OP_CONNECT, link);
+                    pendingConnects.put(socketChannel, link);
+                }
+            } catch (IOException e) {
+                if (socketChannel != null)
+                    closeChannel(socketChannel);
+                reconnects.schedule(addr, now);
+            }
+        }
+    }
+
+    // Give up on connects that have been hanging for too long
+    private void expireConnects(long now) {
+        Iterator<Map.Entry<SocketChannel, Link>> it = pendingConnects.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SocketChannel, Link> entry = it.next();
+            if (now - entry.getValue().connectStarted > CONNECT_TIMEOUT) {
+                it.remove();
+                closeChannel(entry.getKey());
+                reconnects.schedule(entry.getValue().addr, now);
+            }
+        }
+    }
+
+    /**
+     * Put a freshly connected channel in the link table. If we already have a
+     * link to the node (both ends connected to each other at once, or the
+     * node reconnected before we noticed the old link died), only one of them
+     * survives:
+     * 
+     * - If one is inbound and one is outbound, we keep the one that was opened
+     *   by the node with the lower address. Both ends come to the same answer.
+     * - Otherwise we keep the new one, the old one is most likely dead.
+     * 
+     * The loser is closed. Returns false if the new channel lost.
+     */
+    private boolean addLink(Link link, SocketChannel socketChannel) {
+        InetAddress addr = link.addr;
+        SocketChannel existing = tcpLinkTable.get(addr);
+
+        if (existing != null && existing != socketChannel) {
+            duplicateLinks.inc();
+            SelectionKey existingKey = existing.keyFor(selector);
+            Direction existingDirection = existingKey == null ? null
+                    : ((Link) existingKey.attachment()).direction;
+
+            boolean keepNew = true;
+            if (existingDirection != null && existingDirection != link.direction) {
+                boolean weAreLower = IPUtils.compareIPs(model.getSelfAddress(), addr) < 0;
+                keepNew = (link.direction == Direction.OUTBOUND) == weAreLower;
+            }
+
+            if (!keepNew) {
+                closeChannel(socketChannel);
+                return false;
+            }
 
-            tcpLinkTable.put(addr, socketChannel);
-            socketChannel.register(selector, SelectionKey.OP_READ);
-            model.addNode(addr);
+            // a flush that was waiting for the old socket to drain has to be
+            // asked for again. One that is still queued looks the channel up
+            // when it gets its turn, so it finds the new one by itself.
+            boolean flushing = existingKey != null && existingKey.isValid()
+                    && (existingKey.interestOps() & SelectionKey.OP_WRITE) != 0;
+            closeChannel(existing);
+
+            LinkWriteQueue writes = pendingWrites.get(addr);
+            if (writes != null) {
+                // only the frame the old stream stopped in the middle of is
+                // lost (anything half read went with its link), the whole
+                // ones behind it go out on the new one
+                ByteBuffer writeBuffer = writes.writeBuffer;
+                writeBuffer.flip();
+                writeBuffer.position(writes.partialFrame);
+                writeBuffer.compact();
+                writes.partialFrame = 0;
+
+                if (flushing) {
+                    pendingChangeRequests.add(writes.flushRequest);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        link.lastHeard = System.currentTimeMillis();
+        rttEstimators.putIfAbsent(addr, new RttEstimator());
+        throughputEstimators.putIfAbsent(addr, new ThroughputEstimator());
+        link.meter = throughputEstimators.get(addr);
+
+        tcpLinkTable.put(addr, socketChannel);
+        links.put(addr, link);
+        return true;
+    }
+
+    // Close a channel that isn't (or is no longer) in the link table
+    private void closeChannel(SocketChannel socketChannel) {
+        SelectionKey key = socketChannel.keyFor(selector);
+        if (key != null)
+            key.cancel();
+        try {
+            socketChannel.close();
         } catch (IOException e) {
-            // connecting to this node didn't work out so well
-            socketChannel.keyFor(selector).cancel();
+            System.out.println("DEBUG: exception on socket close");
         }
     }
 
     private void read(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
+        Link link = (Link) key.attachment();
+        InetAddress addr = link.addr;
+
+        // each link has its own buffer so that packets split across reads
+        // can be put back together
+        ByteBuffer readBuffer = link.readBuffer;
 
-        // clear out the read buffer then do the read
-        this.readBuffer.clear();
         int numRead;
         try {
-            numRead = socketChannel.read(this.readBuffer);
+            numRead = socketChannel.read(readBuffer);
         } catch (IOException e) {
+            // the connection was reset, the key would stay readable forever
+            channelLost(addr, socketChannel);
             return;
         }
 
         if (numRead == -1) {
             // Remote closed socket cleanly
-            pendingWrites.remove(socketChannel.socket().getInetAddress());
+            channelLost(addr, socketChannel);
+            return;
+        }
+
+        link.lastHeard = System.currentTimeMillis();
+        if (numRead > 0)
+            link.meter.received(numRead, System.nanoTime());
+
+        // stick every complete packet on the router's queue and keep any
+        // partial packet around for the next read
+        readBuffer.flip();
+        while (true) {
+            SimpleDatagramPacket packet;
             try {
-                socketChannel.close();
-            } catch (IOException e) {
-                System.out.println("DEBUG: Failed to close our end of a socketChannel.");
+                packet = SimpleDatagramPacket.createFromBuffer(readBuffer);
+            } catch (RuntimeException e) {
+                // the stream is garbage from here on, drop the link
+                System.err.println("DEBUG: Malformed packet from " + addr + ", disconnecting");
+                readBuffer.clear();
+                disconnectFromNode(addr);
+                return;
             }
-            key.cancel();
+            if (packet == null)
+                break;
 
-            InetAddress addr = socketChannel.socket().getInetAddress();
-            model.deleteNode(addr);
-            tcpLinkTable.remove(addr);
+            // handled here rather than by the router so that it can't lose
+            // the race with the EOF right behind it
+            if (isDisconnect(packet)) {
+                readBuffer.clear();
+                closeLink(addr, false);
+                return;
+            }
+            receivePacket(packet, addr);
+        }
+        readBuffer.compact();
+    }
+
+    // The connection on socketChannel is gone. If this was the losing half
+    // of a duplicate pair, the link itself is fine.
+    private void channelLost(InetAddress addr, SocketChannel socketChannel) {
+        if (tcpLinkTable.get(addr) == socketChannel)
+            closeLink(addr, true);
+        else
+            closeChannel(socketChannel);
+    }
+
+    // Hand a packet that came in over a link to the router, after putting it
+    // through the link conditioner if there is one. Control packets are
+    // delayed but never dropped, since losing a HELLO would leave the link
+    // hanging.
+    private void receivePacket(final SimpleDatagramPacket packet, final InetAddress lastHop) {
+        packetsReceived.inc();
 
+        LinkConditioner conditioner = linkConditioner;
+        if (conditioner == null) {
+            packetRouter.processPacket(new IncomingPacket(packet, lastHop));
             return;
         }
 
-        // stick the packet on the read queue of the appropriate socket
-        readBuffer.flip();
-        SimpleDatagramPacket packet = SimpleDatagramPacket.createFromBuffer(readBuffer,
-                socketChannel.socket().getInetAddress(), model.getSelfAddress());
+        InetAddress self = model.getSelfAddress();
+        if ((packet.flags & SimpleDatagramPacket.CONTROL) == 0 && conditioner.drop(lastHop, self))
+            return;
+
+        long delay = conditioner.getDelay(lastHop, self);
+        if (delay <= 0) {
+            packetRouter.processPacket(new IncomingPacket(packet, lastHop));
+            return;
+        }
 
-        packetRouter.processPacket(new IncomingPacket(packet, socketChannel.socket()
-                .getInetAddress()));
+        // a single timer thread and a fixed delay per link keep the packets
+        // of a link in order
+        conditionerTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                packetRouter.processPacket(new IncomingPacket(packet, lastHop));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    // pull any pending writes of a socket's queue and write them to the socket
+    // pull any pending writes of a socket's queue and write them to the
+    // socket, packing as many as will fit into a single write
     private void write(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        InetAddress dst = socketChannel.socket().getInetAddress();
-        BlockingQueue<ByteBuffer> queue = pendingWrites.get(dst);
+        Link state = (Link) key.attachment();
+
+        // the queue is made by whoever sends first, so we may not have it yet
+        LinkWriteQueue link = state.writes;
+        if (link == null)
+            link = state.writes = pendingWrites.get(state.addr);
+
+        if (link == null) {
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
 
-        while (!queue.isEmpty()) {
-            ByteBuffer buf = queue.peek();
+        ByteBuffer writeBuffer = link.writeBuffer;
+        while (true) {
+            ByteBuffer frame;
+            while ((frame = link.queue.peek()) != null && frame.remaining() <= writeBuffer.remaining()) {
+                writeBuffer.put(frame);
+                link.queue.remove();
+                link.queuedBytes.addAndGet(-frame.limit());
+            }
 
+            writeBuffer.flip();
             try {
-                socketChannel.write(buf);
+                int written = socketChannel.write(writeBuffer);
+                if (written > 0) {
+                    state.meter.sent(written, System.nanoTime());
+                    link.partialFrame = unwrittenTail(writeBuffer, link.partialFrame);
+                }
             } catch (IOException e) {
                 // If an exception occurs during a write, the node is probably
-                // gone
-                System.out.println("DEBUG: Socket write exception");
+                // gone. Drop the link rather than have the key come up
+                // writable again on every pass.
+                System.out.println("DEBUG: Socket write exception on link to " + state.addr);
+                writeBuffer.compact();
+                channelLost(state.addr, socketChannel);
                 return;
             }
 
-            if (buf.remaining() > 0) {
-                // the socket buffer is full
+            boolean full = writeBuffer.hasRemaining();
+            writeBuffer.compact();
+
+            // the socket buffer is full, whatever is left in the write buffer
+            // goes out the next time the socket is writable
+            if (full)
+                return;
 
-                // TODO: WTF - If we only write a partial packet to the socket,
-                // we need to keep the remaining bytes around to write once
-                // there is room.
+            if (link.queue.isEmpty())
                 break;
+        }
+
+        // we are done, set the key back to read. Anything queued after we
+        // cleared the flag has to ask for another flush.
+        key.interestOps(SelectionKey.OP_READ);
+        link.flushPending.set(false);
+        if (!link.queue.isEmpty() && link.flushPending.compareAndSet(false, true))
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    // How much of the frame a write stopped in the middle of is still in the
+    // buffer, given how much of a frame was left at the front of it before the
+    // write. Every frame after that one went into the buffer whole.
+    private static int unwrittenTail(ByteBuffer writeBuffer, int partialFrame) {
+        int written = writeBuffer.position();
+        int end = partialFrame;
+        while (end < written)
+            end += SimpleDatagramPacket.getLength(writeBuffer, end);
+        return end - written;
+    }
+
+    // Close a link (on the selector thread) and forget everything we had
+    // for it. The node only leaves the model if it had made it in. A link
+    // that was lost (rather than dropped on purpose) gets reconnected later.
+    private void closeLink(InetAddress addr, boolean lost) {
+        SocketChannel socketChannel;
+        boolean established;
+        synchronized (establishLock) {
+            socketChannel = tcpLinkTable.remove(addr);
+            if (socketChannel == null)
+                return;
+            established = establishedLinks.remove(addr);
+        }
+
+        if (lost && shouldRedial(addr)) {
+            reconnects.schedule(addr, System.currentTimeMillis());
+        } else {
+            // a lost bootstrap node stays on the wheel even if we don't want
+            // it back right now, it is how we find our way back if we lose
+            // everyone else
+            if (lost)
+                reconnects.deferred(addr, System.currentTimeMillis());
+            else
+                reconnects.cancel(addr);
+
+            // whatever is still queued (e.g. a DISCONNECT) gets one last
+            // chance to go out
+            SelectionKey key = socketChannel.keyFor(selector);
+            if (key != null && key.isValid())
+                write(key);
+        }
+
+        // get rid of any buffers that this channel may have had
+        pendingWrites.remove(addr);
+        links.remove(addr);
+        linkFeatures.remove(addr);
+        rttEstimators.remove(addr);
+        throughputEstimators.remove(addr);
+
+        closeChannel(socketChannel);
+
+        if (established)
+            model.deleteNode(addr);
+    }
+
+    // Send keepalives on links that are due one and drop the ones we haven't
+    // heard from in too long (including ones that never sent a HELLO).
+    // Returns how long until the next check is due.
+    private long checkKeepalives() {
+        long now = System.currentTimeMillis();
+        long checkPeriod = Math.max(keepaliveInterval / 2, 1);
+
+        if (now - lastKeepaliveCheck < checkPeriod)
+            return checkPeriod - (now - lastKeepaliveCheck);
+        lastKeepaliveCheck = now;
+
+        expireConnects(now);
+
+        for (Link link : links.values()) {
+            InetAddress addr = link.addr;
+
+            if (now - link.lastHeard > keepaliveTimeout) {
+                System.err.println("DEBUG: Link to " + addr + " timed out");
+                closeLink(addr, true);
+                continue;
+            }
+
+            RttEstimator rtt = rttEstimators.get(addr);
+            if (establishedLinks.contains(addr) && rtt != null
+                    && rtt.probeDue(now, keepaliveInterval)) {
+                sendKeepalive(addr, rtt);
             }
-            queue.remove();
         }
 
-        // we are done, set the key back to read
-        if (queue.isEmpty())
-            key.interestOps(SelectionKey.OP_READ);
+        return checkPeriod;
+    }
+
+    // Introduce ourselves to the other end of a new link
+    private void sendHello(InetAddress addr) {
+        ByteBuffer buf = ByteBuffer.allocate(9 + IPUtils.serializedLength(model.getSelfAddress()));
+        buf.put(HELLO);
+        buf.putInt(PROTOCOL_VERSION);
+        buf.putInt(getLocalFeatures());
+        IPUtils.serializeIPAddr(model.getSelfAddress(), buf);
+
+        sendControl(addr, buf.array());
+    }
+
+    // Check a HELLO from the other end of a link and, if it is acceptable,
+    // add the node to the model. Throws an IllegalArgumentException if the
+    // HELLO is cut short.
+    private void receiveHello(InetAddress addr, ByteBuffer buf) {
+        if (buf.remaining() < 8)
+            throw new IllegalArgumentException("Truncated HELLO");
+        int version = buf.getInt();
+        int features = buf.getInt();
+        InetAddress identity = IPUtils.deserializeIPAddr(buf);
+
+        if (version != PROTOCOL_VERSION) {
+            System.err.println("DEBUG: " + addr + " speaks protocol version " + version
+                    + ", disconnecting");
+            disconnectFromNode(addr);
+            return;
+        }
+
+        if (model.getSelfAddress().equals(identity)) {
+            System.err.println("The node is attempting to connect to itself!");
+            disconnectFromNode(addr);
+            return;
+        }
+
+        if (identity != null && !identity.equals(addr)) {
+            System.err.println("DEBUG: " + addr + " identifies itself as " + identity);
+        }
+
+        synchronized (establishLock) {
+            // the link may have been closed since the HELLO came in
+            if (!tcpLinkTable.containsKey(addr))
+                return;
+
+            linkFeatures.put(addr, features & getLocalFeatures());
+            if (establishedLinks.add(addr)) {
+                // only a link that made it through the HELLO starts its
+                // backoff over, one that fails the handshake every time keeps
+                // backing off
+                reconnects.succeeded(addr);
+                model.addNode(addr);
+            }
+        }
+    }
+
+    // Keepalives double as RTT probes, so they don't wait for a batch
+    private void sendKeepalive(InetAddress addr, RttEstimator rtt) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + RttEstimator.PROBE_LENGTH);
+        buf.put(KEEPALIVE);
+        rtt.writeProbe(buf, System.nanoTime());
+
+        sendControl(addr, buf.array(), true);
+    }
+
+    private void sendControl(InetAddress addr, byte[] payload) {
+        sendControl(addr, payload, false);
+    }
+
+    private void sendControl(InetAddress addr, byte[] payload, boolean flushNow) {
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(model.getSelfAddress(), addr, 0, 0,
+                payload);
+        packet.flags = SimpleDatagramPacket.CONTROL;
+        sendHelper(packet, Arrays.asList(addr), flushNow);
+    }
+
+    private static boolean isDisconnect(SimpleDatagramPacket packet) {
+        return (packet.flags & SimpleDatagramPacket.CONTROL) == SimpleDatagramPacket.CONTROL
+                && packet.getPayload().length > 0 && packet.getPayload()[0] == DISCONNECT;
+    }
+
+    private int getLocalFeatures() {
+        return compressionEnabled ? FEATURE_COMPRESSION : 0;
+    }
+
+    private boolean linkSupports(InetAddress addr, int feature) {
+        Integer features = linkFeatures.get(addr);
+        return features != null && (features & feature) == feature;
+    }
+
+    // Turn on writes for every link whose batch is due. Returns how long the
+    // selector can sleep before the next batch is due (0 if none are waiting).
+    // Batches are scheduled with the same delay, so they come due in the order
+    // they were queued and we only ever need to look at the head. (If the
+    // delay is changed, batches queued behind a longer one wait for it, which
+    // is at most the old delay.)
+    private long flushScheduledBatches() {
+        long now = System.currentTimeMillis();
+
+        LinkWriteQueue link;
+        while ((link = scheduledFlushes.peek()) != null) {
+            long wait = link.flushDeadline - now;
+            if (wait > 0)
+                return wait;
+
+            scheduledFlushes.poll();
+            link.batchScheduled.set(false);
+            if (!link.queue.isEmpty() && link.flushPending.compareAndSet(false, true)) {
+                SocketChannel socketChannel = tcpLinkTable.get(link.addr);
+                SelectionKey key = socketChannel == null ? null : socketChannel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    write(key);
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Set how long small packets may be held back so that they can share a
+     * write, and how many queued bytes force a flush right away. A delay of 0
+     * turns batching off.
+     */
+    public void setBatching(long flushDelay, int flushThreshold) {
+        this.flushDelay = flushDelay;
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * Set how long a link may sit idle before we send a keepalive, and how
+     * long we wait without hearing anything before giving up on it.
+     */
+    public void setKeepalive(long interval, long timeout) {
+        this.keepaliveInterval = interval;
+        this.keepaliveTimeout = timeout;
+    }
+
+    /**
+     * The smoothed round trip time of the link to addr in ms, as measured by
+     * its keepalives, or -1 if we don't have a link to it or haven't measured
+     * it yet.
+     */
+    public double getLinkRtt(InetAddress addr) {
+        RttEstimator rtt = rttEstimators.get(addr);
+        return rtt == null ? -1 : rtt.getRtt();
+    }
+
+    /**
+     * The throughput of the link to addr in bits/s, going away from us
+     * (upstream) or towards us, as estimated from the traffic it has carried
+     * recently. Returns -1 if we don't have a link to it or it hasn't carried
+     * enough traffic to tell.
+     */
+    public double getLinkThroughput(InetAddress addr, boolean upstream) {
+        ThroughputEstimator meter = throughputEstimators.get(addr);
+        return meter == null ? -1 : meter.getThroughput(upstream, System.nanoTime());
+    }
+
+    /**
+     * How many bytes we have written to and read from the link to addr since
+     * it came up, or null if we don't have a link to it
+     */
+    public long[] getLinkBytes(InetAddress addr) {
+        ThroughputEstimator meter = throughputEstimators.get(addr);
+        return meter == null ? null : new long[] { meter.getBytesSent(),
+                meter.getBytesReceived() };
+    }
+
+    /**
+     * Ask policy before dialing a node again after its link was lost or a
+     * connect to it failed. Null redials everything.
+     */
+    public void setRedialPolicy(RedialPolicy policy) {
+        this.redialPolicy = policy;
+    }
+
+    private boolean shouldRedial(InetAddress addr) {
+        RedialPolicy policy = redialPolicy;
+        if (policy == null)
+            return true;
+
+        int links = establishedLinks.size() - (establishedLinks.contains(addr) ? 1 : 0);
+        return policy.shouldRedial(addr, links);
+    }
+
+    /**
+     * Put every packet that comes in over a link through conditioner, which
+     * can delay or drop it. Meant for simulating real links between nodes
+     * that run on the same machine. Null turns it off.
+     */
+    public synchronized void setLinkConditioner(LinkConditioner conditioner) {
+        if (conditioner != null && conditionerTimer == null) {
+            conditionerTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        this.linkConditioner = conditioner;
+    }
+
+    /**
+     * How many packets we have put on links so far (a packet that goes out
+     * over three links counts three times)
+     */
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * How many packets have come in over links so far
+     */
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    // The channel of the link to addr, for tests
+    protected SocketChannel getLinkChannel(InetAddress addr) {
+        return tcpLinkTable.get(addr);
+    }
+
+    // How many channels (the server socket included) the selector has keys
+    // for, for tests. Closed channels are gone after the next select.
+    protected int getKeyCount() {
+        return selector.keys().size();
+    }
+
+    /**
+     * Where this interface keeps its counters, queue depths and timings
+     */
+    public StatsRegistry getStats() {
+        return stats;
+    }
+
+    private void registerStats() {
+        packetsSent = stats.counter("overlay_packets_sent_total",
+                "Packets put on links (once per link)");
+        packetsReceived = stats.counter("overlay_packets_received_total",
+                "Packets that came in over links");
+        duplicateLinks = stats.counter("overlay_duplicate_links_total",
+                "Channels closed because we already had a link to the same node");
+        dials = stats.counter("overlay_dials_total", "Connects we started to other nodes");
+        selectorLoopTime = stats.histogram("overlay_selector_loop_us",
+                "Time spent handling the events of one select, in microseconds");
+
+        stats.gauge("overlay_links", "Open links", new Gauge() {
+            @Override
+            public Number value() {
+                return tcpLinkTable.size();
+            }
+        });
+        stats.gauge("overlay_router_queue", "Packets waiting for the packet router",
+                new Gauge() {
+                    @Override
+                    public Number value() {
+                        return packetRouter.queue.size();
+                    }
+                });
+        stats.gauges("overlay_pending_write_bytes", "Bytes queued for a link", "peer",
+                new GaugeFamily() {
+                    @Override
+                    public Map<String, Number> values() {
+                        Map<String, Number> values = new TreeMap<>();
+                        for (LinkWriteQueue link : pendingWrites.values())
+                            values.put(link.addr.getHostAddress(), link.queuedBytes.get());
+                        return values;
+                    }
+                });
+        stats.gauges("overlay_socket_queue", "Packets waiting to be received on a socket",
+                "port", new GaugeFamily() {
+                    @Override
+                    public Map<String, Number> values() {
+                        Map<String, Number> values = new TreeMap<>();
+                        for (Map.Entry<Integer, SimpleSocket> entry : portMap.entrySet())
+                            values.put(entry.getKey().toString(), entry.getValue().readQueue
+                                    .size());
+                        return values;
+                    }
+                });
+        stats.gauges("overlay_link_bytes_sent", "Bytes written to a link", "peer",
+                linkBytes(true));
+        stats.gauges("overlay_link_bytes_received", "Bytes read from a link", "peer",
+                linkBytes(false));
+    }
+
+    private GaugeFamily linkBytes(final boolean sent) {
+        return new GaugeFamily() {
+            @Override
+            public Map<String, Number> values() {
+                Map<String, Number> values = new TreeMap<>();
+                for (Map.Entry<InetAddress, ThroughputEstimator> entry : throughputEstimators
+                        .entrySet()) {
+                    ThroughputEstimator meter = entry.getValue();
+                    values.put(entry.getKey().getHostAddress(), sent ? meter.getBytesSent()
+                            : meter.getBytesReceived());
+                }
+                return values;
+            }
+        };
+    }
+
+    /**
+     * Turn payload compression on or off, and set how big a payload has to be
+     * before it is worth compressing. This only affects links that come up
+     * after the call, since features are negotiated when the link comes up.
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        this.compressionEnabled = enabled;
+        this.compressionThreshold = threshold;
     }
 
     // Queues up a packet so that it can be sent by the selector
     protected void send(SimpleDatagramPacket packet) throws IOException {
+        if (packet.src == null)
+            packet.src = model.getSelfAddress();
+
+        // the other end would drop the link over it
+        if (packet.getLength() > SimpleDatagramPacket.MAX_PACKET_LENGTH)
+            throw new IOException("Packet too large: " + packet.getLength() + " bytes");
+
         if ((packet.flags & SimpleDatagramPacket.BASELAYER) == SimpleDatagramPacket.BASELAYER) {
             if ((packet.flags & SimpleDatagramPacket.BROADCAST) == SimpleDatagramPacket.BROADCAST) {
                 throw new IOException("No support for baselayer broadcast");
@@ -283,49 +1143,149 @@ public class NetworkInterface implements Runnable {
             sendHelper(packet, Arrays.asList(packet.getDestination()));
         } else if ((packet.flags & SimpleDatagramPacket.OVERLAY) == SimpleDatagramPacket.OVERLAY) {
             if ((packet.flags & SimpleDatagramPacket.BROADCAST) != SimpleDatagramPacket.BROADCAST) {
-                throw new IOException("No support for overlay unicast");
+                if (packet.getDestination().equals(model.getSelfAddress())) {
+                    // no need to go anywhere, just hand it to the router
+                    packetRouter.processPacket(new IncomingPacket(packet, packet.getDestination()));
+                    return;
+                }
+
+                InetAddress nextHop = chooseNextHop(packet);
+                if (nextHop == null) {
+                    throw new IOException("No overlay route to " + packet.getDestination());
+                }
+
+                sendHelper(packet, Arrays.asList(nextHop));
+                return;
             }
 
-            sendHelper(packet, new HashSet<>(model.getForwardingTable().values()));
+            // tag the broadcast so that the rest of the overlay can filter
+            // duplicates and ask us to repair anything that gets lost
+            packet.seq = broadcastSeq.incrementAndGet();
+            broadcastTracker.sent(packet);
+
+            sendHelper(packet, broadcastHops(packet));
+        }
+    }
+
+    // Flooded broadcasts go out on every link that is up, the rest follow
+    // the MST
+    private Set<InetAddress> broadcastHops(SimpleDatagramPacket packet) {
+        if ((packet.flags & SimpleDatagramPacket.FLOOD) == SimpleDatagramPacket.FLOOD)
+            return new HashSet<>(establishedLinks);
+
+        return new HashSet<>(model.getForwardingTable().values());
+    }
+
+    // Pick the next hop for a unicast packet based on the policy its sender
+    // picked. Shortest path traffic is spread over the near-equal cost next
+    // hops by flow so that the packets of a flow stay in order.
+    private InetAddress chooseNextHop(SimpleDatagramPacket packet) {
+        if ((packet.flags & SimpleDatagramPacket.SHORTEST_PATH) != SimpleDatagramPacket.SHORTEST_PATH)
+            return model.getForwardingTable().get(packet.getDestination());
+
+        List<InetAddress> nextHops = model.getMultipathTable().get(packet.getDestination());
+        if (nextHops == null || nextHops.isEmpty())
+            return null;
+        if (nextHops.size() == 1)
+            return nextHops.get(0);
+
+        // rendezvous hashing, so a hop coming or going only moves its own flows
+        long flow = flowHash(packet);
+        InetAddress best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (InetAddress nextHop : nextHops) {
+            long score = mix(flow ^ nextHop.hashCode());
+            if (best == null || score > bestScore) {
+                best = nextHop;
+                bestScore = score;
+            }
         }
+        return best;
+    }
+
+    private static long flowHash(SimpleDatagramPacket packet) {
+        long hash = packet.getSource().hashCode();
+        hash = hash * 31 + packet.getDestination().hashCode();
+        hash = hash * 31 + packet.getSourcePort();
+        hash = hash * 31 + packet.getDestinationPort();
+        return mix(hash);
+    }
+
+    // the murmur3 finalizer, spreads the bits of the input over the output
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 
     // Moves a packet on to a list of destinations
     private void sendHelper(SimpleDatagramPacket packet, Collection<InetAddress> nextHops) {
+        sendHelper(packet, nextHops, false);
+    }
+
+    private void sendHelper(SimpleDatagramPacket packet, Collection<InetAddress> nextHops,
+            boolean flushNow) {
+        // every link gets its own view of the same bytes
+        ByteBuffer plain = packet.getRawPacket();
+        if (plain.limit() > SimpleDatagramPacket.MAX_PACKET_LENGTH) {
+            System.err.println("DEBUG: Dropping a packet of " + plain.limit() + " bytes");
+            return;
+        }
+        ByteBuffer compressed = null;
+        boolean compressible = (packet.flags & SimpleDatagramPacket.CONTROL) == 0
+                && packet.getPayload().length >= compressionThreshold;
+
         for (InetAddress nextHop : nextHops) {
-            // place a pending request on the queue for this destination address
             if (tcpLinkTable.get(nextHop) == null) {
                 // We can't figure out where to sent this
                 System.err.println("Can't figure out where to send");
+                continue;
             }
 
-            while (true) {
-                try {
-                    pendingChangeRequests.put(new ChangeRequest(nextHop, SelectionKey.OP_WRITE));
-                    break;
-                } catch (InterruptedException e) {
-                    continue;
+            // only compress once, and only for links that agreed to it
+            ByteBuffer raw = plain;
+            if (compressible && linkSupports(nextHop, FEATURE_COMPRESSION)) {
+                if (compressed == null) {
+                    compressed = packet.getCompressedRawPacket();
+                    if (compressed == null) {
+                        // it doesn't shrink, don't try again for the other hops
+                        compressible = false;
+                        compressed = plain;
+                    }
                 }
+                raw = compressed;
             }
 
             // place the data onto the pending writes queue for the proper
             // socket
-            BlockingQueue<ByteBuffer> queue = pendingWrites.get(nextHop);
-            if (queue == null) {
-                queue = new LinkedBlockingQueue<ByteBuffer>();
-                pendingWrites.put(nextHop, queue);
+            LinkWriteQueue link = pendingWrites.get(nextHop);
+            if (link == null) {
+                pendingWrites.putIfAbsent(nextHop, new LinkWriteQueue(nextHop));
+                link = pendingWrites.get(nextHop);
             }
 
-            while (true) {
-                try {
-                    queue.put(packet.getRawPacket());
-                    break;
-                } catch (InterruptedException e) {
-                    continue;
+            link.queue.add(raw.duplicate());
+            packetsSent.inc();
+            int queued = link.queuedBytes.addAndGet(raw.limit());
+
+            if (flushNow || flushDelay <= 0 || queued >= flushThreshold) {
+                // enough has piled up, ask the selector to write it out now
+                // (unless a flush is already on its way)
+                if (link.flushPending.compareAndSet(false, true)) {
+                    pendingChangeRequests.add(link.flushRequest);
+                    selector.wakeup();
                 }
+            } else if (link.batchScheduled.compareAndSet(false, true)) {
+                // first packet of a new batch, the selector needs to know
+                // when to flush it
+                link.flushDeadline = System.currentTimeMillis() + flushDelay;
+                scheduledFlushes.add(link);
+                selector.wakeup();
             }
         }
-        selector.wakeup();
     }
 
     // bind a SimpleSocket to a specific port
@@ -339,7 +1299,7 @@ public class NetworkInterface implements Runnable {
 
     // close a SimpleSocket
     protected void closeSocket(SimpleSocket simpleSocket) {
-        portMap.remove(simpleSocket);
+        portMap.remove(simpleSocket.getPort(), simpleSocket);
     }
 
     /**
@@ -349,7 +1309,7 @@ public class NetworkInterface implements Runnable {
      * @param addr The node to attempt to connect to and add
      */
     public void connectAndAdd(InetAddress addr) {
-        if (!potentialNodes.contains(addr) && !addr.equals(model.getSelfAddress())) {
+        if (!stopping && !potentialNodes.contains(addr) && !addr.equals(model.getSelfAddress())) {
             potentialNodes.add(addr);
             selector.wakeup();
         }
@@ -357,7 +1317,8 @@ public class NetworkInterface implements Runnable {
 
     /**
      * Try to disconnect (close the TCP connection) to the given node and if
-     * successful remove it from the known nodes
+     * successful remove it from the known nodes. The other end is told that
+     * this was on purpose, so neither end tries to reconnect.
      * 
      * @param addr The node to attempt to disconnect from and remove
      */
@@ -365,15 +1326,107 @@ public class NetworkInterface implements Runnable {
         if (tcpLinkTable.containsKey(addr)) {
             // let's check that it is actually in the table before we bother
             // waking the selector up
+            sendControl(addr, new byte[] { DISCONNECT });
             nodesToRemove.add(addr);
             selector.wakeup();
         }
     }
 
-    // helper class with the fields needed to queue up a key change request
+    public void shutdown() {
+        shutdown(DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * Leave the overlay. Whatever is already queued gets up to timeout ms to
+     * go out, then every neighbor is told we are going on purpose (so they
+     * drop us right away, rather than after a keepalive timeout, and don't try
+     * to reconnect) and the selector and router threads are stopped. No new
+     * links are made or accepted from here on.
+     */
+    public void shutdown(long timeout) {
+        stopping = true;
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (!drained() && System.currentTimeMillis() < deadline)
+            pause(10);
+
+        for (InetAddress addr : tcpLinkTable.keySet())
+            disconnectFromNode(addr);
+        while (!tcpLinkTable.isEmpty() && System.currentTimeMillis() < deadline)
+            pause(10);
+
+        // both threads finish what they are doing and notice right away
+        running = false;
+        selector.wakeup();
+        long stopDeadline = System.currentTimeMillis() + 1000;
+        join(selectorThread, stopDeadline);
+        join(routerThread, stopDeadline);
+
+        synchronized (this) {
+            if (conditionerTimer != null)
+                conditionerTimer.shutdownNow();
+        }
+    }
+
+    // true once nothing is waiting to be written to any link (a write that
+    // is half done goes out as the link is closed)
+    private boolean drained() {
+        for (LinkWriteQueue link : pendingWrites.values()) {
+            if (link.queuedBytes.get() > 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static void join(Thread thread, long deadline) {
+        long wait;
+        while (thread.isAlive() && (wait = deadline - System.currentTimeMillis()) > 0) {
+            try {
+                thread.join(wait);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    // which end opened a link
+    private enum Direction {
+        INBOUND, OUTBOUND
+    }
+
+    // everything the selector needs to handle the events of a channel,
+    // attached to its selection key. Only the selector thread touches it
+    // (apart from the keepalive check reading lastHeard).
+    private static class Link {
+        private InetAddress addr;
+        private Direction direction;
+        private long connectStarted;
+        private volatile long lastHeard;
+
+        // a packet can be split across reads, the rest of it is kept here
+        private ByteBuffer readBuffer;
+        private LinkWriteQueue writes;
+        private ThroughputEstimator meter;
+
+        private Link(InetAddress addr, Direction direction) {
+            this.addr = addr;
+            this.direction = direction;
+            this.readBuffer = ByteBuffer.allocate(SimpleDatagramPacket.MAX_PACKET_LENGTH);
+        }
+    }
+
+    // helper class with the fields needed to queue up a key change request.
+    // Every link makes its request once and queues the same one each time.
     private class ChangeRequest {
         private InetAddress addr;
         private int ops;
+        private long cycle; // the last drain that handled it
 
         private ChangeRequest(InetAddress addr, int ops) {
             this.addr = addr;
@@ -381,13 +1434,43 @@ public class NetworkInterface implements Runnable {
         }
     }
 
+    // everything waiting to be written to a single link
+    private class LinkWriteQueue {
+        private InetAddress addr;
+        private Queue<ByteBuffer> queue;
+        private AtomicInteger queuedBytes;
+        private AtomicBoolean flushPending; // the selector has been asked to write
+        private AtomicBoolean batchScheduled; // a delayed flush is on the schedule
+        private volatile long flushDeadline;
+        private ChangeRequest flushRequest; // only ever queued while flushPending is set
+
+        // only touched by the selector thread, holds bytes that didn't fit
+        // into the socket's send buffer. The first partialFrame bytes are the
+        // rest of a frame that has partly gone out, the frames after it are
+        // whole.
+        private ByteBuffer writeBuffer;
+        private int partialFrame;
+
+        private LinkWriteQueue(InetAddress addr) {
+            this.addr = addr;
+            queue = new ConcurrentLinkedQueue<>();
+            queuedBytes = new AtomicInteger();
+            flushPending = new AtomicBoolean();
+            batchScheduled = new AtomicBoolean();
+            flushRequest = new ChangeRequest(addr, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+    }
+
     private class IncomingPacket {
         private SimpleDatagramPacket packet;
         private InetAddress lastHop;
+        private long received; // System.nanoTime()
 
         private IncomingPacket(SimpleDatagramPacket packet, InetAddress lastHop) {
             this.packet = packet;
             this.lastHop = lastHop;
+            this.received = System.nanoTime();
         }
     }
 
@@ -404,28 +1487,55 @@ public class NetworkInterface implements Runnable {
 
         @Override
         public void run() {
-            while (true) {
+            long lastTick = System.currentTimeMillis();
+
+            while (running) {
                 IncomingPacket incomingPacket = null;
 
-                while (incomingPacket == null) {
-                    try {
-                        incomingPacket = queue.take();
-                    } catch (InterruptedException e1) {
-                    }
+                try {
+                    incomingPacket = queue.poll(ROUTER_TICK, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e1) {
                 }
 
-                SimpleDatagramPacket packet = incomingPacket.packet;
-                InetAddress lastHop = incomingPacket.lastHop;
+                // periodically give up on, or ask for repairs of, any stalled
+                // broadcasts
+                long now = System.currentTimeMillis();
+                if (now - lastTick >= ROUTER_TICK) {
+                    List<Nack> nacks = new LinkedList<>();
+                    deliver(broadcastTracker.expire(nacks, now));
+                    sendNacks(nacks);
+                    lastTick = now;
+                }
 
-                if ((packet.flags & SimpleDatagramPacket.BASELAYER) == SimpleDatagramPacket.BASELAYER) {
-                    forwardToSocket(packet);
-                } else {
-                    forwardToSocket(packet);
-                    routeOverlayPacket(packet, lastHop);
+                if (incomingPacket == null)
+                    continue;
+
+                // one bad packet mustn't take the router (and with it all
+                // forwarding) down
+                try {
+                    route(incomingPacket);
+                } catch (RuntimeException e) {
+                    System.err.println("DEBUG: Dropping a packet from " + incomingPacket.lastHop
+                            + ": " + e);
                 }
             }
         }
 
+        private void route(IncomingPacket incomingPacket) {
+            SimpleDatagramPacket packet = incomingPacket.packet;
+            InetAddress lastHop = incomingPacket.lastHop;
+
+            if ((packet.flags & SimpleDatagramPacket.CONTROL) == SimpleDatagramPacket.CONTROL) {
+                handleControlPacket(packet, lastHop, incomingPacket.received);
+            } else if ((packet.flags & SimpleDatagramPacket.BASELAYER) == SimpleDatagramPacket.BASELAYER) {
+                forwardToSocket(packet);
+            } else if ((packet.flags & SimpleDatagramPacket.BROADCAST) == SimpleDatagramPacket.BROADCAST) {
+                routeOverlayPacket(packet, lastHop);
+            } else {
+                routeUnicastPacket(packet);
+            }
+        }
+
         // pass the packet back up to the read queue of the socket that is bound
         // to the appropriate port
         private void forwardToSocket(SimpleDatagramPacket packet) {
@@ -437,10 +1547,30 @@ public class NetworkInterface implements Runnable {
             socket.readQueue.add(packet);
         }
 
+        private void deliver(List<SimpleDatagramPacket> packets) {
+            for (SimpleDatagramPacket packet : packets)
+                forwardToSocket(packet);
+        }
+
         // A helper method for sending out/forwarding along a broadcast packet
         private void routeOverlayPacket(SimpleDatagramPacket packet, InetAddress prevHop) {
+            // our own broadcast found its way back to us
+            if (model.getSelfAddress().equals(packet.getSource()))
+                return;
+
+            List<Nack> nacks = new LinkedList<>();
+            List<SimpleDatagramPacket> deliverable = broadcastTracker.receive(packet, prevHop,
+                    nacks, System.currentTimeMillis());
+            sendNacks(nacks);
+
+            // we have already seen (and forwarded) this one
+            if (deliverable == null)
+                return;
+
+            deliver(deliverable);
+
             // decrement and check the ttl
-            if (--packet.ttl == 0) {
+            if (--packet.ttl <= 0) {
                 System.err.println("Packet ttl expired");
                 return;
             }
@@ -448,11 +1578,77 @@ public class NetworkInterface implements Runnable {
             // Go through the list of known nodes and figure out which
             // outInterfaces
             // we need to be sending out on.
-            Set<InetAddress> outInterfaces = new HashSet<InetAddress>(model.getForwardingTable()
-                    .values());
+            Set<InetAddress> outInterfaces = broadcastHops(packet);
             outInterfaces.remove(prevHop);
             
             sendHelper(packet, outInterfaces);
         }
+
+        // Deliver a unicast packet if it is for us, otherwise pass it on to
+        // the next hop towards its destination
+        private void routeUnicastPacket(SimpleDatagramPacket packet) {
+            if (model.getSelfAddress().equals(packet.getDestination())) {
+                forwardToSocket(packet);
+                return;
+            }
+
+            // decrement and check the ttl
+            if (--packet.ttl <= 0) {
+                System.err.println("Packet ttl expired");
+                return;
+            }
+
+            InetAddress nextHop = chooseNextHop(packet);
+            if (nextHop == null) {
+                System.err.println("DEBUG: No overlay route to " + packet.getDestination());
+                return;
+            }
+
+            sendHelper(packet, Arrays.asList(nextHop));
+        }
+
+        private void handleControlPacket(SimpleDatagramPacket packet, InetAddress lastHop,
+                long received) {
+            ByteBuffer buf = ByteBuffer.wrap(packet.getPayload());
+            if (!buf.hasRemaining()) {
+                System.err.println("DEBUG: Empty control packet from " + lastHop);
+                return;
+            }
+
+            try {
+                switch (buf.get()) {
+                case BroadcastTracker.NACK:
+                    // resend whatever we still have of the requested broadcasts
+                    Nack nack = Nack.deserialize(lastHop, buf);
+                    for (long seq : nack.seqs) {
+                        SimpleDatagramPacket missing = broadcastTracker.lookup(nack.origin, seq);
+                        if (missing != null)
+                            sendHelper(missing, Arrays.asList(lastHop));
+                    }
+                    break;
+                case HELLO:
+                    receiveHello(lastHop, buf);
+                    break;
+                case KEEPALIVE:
+                    // being heard from is enough to keep the link, the
+                    // timestamps are for the RTT
+                    RttEstimator rtt = rttEstimators.get(lastHop);
+                    if (rtt != null)
+                        rtt.readProbe(buf, received);
+                    break;
+                default:
+                    System.err.println("DEBUG: Unknown control packet from " + lastHop);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("DEBUG: Malformed control packet from " + lastHop + ": "
+                        + e.getMessage());
+            }
+        }
+
+        private void sendNacks(List<Nack> nacks) {
+            for (Nack nack : nacks) {
+                sendControl(nack.target, nack.serialize());
+            }
+        }
     }
 }
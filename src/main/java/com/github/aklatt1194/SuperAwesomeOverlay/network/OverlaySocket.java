@@ -2,13 +2,57 @@ package com.github.aklatt1194.SuperAwesomeOverlay.network;
 
 import java.io.IOException;
 
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel.RoutingPolicy;
+
 public class OverlaySocket extends SimpleSocket {
     private static final int DEFAULT_TTL = 10;
-    
+
+    // floods are cut off by duplicate suppression, the ttl only has to be
+    // big enough to get across the overlay
+    private static final int FLOOD_TTL = 64;
+
+    private RoutingPolicy routingPolicy = RoutingPolicy.MINIMUM_SPANNING_TREE;
+    private boolean flooding = false;
+
+    public OverlaySocket() {
+        super();
+    }
+
+    public OverlaySocket(NetworkInterface networkInterface) {
+        super(networkInterface);
+    }
+
+    /**
+     * Pick the table that unicast packets from this socket are routed on.
+     * Broadcasts always follow the MST.
+     */
+    public void setRoutingPolicy(RoutingPolicy routingPolicy) {
+        this.routingPolicy = routingPolicy;
+    }
+
+    public RoutingPolicy getRoutingPolicy() {
+        return routingPolicy;
+    }
+
+    /**
+     * Flood broadcasts from this socket over every link rather than sending
+     * them down the MST. Slower, but it doesn't depend on everyone agreeing
+     * on the tree (which is what link state updates need).
+     */
+    public void setFlooding(boolean flooding) {
+        this.flooding = flooding;
+    }
+
     @Override
     public void send(SimpleDatagramPacket packet) throws IOException {
         packet.flags |= SimpleDatagramPacket.OVERLAY;
+        if (routingPolicy == RoutingPolicy.SHORTEST_PATH && packet.getDestination() != null)
+            packet.flags |= SimpleDatagramPacket.SHORTEST_PATH;
         packet.ttl = DEFAULT_TTL;
-        NetworkInterface.getInstance().send(packet);        
+        if (flooding && packet.getDestination() == null) {
+            packet.flags |= SimpleDatagramPacket.FLOOD;
+            packet.ttl = FLOOD_TTL;
+        }
+        networkInterface.send(packet);        
     }
-}
\ No newline at end of file
+}
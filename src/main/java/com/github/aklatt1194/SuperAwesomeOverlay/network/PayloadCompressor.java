@@ -0,0 +1,107 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+
+/**
+ * DEFLATE with a preset dictionary for packet payloads. The dictionary is
+ * seeded with what our payloads mostly look like (serialized addresses and
+ * metrics), which lets even small link state updates shrink.
+ *
+ * A compressed payload is the original length followed by the raw deflate
+ * stream.
+ */
+class PayloadCompressor {
+    private static final byte[] DICTIONARY = buildDictionary();
+
+    // Deflater and Inflater aren't thread safe and are expensive to create
+    private static final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Compress the payload. Returns null if compressing it wouldn't save
+     * anything.
+     */
+    protected static byte[] compress(byte[] payload) {
+        if (payload.length <= 4)
+            return null;
+
+        Deflater def = deflater.get();
+        def.reset();
+        def.setDictionary(DICTIONARY);
+        def.setInput(payload);
+        def.finish();
+
+        // no point in keeping anything that isn't smaller than the original
+        byte[] out = new byte[payload.length];
+        ByteBuffer.wrap(out).putInt(payload.length);
+        int len = 4;
+        while (!def.finished() && len < out.length) {
+            len += def.deflate(out, len, out.length - len);
+        }
+
+        if (!def.finished())
+            return null;
+
+        return Arrays.copyOf(out, len);
+    }
+
+    protected static byte[] decompress(byte[] compressed) throws DataFormatException {
+        if (compressed.length < 4)
+            throw new DataFormatException("Compressed payload too short: " + compressed.length);
+
+        ByteBuffer buf = ByteBuffer.wrap(compressed);
+        int length = buf.getInt();
+        if (length < 0 || length > SimpleDatagramPacket.MAX_PACKET_LENGTH)
+            throw new DataFormatException("Bad uncompressed length: " + length);
+
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(compressed, 4, compressed.length - 4);
+
+        // raw streams have no dictionary id, so the dictionary goes in up front
+        inf.setDictionary(DICTIONARY);
+
+        byte[] payload = new byte[length];
+        int len = 0;
+        while (len < length) {
+            int n = inf.inflate(payload, len, length - len);
+            if (n == 0 && (inf.finished() || inf.needsInput()))
+                break;
+            len += n;
+        }
+
+        if (len != length)
+            throw new DataFormatException("Truncated payload");
+
+        return payload;
+    }
+
+    // Most of what we send is lists of serialized IPv4 addresses followed by
+    // doubles (link state), so prime the dictionary with a few of those
+    private static byte[] buildDictionary() {
+        double[] common = { -1., OverlayRoutingModel.DEFAULT_METRIC, 0., 1., 10., 100. };
+        ByteBuffer buf = ByteBuffer.allocate(common.length * 16);
+        for (double d : common) {
+            buf.putInt(4);
+            buf.putInt(0);
+            buf.putDouble(d);
+        }
+        return buf.array();
+    }
+}
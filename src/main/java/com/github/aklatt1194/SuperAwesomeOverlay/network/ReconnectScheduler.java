@@ -0,0 +1,185 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides when to try connecting to a node again after a connection attempt
+ * failed or a link was lost. Each address backs off exponentially (with
+ * jitter, so that a whole mesh that lost the same node doesn't come back at
+ * once) up to a cap. Persistent addresses (the bootstrap nodes) are retried
+ * forever (even while the redial policy turns them down), everything else
+ * gives up after MAX_ATTEMPTS.
+ *
+ * Retries live on a hashed timer wheel that is advanced by the selector thread,
+ * so no threads or timers are created per retry.
+ */
+class ReconnectScheduler {
+    protected static final long TICK = 500; // ms per wheel slot
+    protected static final int WHEEL_SIZE = 512; // a little over 4 minutes per lap
+    protected static final long INITIAL_BACKOFF = 1000;
+    protected static final long MAX_BACKOFF = 5 * 60 * 1000;
+    protected static final int MAX_ATTEMPTS = 12;
+
+    private List<List<Retry>> wheel;
+    private long currentTick;
+    private Map<InetAddress, Retry> retries;
+    private Set<InetAddress> persistent;
+    private Queue<InetAddress> ready; // due, but waiting for a free connect slot
+    private Random random;
+
+    protected ReconnectScheduler(long now) {
+        wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            wheel.add(new LinkedList<Retry>());
+
+        currentTick = now / TICK;
+        retries = new HashMap<>();
+        persistent = new HashSet<>();
+        ready = new ArrayDeque<>();
+        random = new Random();
+    }
+
+    /**
+     * Never give up on this address
+     */
+    protected synchronized void addPersistent(InetAddress addr) {
+        persistent.add(addr);
+    }
+
+    /**
+     * Schedule another attempt at addr after its current backoff
+     */
+    protected synchronized void schedule(InetAddress addr, long now) {
+        Retry retry = retries.get(addr);
+        if (retry == null) {
+            retry = new Retry(addr);
+            retries.put(addr, retry);
+        } else if (retry.scheduled) {
+            // already waiting, don't double up
+            return;
+        }
+
+        if (retry.attempts >= MAX_ATTEMPTS && !persistent.contains(addr)) {
+            System.err.println("DEBUG: Giving up on reconnecting to " + addr);
+            retries.remove(addr);
+            return;
+        }
+
+        enqueue(retry, now);
+        retry.attempts++;
+    }
+
+    /**
+     * We decided not to dial addr right now (e.g. we have all the links we
+     * want). A persistent address goes back on the wheel at its current
+     * backoff, so that it is still there if we lose our other links later.
+     * Anything else is forgotten.
+     */
+    protected synchronized void deferred(InetAddress addr, long now) {
+        if (!persistent.contains(addr)) {
+            cancel(addr);
+            return;
+        }
+
+        Retry retry = retries.get(addr);
+        if (retry == null) {
+            retry = new Retry(addr);
+            retries.put(addr, retry);
+        } else if (retry.scheduled) {
+            return;
+        }
+        ready.remove(addr);
+
+        // not dialing isn't a failure, the backoff stays where it is
+        enqueue(retry, now);
+    }
+
+    // Put retry on the wheel after the backoff its attempts so far have earned
+    private void enqueue(Retry retry, long now) {
+        // equal jitter: somewhere between half and all of the backoff
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << Math.min(retry.attempts, 20));
+        long delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+
+        retry.deadlineTick = Math.max(now / TICK, currentTick) + Math.max(1, delay / TICK);
+        retry.scheduled = true;
+        wheel.get((int) (retry.deadlineTick % WHEEL_SIZE)).add(retry);
+    }
+
+    /**
+     * We have a link to addr, start its backoff over next time
+     */
+    protected synchronized void succeeded(InetAddress addr) {
+        cancel(addr);
+    }
+
+    /**
+     * Stop trying to reconnect to addr (e.g. we dropped it on purpose)
+     */
+    protected synchronized void cancel(InetAddress addr) {
+        Retry retry = retries.remove(addr);
+        if (retry != null)
+            retry.scheduled = false;
+        ready.remove(addr);
+    }
+
+    /**
+     * Advance the wheel up to now and hand back the next address that is due
+     * for another attempt (or null if there aren't any).
+     */
+    protected synchronized InetAddress poll(long now) {
+        long nowTick = now / TICK;
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            // most slots are empty, don't make an iterator for those
+            List<Retry> waiting = wheel.get((int) (currentTick % WHEEL_SIZE));
+            if (waiting.isEmpty())
+                continue;
+
+            Iterator<Retry> slot = waiting.iterator();
+            while (slot.hasNext()) {
+                Retry retry = slot.next();
+                if (!retry.scheduled) {
+                    // cancelled while it was waiting
+                    slot.remove();
+                } else if (retry.deadlineTick <= currentTick) {
+                    slot.remove();
+                    retry.scheduled = false;
+                    ready.add(retry.addr);
+                }
+            }
+        }
+
+        return ready.poll();
+    }
+
+    /**
+     * True if anything is waiting on the wheel (so the selector shouldn't
+     * sleep much longer than a tick)
+     */
+    protected synchronized boolean hasPending() {
+        return !retries.isEmpty() || !ready.isEmpty();
+    }
+
+    private static class Retry {
+        private InetAddress addr;
+        private int attempts;
+        private long deadlineTick;
+        private boolean scheduled;
+
+        private Retry(InetAddress addr) {
+            this.addr = addr;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+
+/**
+ * Has the last word on whether a lost link (or a connect that failed) is
+ * tried again, so that redials don't undo what decides which links we keep.
+ * See NetworkInterface.setRedialPolicy().
+ */
+public interface RedialPolicy {
+    /**
+     * True if addr should be dialed again, given that we have links to
+     * {@code links} other nodes right now. Called on the selector thread, so it must not
+     * block.
+     */
+    public boolean shouldRedial(InetAddress addr, int links);
+}
@@ -0,0 +1,100 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps a smoothed round trip time for a single link from the keepalives that
+ * go back and forth on it anyway. Every keepalive carries our clock, the last
+ * clock we got from the other end, and how long we sat on that one, so each
+ * end can work out the round trip without the clocks having to agree:
+ *
+ * rtt = now - echoed timestamp - time the other end held it
+ *
+ * Samples are smoothed the same way TCP smooths its SRTT.
+ */
+class RttEstimator {
+    protected static final int PROBE_LENGTH = 24; // timestamp, echo, hold time
+    protected static final double ALPHA = 0.125;
+    protected static final double BETA = 0.25;
+
+    private double srtt = -1; // ms, -1 until the first sample
+    private double rttvar;
+
+    private long peerStamp;
+    private long peerStampReceived;
+    private boolean havePeerStamp;
+
+    private long lastProbe; // ms
+
+    /**
+     * Write our half of a probe. Times are System.nanoTime().
+     */
+    protected synchronized void writeProbe(ByteBuffer buf, long now) {
+        buf.putLong(now);
+        if (havePeerStamp) {
+            buf.putLong(peerStamp);
+            buf.putLong(now - peerStampReceived);
+        } else {
+            buf.putLong(0);
+            buf.putLong(-1);
+        }
+    }
+
+    /**
+     * Read the other end's probe (received at now) and take a sample if it
+     * echoed one of ours.
+     */
+    protected synchronized void readProbe(ByteBuffer buf, long now) {
+        if (buf.remaining() < PROBE_LENGTH)
+            return;
+
+        long stamp = buf.getLong();
+        long echo = buf.getLong();
+        long held = buf.getLong();
+
+        peerStamp = stamp;
+        peerStampReceived = now;
+        havePeerStamp = true;
+
+        if (held < 0)
+            return;
+
+        long sample = now - echo - held;
+        if (sample <= 0)
+            return;
+
+        addSample(sample / 1e6);
+    }
+
+    private void addSample(double rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+    }
+
+    /**
+     * True (and the probe is considered sent) if it has been at least interval
+     * ms since the last probe
+     */
+    protected synchronized boolean probeDue(long now, long interval) {
+        if (now - lastProbe < interval)
+            return false;
+        lastProbe = now;
+        return true;
+    }
+
+    /**
+     * Smoothed round trip time in ms, or -1 if we don't have a sample yet
+     */
+    protected synchronized double getRtt() {
+        return srtt;
+    }
+
+    protected synchronized double getRttVariation() {
+        return srtt < 0 ? -1 : rttvar;
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.lang.reflect.Field;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An array backed stand-in for a selector's set of selected keys. The JDK's
+ * own is a HashSet, which means a new iterator (and a hash lookup per key)
+ * every time we go through the keys of a select. This one is just walked by
+ * index and cleared once we are done with it.
+ *
+ * Only the selector thread may touch it, and it has to be reset after every
+ * select (even if handling a key fails), or the same keys come up again.
+ * contains() and remove() are linear, which is fine for the handful of keys
+ * that are ready at once. The selector checks contains() before adding a key
+ * (a key can come up more than once in a select, e.g. for read and write on
+ * kqueue) and removes keys that were cancelled.
+ */
+class SelectedKeySet extends AbstractSet<SelectionKey> {
+    private static final AtomicBoolean fallbackLogged = new AtomicBoolean();
+
+    private SelectionKey[] keys = new SelectionKey[64];
+    private int size;
+
+    /**
+     * Swap the selected key set of selector for a new SelectedKeySet and
+     * return it, or return null if the selector's implementation doesn't let
+     * us (it isn't the usual sun.nio.ch one, or the JDK doesn't allow access
+     * to its internals). In that case the selector has to be used the usual
+     * way. On Java 9+ the JVM needs
+     * --add-opens=java.base/sun.nio.ch=ALL-UNNAMED (see .mvn/jvm.config).
+     */
+    protected static SelectedKeySet install(Selector selector) {
+        try {
+            Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false,
+                    ClassLoader.getSystemClassLoader());
+            if (!impl.isInstance(selector)) {
+                logFallback(selector.getClass().getName() + " isn't a sun.nio.ch.SelectorImpl");
+                return null;
+            }
+
+            Field selectedKeys = impl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = impl.getDeclaredField("publicSelectedKeys");
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+
+            SelectedKeySet set = new SelectedKeySet();
+            selectedKeys.set(selector, set);
+            publicSelectedKeys.set(selector, set);
+            return set;
+        } catch (Exception e) {
+            logFallback(e.toString());
+            return null;
+        }
+    }
+
+    // Every selector falls back for the same reason, so only say so once
+    private static void logFallback(String reason) {
+        if (fallbackLogged.compareAndSet(false, true))
+            System.err.println("DEBUG: Using the selector's own selected key set, which "
+                    + "allocates on every select (" + reason + ")");
+    }
+
+    @Override
+    public boolean add(SelectionKey key) {
+        if (key == null)
+            return false;
+
+        if (size == keys.length)
+            keys = Arrays.copyOf(keys, size * 2);
+        keys[size++] = key;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i < 0)
+            return false;
+
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        keys[--size] = null;
+        return true;
+    }
+
+    private int indexOf(Object o) {
+        if (o == null)
+            return -1;
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == o)
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    protected SelectionKey get(int i) {
+        return keys[i];
+    }
+
+    /**
+     * Forget the keys of the last select (without holding on to them)
+     */
+    protected void reset() {
+        Arrays.fill(keys, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    @Override
+    public Iterator<SelectionKey> iterator() {
+        return new Iterator<SelectionKey>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public SelectionKey next() {
+                if (next >= size)
+                    throw new NoSuchElementException();
+                return keys[next++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -2,94 +2,192 @@ package com.github.aklatt1194.SuperAwesomeOverlay.network;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
 
 public class SimpleDatagramPacket {
     public static final int BASELAYER = 0x1;
     public static final int OVERLAY = 0x2;
     public static final int BROADCAST = 0x4;
-    
-    private static final int HEADER_LENGTH = 20;
-    
+    public static final int CONTROL = 0x8;
+    public static final int SHORTEST_PATH = 0x10; // route unicast on the shortest path table
+    public static final int COMPRESSED = 0x20; // the payload on the wire is deflated
+    public static final int FLOOD = 0x40; // broadcast over every link instead of the MST
+
+    // flags, ttl, srcPort, dstPort, length -- enough to tell if the packet is complete
+    private static final int FIXED_HEADER_LENGTH = 20;
+    // the fixed header plus the sequence number
+    private static final int HEADER_LENGTH = FIXED_HEADER_LENGTH + 8;
+    protected static final int MAX_PACKET_LENGTH = 65536;
+
     protected int flags = 0; // Could just be a byte, but then the header size isn't as pretty
     protected int ttl = 0;
-    private InetAddress src, dst;
+    protected long seq = 0; // only meaningful for overlay broadcasts
+    protected InetAddress src, dst;
     private int srcPort, dstPort;
-    private int length;
     private byte[] payload;
-    
+
     public SimpleDatagramPacket(InetAddress src, InetAddress dst, int srcPort, int dstPort, byte[] payload) {
         this.src = src;
         this.dst = dst;
         this.srcPort = srcPort;
         this.dstPort = dstPort;
         this.payload = payload;
-        
+
         if (dst == null) {
             flags = BROADCAST;
         }
-        
-        length = HEADER_LENGTH + payload.length;
     }
-    
+
     public InetAddress getSource() {
         return src;
     }
-    
+
     public InetAddress getDestination() {
         return dst;
     }
-    
+
     public int getSourcePort() {
         return srcPort;
     }
-    
+
     public int getDestinationPort() {
         return dstPort;
     }
-    
+
     public byte[] getPayload() {
         return payload;
     }
-    
+
+    public long getSequenceNumber() {
+        return seq;
+    }
+
+    /**
+     * How many bytes the packet takes up on the wire (uncompressed). Anything
+     * over MAX_PACKET_LENGTH can't be sent.
+     */
+    public int getLength() {
+        return HEADER_LENGTH + IPUtils.serializedLength(src) + IPUtils.serializedLength(dst)
+                + payload.length;
+    }
+
+    /**
+     * The length of the serialized packet that starts at index in buf. Only
+     * the header has to be there.
+     */
+    protected static int getLength(ByteBuffer buf, int index) {
+        // flags, ttl and the ports come first
+        return buf.getInt(index + 16);
+    }
+
+    /**
+     * A copy of the packet as it is right now, so that forwarding it (which
+     * counts its ttl down) doesn't change the copy. The payload is shared.
+     */
+    protected SimpleDatagramPacket copy() {
+        SimpleDatagramPacket copy = new SimpleDatagramPacket(src, dst, srcPort, dstPort, payload);
+        copy.flags = flags;
+        copy.ttl = ttl;
+        copy.seq = seq;
+        return copy;
+    }
+
     public ByteBuffer getRawPacket() {
+        return serialize(flags, payload);
+    }
+
+    /**
+     * Serialize the packet with its payload compressed. Returns null if the
+     * payload doesn't get any smaller.
+     */
+    public ByteBuffer getCompressedRawPacket() {
+        byte[] compressed = PayloadCompressor.compress(payload);
+        if (compressed == null)
+            return null;
+
+        return serialize(flags | COMPRESSED, compressed);
+    }
+
+    private ByteBuffer serialize(int flags, byte[] payload) {
+        int length = HEADER_LENGTH + IPUtils.serializedLength(src) + IPUtils.serializedLength(dst)
+                + payload.length;
         ByteBuffer buf = ByteBuffer.allocate(length);
-        
+
         buf.putInt(flags);
         buf.putInt(ttl);
         buf.putInt(srcPort);
         buf.putInt(dstPort);
         buf.putInt(length);
+        buf.putLong(seq);
+        IPUtils.serializeIPAddr(src, buf);
+        IPUtils.serializeIPAddr(dst, buf);
         buf.put(payload);
-        
+
         buf.flip();
-        
+
         return buf;
     }
-    
-    protected static SimpleDatagramPacket createFromBuffer(ByteBuffer buf, InetAddress src, InetAddress dst) {
-        if (buf.remaining() < HEADER_LENGTH)
+
+    /**
+     * Pull one packet off the front of the buffer. Returns null (and leaves
+     * the buffer where it was) if the buffer doesn't hold a complete packet.
+     * Throws an IllegalArgumentException if the packet is malformed.
+     */
+    protected static SimpleDatagramPacket createFromBuffer(ByteBuffer buf) {
+        if (buf.remaining() < FIXED_HEADER_LENGTH)
             // there isn't a complete header, this must be a partial read
             return null;
-        
+
+        int start = buf.position();
         int flags = buf.getInt();
         int ttl = buf.getInt();
         int srcPort = buf.getInt();
         int dstPort = buf.getInt();
         int length = buf.getInt();
-        
-        if (buf.remaining() < length - HEADER_LENGTH) {
+
+        if (length < HEADER_LENGTH || length > MAX_PACKET_LENGTH)
+            throw new IllegalArgumentException("Malformed packet length: " + length);
+
+        if (buf.remaining() < length - FIXED_HEADER_LENGTH) {
             // there isn't a complete payload, this must be a partial read
-            buf.position(buf.position() - HEADER_LENGTH);
+            buf.position(start);
             return null;
         }
-        
-        byte[] payload = new byte[length - HEADER_LENGTH];
-        buf.get(payload);
-        
+
+        // nothing in the packet may reach past its length, whatever the
+        // address lengths say
+        int limit = buf.limit();
+        long seq;
+        InetAddress src, dst;
+        byte[] payload;
+        buf.limit(start + length);
+        try {
+            seq = buf.getLong();
+            src = IPUtils.deserializeIPAddr(buf);
+            dst = IPUtils.deserializeIPAddr(buf);
+
+            payload = new byte[buf.remaining()];
+            buf.get(payload);
+        } finally {
+            buf.limit(limit);
+        }
+
+        if ((flags & COMPRESSED) == COMPRESSED) {
+            try {
+                payload = PayloadCompressor.decompress(payload);
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt compressed payload", e);
+            }
+            flags &= ~COMPRESSED;
+        }
+
         SimpleDatagramPacket packet = new SimpleDatagramPacket(src, dst, srcPort, dstPort, payload);
         packet.ttl = ttl;
         packet.flags = flags;
-        
+        packet.seq = seq;
+
         return packet;
     }
 }
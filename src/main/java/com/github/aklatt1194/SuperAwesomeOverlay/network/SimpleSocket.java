@@ -7,10 +7,21 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 public abstract class SimpleSocket {
+    // put on the read queue to wake up whoever is waiting on a closed socket
+    private static final SimpleDatagramPacket CLOSED = new SimpleDatagramPacket(null, null, 0, 0,
+            new byte[0]);
+
     protected BlockingQueue<SimpleDatagramPacket> readQueue;
+    private volatile boolean closed;
+    protected NetworkInterface networkInterface;
     private int port;
 
     public SimpleSocket() {
+        this(NetworkInterface.getInstance());
+    }
+
+    public SimpleSocket(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
         readQueue = new LinkedBlockingQueue<>();
         port = 0;
     }
@@ -18,7 +29,7 @@ public abstract class SimpleSocket {
     public void bind(int port) {
         this.port = port;
         try {
-            NetworkInterface.getInstance().bindSocket(this, port);
+            networkInterface.bindSocket(this, port);
         } catch (SocketException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
@@ -27,6 +38,9 @@ public abstract class SimpleSocket {
 
     public abstract void send(SimpleDatagramPacket packet) throws IOException;
 
+    /**
+     * Wait for a packet. Returns null once the socket has been closed.
+     */
     public SimpleDatagramPacket receive() {
         SimpleDatagramPacket packet;
         while (true) {
@@ -35,7 +49,7 @@ public abstract class SimpleSocket {
             } catch (InterruptedException e) {
                 continue;
             }
-            return packet;
+            return checkClosed(packet);
         }
     }
 
@@ -51,15 +65,32 @@ public abstract class SimpleSocket {
                 last = System.currentTimeMillis();
             }
         }
-        return packet;
+        return checkClosed(packet);
     }
     
     public SimpleDatagramPacket interruptibleReceive(long timeout) throws InterruptedException {
-        return readQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        return checkClosed(readQueue.poll(timeout, TimeUnit.MILLISECONDS));
     }
 
+    /**
+     * Unbind the socket. Anybody waiting to receive (now or later) gets null.
+     */
     public void close() {
-        NetworkInterface.getInstance().closeSocket(this);
+        closed = true;
+        networkInterface.closeSocket(this);
+        readQueue.add(CLOSED);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // leave the marker for the next receiver
+    private SimpleDatagramPacket checkClosed(SimpleDatagramPacket packet) {
+        if (packet != CLOSED)
+            return packet;
+        readQueue.add(CLOSED);
+        return null;
     }
 
     public int getPort() {
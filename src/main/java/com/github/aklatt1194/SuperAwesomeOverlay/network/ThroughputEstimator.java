@@ -0,0 +1,107 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+/**
+ * Counts the bytes going each way over a single link and estimates the
+ * throughput the link can do from bursts of the traffic it carries anyway.
+ *
+ * A burst is a run of reads (or writes) with no gap longer than BURST_GAP in
+ * between. Small bursts say more about the application than the link, and
+ * the first few hundred KB of a write burst just fill up the socket buffer,
+ * so only bursts of at least MIN_BURST_BYTES over MIN_BURST_TIME count.
+ * Traffic is often slower than the link could go, so the estimate is the
+ * fastest burst seen in the last MAX_AGE rather than an average.
+ */
+class ThroughputEstimator {
+    protected static final long BURST_GAP = 20; // ms
+    protected static final long MIN_BURST_BYTES = 256 * 1024;
+    protected static final long MIN_BURST_TIME = 100; // ms
+    protected static final long MAX_AGE = 10 * 60 * 1000;
+    protected static final int SAMPLES = 8;
+
+    private Meter sent = new Meter();
+    private Meter received = new Meter();
+
+    /**
+     * Count bytes written to the link at now (System.nanoTime())
+     */
+    protected synchronized void sent(int bytes, long now) {
+        sent.add(bytes, now);
+    }
+
+    /**
+     * Count bytes read from the link at now (System.nanoTime())
+     */
+    protected synchronized void received(int bytes, long now) {
+        received.add(bytes, now);
+    }
+
+    protected synchronized long getBytesSent() {
+        return sent.total;
+    }
+
+    protected synchronized long getBytesReceived() {
+        return received.total;
+    }
+
+    /**
+     * The estimated throughput in bits/s away from us (upstream) or towards
+     * us, or -1 if there hasn't been a big enough burst in the last MAX_AGE.
+     */
+    protected synchronized double getThroughput(boolean upstream, long now) {
+        Meter meter = upstream ? sent : received;
+        meter.endBurst(now);
+        return meter.estimate(now);
+    }
+
+    private static class Meter {
+        private long total;
+
+        private long burstStart;
+        private long burstEnd;
+        private long burstBytes; // not counting the first transfer
+        private boolean inBurst;
+
+        private double[] rates = new double[SAMPLES];
+        private long[] times = new long[SAMPLES];
+        private int next;
+
+        private void add(int bytes, long now) {
+            total += bytes;
+
+            endBurst(now);
+            if (!inBurst) {
+                // the first transfer of a burst has no time to go with it
+                inBurst = true;
+                burstStart = now;
+                burstBytes = 0;
+            } else {
+                burstBytes += bytes;
+            }
+            burstEnd = now;
+        }
+
+        // finish off the current burst if it has been quiet for long enough
+        private void endBurst(long now) {
+            if (!inBurst || now - burstEnd <= BURST_GAP * 1000 * 1000)
+                return;
+            inBurst = false;
+
+            long nanos = burstEnd - burstStart;
+            if (burstBytes < MIN_BURST_BYTES || nanos < MIN_BURST_TIME * 1000 * 1000)
+                return;
+
+            rates[next] = burstBytes * 8 / (nanos / 1e9);
+            times[next] = burstEnd;
+            next = (next + 1) % SAMPLES;
+        }
+
+        private double estimate(long now) {
+            double best = -1;
+            for (int i = 0; i < SAMPLES; i++) {
+                if (rates[i] > 0 && now - times[i] <= MAX_AGE * 1000 * 1000)
+                    best = Math.max(best, rates[i]);
+            }
+            return best;
+        }
+    }
+}
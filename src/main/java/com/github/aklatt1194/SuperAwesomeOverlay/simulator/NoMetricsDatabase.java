@@ -0,0 +1,97 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.simulator;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseManager;
+
+/**
+ * A metrics database that forgets everything it is told. Simulated nodes get
+ * their link metrics from the keepalives, and hundreds of sqlite files would
+ * only get in the way.
+ */
+class NoMetricsDatabase implements MetricsDatabaseManager {
+    @Override
+    public void addLatencyData(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public void addThroughputData(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public void addDownstreamThroughputData(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public void addLatencyP90Data(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public void addJitterData(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public void addLossData(String nodeName, long time, double value) {
+    }
+
+    @Override
+    public Map<Long, Double> getLatencyData(String node, long startTime, long endTime) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getLatencyData(String node, long startTime, long endTime,
+            long bucketSize) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getThroughputData(String node, long startTime, long endTime) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getThroughputData(String node, long startTime, long endTime,
+            long bucketSize) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getDownstreamThroughputData(String node, long startTime,
+            long endTime) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getLatencyP90Data(String node, long startTime, long endTime,
+            long bucketSize) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getJitterData(String node, long startTime, long endTime,
+            long bucketSize) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<Long, Double> getLossData(String node, long startTime, long endTime,
+            long bucketSize) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public long getLastLatencyRecordTime(String node) {
+        return -1;
+    }
+
+    @Override
+    public long getLastThroughputRecordTime(String node) {
+        return -1;
+    }
+
+    @Override
+    public void close() {
+    }
+}
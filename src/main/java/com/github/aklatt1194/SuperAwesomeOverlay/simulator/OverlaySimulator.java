@@ -0,0 +1,218 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager;
+import com.github.aklatt1194.SuperAwesomeOverlay.PeerSelector;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+
+/**
+ * Runs a whole overlay in a single process, so that we can see how it
+ * behaves with hundreds of nodes without renting hundreds of hosts. Every
+ * node gets its own loopback address (127.1.x.y, which Linux routes to lo
+ * without any setup), its own NetworkInterface, routing model, peer selector
+ * and routing manager, and links between nodes get simulated latency and
+ * loss. Everybody bootstraps off of the first node.
+ *
+ * Once every node can route to every other one, we report how long that
+ * took, how many packets it took per link state round and how much memory a
+ * node needs.
+ *
+ * Usage: OverlaySimulator [nodes] [max latency ms] [loss] [timeout s]
+ */
+public class OverlaySimulator {
+    public static final int DEFAULT_NODES = 50;
+    public static final long DEFAULT_MAX_LATENCY = 100; // ms, one way
+    public static final double DEFAULT_LOSS = 0;
+    public static final long DEFAULT_TIMEOUT = 10 * 60; // s
+
+    private static final long START_SPACING = 20; // ms between node starts
+    private static final long CHECK_PERIOD = 1000;
+
+    private List<SimulatedNode> nodes;
+    private SimulatedLinks links;
+    private long linkStatePeriod = OverlayRoutingManager.LINK_STATE_PERIOD;
+
+    public OverlaySimulator(long maxLatency, double loss) {
+        this.nodes = new ArrayList<>();
+        this.links = new SimulatedLinks(maxLatency, loss, 42);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_NODES;
+        long maxLatency = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_MAX_LATENCY;
+        double loss = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_LOSS;
+        long timeout = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_TIMEOUT;
+
+        OverlaySimulator simulator = new OverlaySimulator(maxLatency, loss);
+        long baseline = usedMemory();
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            simulator.startNode();
+            Thread.sleep(START_SPACING);
+        }
+        long started = System.currentTimeMillis();
+        System.out.println("SIM: Started " + count + " nodes in " + (started - start) + " ms");
+
+        long converged = simulator.awaitConvergence(start + timeout * 1000);
+        long now = System.currentTimeMillis();
+
+        if (converged < 0) {
+            System.out.println("SIM: Not converged after " + (now - start) / 1000 + " s, "
+                    + simulator.countConverged() + " of " + count + " nodes can reach everyone");
+        } else {
+            System.out.println("SIM: Converged " + (converged - start) + " ms after the first "
+                    + "node started (" + (converged - started) + " ms after the last)");
+        }
+
+        simulator.report(baseline);
+        System.exit(converged < 0 ? 1 : 0);
+    }
+
+    /**
+     * Set the link state period of the nodes started from now on
+     */
+    public void setLinkStatePeriod(long linkStatePeriod) {
+        this.linkStatePeriod = linkStatePeriod;
+    }
+
+    /**
+     * Start another node and point it at the first one
+     */
+    public SimulatedNode startNode() throws IOException {
+        InetAddress addr = nodeAddress(nodes.size());
+        List<InetAddress> bootstrap = nodes.isEmpty() ? Collections.<InetAddress> emptyList()
+                : Collections.singletonList(nodes.get(0).addr);
+
+        links.place(addr);
+        SimulatedNode node = new SimulatedNode(addr, bootstrap, links, linkStatePeriod);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Wait until every node can route to every other one. Returns when that
+     * happened, or -1 if it didn't by deadline.
+     */
+    public long awaitConvergence(long deadline) throws InterruptedException {
+        while (System.currentTimeMillis() < deadline) {
+            if (countConverged() == nodes.size())
+                return System.currentTimeMillis();
+            Thread.sleep(CHECK_PERIOD);
+        }
+        return -1;
+    }
+
+    /**
+     * How many nodes have a route (on both the MST and the shortest paths) to
+     * every other node
+     */
+    public int countConverged() {
+        int converged = 0;
+        for (SimulatedNode node : nodes) {
+            if (node.canReach(nodes))
+                converged++;
+        }
+        return converged;
+    }
+
+    /**
+     * Stop every node, the last one started first
+     */
+    public void shutdown() {
+        for (int i = nodes.size() - 1; i >= 0; i--)
+            nodes.get(i).shutdown();
+        nodes.clear();
+    }
+
+    private void report(long baseline) {
+        long packets = 0;
+        int rounds = 0;
+        int links = 0;
+        for (SimulatedNode node : nodes) {
+            packets += node.networkInterface.getPacketsSent();
+            rounds = Math.max(rounds, node.manager.getRounds());
+            links += node.model.getKnownNeighbors().size();
+        }
+
+        int count = nodes.size();
+        System.out.println("SIM: " + links / 2 + " links, " + String.format("%.1f", links
+                / (double) count) + " per node");
+        System.out.println("SIM: " + packets + " packets over " + rounds + " rounds, "
+                + (rounds == 0 ? 0 : packets / rounds) + " per round ("
+                + (rounds == 0 ? 0 : packets / rounds / count) + " per node)");
+        System.out.println("SIM: " + (usedMemory() - baseline) / count / 1024
+                + " KB of heap and " + Thread.activeCount() / count + " threads per node");
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static InetAddress nodeAddress(int i) throws UnknownHostException {
+        // 127.1.0.1 on up, leaving 127.0.0.1 alone
+        int n = i + 1;
+        return InetAddress.getByAddress(new byte[] { 127, 1, (byte) (n >> 8), (byte) n });
+    }
+
+    /**
+     * Everything that makes up one node
+     */
+    public static class SimulatedNode {
+        private InetAddress addr;
+        private OverlayRoutingModel model;
+        private NetworkInterface networkInterface;
+        private OverlayRoutingManager manager;
+
+        private SimulatedNode(InetAddress addr, List<InetAddress> bootstrap, SimulatedLinks links,
+                long linkStatePeriod) throws IOException {
+            this.addr = addr;
+            model = new OverlayRoutingModel(addr);
+
+            networkInterface = new NetworkInterface(addr);
+            networkInterface.setLinkConditioner(links);
+            networkInterface.initialize(model, bootstrap);
+
+            PeerSelector peerSelector = new PeerSelector(model, null, networkInterface);
+            manager = new OverlayRoutingManager(model, new NoMetricsDatabase(), peerSelector,
+                    networkInterface);
+            manager.setLinkStatePeriod(linkStatePeriod);
+        }
+
+        public InetAddress getAddress() {
+            return addr;
+        }
+
+        public OverlayRoutingModel getModel() {
+            return model;
+        }
+
+        private void shutdown() {
+            manager.shutdown();
+            networkInterface.shutdown(1000);
+        }
+
+        private boolean canReach(List<SimulatedNode> nodes) {
+            Map<InetAddress, InetAddress> fTable = model.getForwardingTable();
+            Map<InetAddress, InetAddress> spTable = model.getShortestPathTable();
+
+            for (SimulatedNode node : nodes) {
+                if (node != this
+                        && (!fTable.containsKey(node.addr) || !spTable.containsKey(node.addr)))
+                    return false;
+            }
+            return true;
+        }
+    }
+}
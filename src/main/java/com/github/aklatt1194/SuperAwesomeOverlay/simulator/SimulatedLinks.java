@@ -0,0 +1,55 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.simulator;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.network.LinkConditioner;
+
+/**
+ * Latency and loss for the links between simulated nodes. Every node gets a
+ * random spot on a square map and the one way latency of a link is the
+ * distance between its ends, so the latencies look like they would between
+ * real places (the triangle inequality holds, neighbors of neighbors tend to
+ * be close, etc).
+ */
+class SimulatedLinks implements LinkConditioner {
+    private long maxLatency;
+    private double loss;
+    private Random random;
+    private Map<InetAddress, double[]> positions;
+
+    /**
+     * @param maxLatency One way latency (ms) between opposite corners of the
+     *        map
+     * @param loss Chance that any single packet is lost
+     */
+    SimulatedLinks(long maxLatency, double loss, long seed) {
+        this.maxLatency = maxLatency;
+        this.loss = loss;
+        this.random = new Random(seed);
+        this.positions = new ConcurrentHashMap<>();
+    }
+
+    synchronized void place(InetAddress addr) {
+        positions.put(addr, new double[] { random.nextDouble(), random.nextDouble() });
+    }
+
+    @Override
+    public long getDelay(InetAddress from, InetAddress to) {
+        double[] a = positions.get(from);
+        double[] b = positions.get(to);
+        if (a == null || b == null)
+            return 0;
+
+        double distance = Math.hypot(a[0] - b[0], a[1] - b[1]) / Math.sqrt(2);
+        return Math.round(distance * maxLatency);
+    }
+
+    @Override
+    public boolean drop(InetAddress from, InetAddress to) {
+        return loss > 0 && ThreadLocalRandom.current().nextDouble() < loss;
+    }
+}
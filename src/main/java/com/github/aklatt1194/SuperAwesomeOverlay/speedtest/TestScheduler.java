@@ -0,0 +1,378 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.speedtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.models.MetricsDatabaseManager;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.BaseLayerSocket;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.SimpleDatagramPacket;
+
+/**
+ * Decides when to run throughput tests and against whom, so that tests don't
+ * run into each other. Before testing a neighbor we ask it for a slot, and a
+ * node only hands out one slot at a time (and none while it is running a test
+ * of its own), so no link ever carries two tests at once.
+ *
+ * Links that carry enough traffic of their own don't get tested at all, we
+ * just record what NetworkInterface saw them do. Of the rest, neighbors whose
+ * data is the most out of date go first, and a token bucket keeps the number
+ * of tests we start bounded no matter how many neighbors we have.
+ */
+public class TestScheduler implements Runnable {
+    public static final int PORT = 4546;
+    public static final long CHECK_PERIOD = 30 * 1000;
+
+    // Throughput data younger than this is fresh enough
+    public static final long MIN_RETEST_AGE = 10 * 60 * 1000;
+
+    // At most MAX_BURST tests back to back, and one per TEST_SPACING on
+    // average
+    public static final int MAX_BURST = 2;
+    public static final long TEST_SPACING = 2 * 60 * 1000;
+
+    // How long we wait for a target to answer a slot request, and how many
+    // targets we ask per check
+    public static final long SLOT_TIMEOUT = 2 * 1000;
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final byte SLOT_REQUEST = 0x1;
+    private static final byte SLOT_GRANT = 0x2;
+    private static final byte SLOT_DENY = 0x3;
+    private static final byte SLOT_RELEASE = 0x4;
+    private static final int MESSAGE_LENGTH = 13; // type, request id, duration/retry after
+
+    private OverlayRoutingModel model;
+    private MetricsDatabaseManager db;
+    private NetworkInterface networkInterface;
+    private ThroughputTester tester;
+    private BaseLayerSocket socket;
+
+    private Slot slot;
+    private Map<InetAddress, Long> lastTest;
+    private Map<InetAddress, Long> retryAfter;
+    private BlockingQueue<SimpleDatagramPacket> replies;
+    private AtomicInteger nextRequestId;
+
+    private double tokens;
+    private long lastRefill;
+    private Random random;
+
+    private Thread scheduler;
+    private volatile boolean running = true;
+
+    public TestScheduler(OverlayRoutingModel model, MetricsDatabaseManager db,
+            ThroughputTester tester) {
+        this(model, db, tester, NetworkInterface.getInstance());
+    }
+
+    public TestScheduler(OverlayRoutingModel model, MetricsDatabaseManager db,
+            ThroughputTester tester, NetworkInterface networkInterface) {
+        this.model = model;
+        this.db = db;
+        this.tester = tester;
+        this.networkInterface = networkInterface;
+
+        slot = new Slot();
+        lastTest = new ConcurrentHashMap<>();
+        retryAfter = new ConcurrentHashMap<>();
+        replies = new LinkedBlockingQueue<>();
+        nextRequestId = new AtomicInteger();
+        random = new Random();
+
+        tokens = MAX_BURST;
+        lastRefill = System.currentTimeMillis();
+
+        socket = new BaseLayerSocket(networkInterface);
+        socket.bind(PORT);
+
+        new Thread(new SlotServer()).start();
+        scheduler = new Thread(this);
+        scheduler.start();
+    }
+
+    /**
+     * Stop testing and answering slot requests, along with the tester
+     * itself. A test that is under way is cut short and not recorded.
+     */
+    public void shutdown() {
+        running = false;
+        scheduler.interrupt();
+        socket.close();
+        tester.shutdown();
+        try {
+            scheduler.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            // spread the checks out so that nodes that came up together don't
+            // all go at once
+            try {
+                Thread.sleep(CHECK_PERIOD / 2 + (long) (random.nextDouble() * CHECK_PERIOD));
+            } catch (InterruptedException e) {
+            }
+            if (!running)
+                return;
+
+            long now = System.currentTimeMillis();
+            refill(now);
+            if (tokens < 1)
+                continue;
+
+            int attempts = 0;
+            for (InetAddress target : orderTargets(model.getKnownNeighbors(), now)) {
+                if (attempts++ == MAX_ATTEMPTS)
+                    break;
+
+                if (testWithSlot(target)) {
+                    tokens--;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The neighbors that are due for a test, stalest first
+     */
+    private List<InetAddress> orderTargets(List<InetAddress> neighbors, long now) {
+        final Map<InetAddress, Long> ages = new HashMap<>();
+        for (InetAddress addr : neighbors) {
+            Long retry = retryAfter.get(addr);
+            if (retry != null && retry > now)
+                continue;
+
+            long age = now - getLastTest(addr);
+            if (age >= MIN_RETEST_AGE && !recordPassive(addr, now))
+                ages.put(addr, age);
+        }
+
+        List<InetAddress> targets = new ArrayList<>(ages.keySet());
+        Collections.sort(targets, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress a, InetAddress b) {
+                return Long.compare(ages.get(b), ages.get(a));
+            }
+        });
+        return targets;
+    }
+
+    /**
+     * If the link to addr has carried enough traffic lately to estimate its
+     * throughput both ways, record that instead of testing it. Returns false
+     * if an active test is still needed.
+     */
+    private boolean recordPassive(InetAddress addr, long now) {
+        double upstream = networkInterface.getLinkThroughput(addr, true);
+        double downstream = networkInterface.getLinkThroughput(addr, false);
+        if (upstream < 0 || downstream < 0)
+            return false;
+
+        lastTest.put(addr, now);
+        db.addThroughputData(addr.getHostAddress(), now, upstream);
+        db.addDownstreamThroughputData(addr.getHostAddress(), now, downstream);
+        return true;
+    }
+
+    // When the last test of addr was, as far as we or the database know
+    private long getLastTest(InetAddress addr) {
+        Long last = lastTest.get(addr);
+        if (last == null) {
+            last = Math.max(0, db.getLastThroughputRecordTime(addr.getHostAddress()));
+            lastTest.put(addr, last);
+        }
+        return last;
+    }
+
+    /**
+     * Get a slot from target and run the test. Returns false if we didn't get
+     * a slot (or are busy ourselves).
+     */
+    private boolean testWithSlot(InetAddress target) {
+        long testTime = tester.getMaxTestTime();
+        long now = System.currentTimeMillis();
+
+        // we don't want to be tested while we are testing
+        if (!slot.tryReserve(model.getSelfAddress(), now, testTime + SLOT_TIMEOUT))
+            return false;
+
+        try {
+            // a target we can't reach (or that never answers) is left alone
+            // for a while, like one that is always busy
+            int id = nextRequestId.incrementAndGet();
+            if (!send(target, SLOT_REQUEST, id, testTime)) {
+                retryAfter.put(target, System.currentTimeMillis() + MIN_RETEST_AGE);
+                return false;
+            }
+
+            SimpleDatagramPacket reply = awaitReply(target, id);
+            if (reply == null) {
+                // the grant may just be late, don't leave the slot held until
+                // it expires
+                send(target, SLOT_RELEASE, id, 0);
+                retryAfter.put(target, System.currentTimeMillis() + MIN_RETEST_AGE);
+                return false;
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(reply.getPayload());
+            byte type = buf.get();
+            buf.getInt();
+            long value = buf.getLong();
+
+            if (type != SLOT_GRANT) {
+                // come back once it is free
+                retryAfter.put(target, System.currentTimeMillis() + value);
+                return false;
+            }
+
+            ThroughputTester.Result result = tester.runTest(target);
+            send(target, SLOT_RELEASE, id, 0);
+
+            long time = System.currentTimeMillis();
+            lastTest.put(target, time);
+            if (result != null && running) {
+                db.addThroughputData(target.getHostAddress(), time, result.upstream);
+                db.addDownstreamThroughputData(target.getHostAddress(), time, result.downstream);
+            }
+            return true;
+        } finally {
+            slot.release(model.getSelfAddress());
+        }
+    }
+
+    private SimpleDatagramPacket awaitReply(InetAddress target, int id) {
+        long end = System.currentTimeMillis() + SLOT_TIMEOUT;
+        long wait;
+
+        while ((wait = end - System.currentTimeMillis()) > 0) {
+            SimpleDatagramPacket reply;
+            try {
+                reply = replies.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (reply == null)
+                break;
+
+            // drop anything left over from an earlier request
+            ByteBuffer buf = ByteBuffer.wrap(reply.getPayload());
+            buf.get();
+            if (reply.getSource().equals(target) && buf.getInt() == id)
+                return reply;
+        }
+
+        return null;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(MAX_BURST, tokens + (now - lastRefill) / (double) TEST_SPACING);
+        lastRefill = now;
+    }
+
+    // Returns false if the message couldn't be sent
+    private boolean send(InetAddress dst, byte type, int id, long value) {
+        ByteBuffer buf = ByteBuffer.allocate(MESSAGE_LENGTH);
+        buf.put(type);
+        buf.putInt(id);
+        buf.putLong(value);
+
+        try {
+            socket.send(new SimpleDatagramPacket(model.getSelfAddress(), dst, PORT, PORT, buf
+                    .array()));
+            return true;
+        } catch (IOException e) {
+            // This node is no longer connected
+            return false;
+        }
+    }
+
+    /**
+     * Answers slot requests from other nodes, and passes their answers to our
+     * own requests on to the scheduler
+     */
+    class SlotServer implements Runnable {
+        @Override
+        public void run() {
+            SimpleDatagramPacket packet;
+            while ((packet = socket.receive()) != null) {
+                ByteBuffer buf = ByteBuffer.wrap(packet.getPayload());
+                if (buf.remaining() < MESSAGE_LENGTH)
+                    continue;
+
+                byte type = buf.get();
+                int id = buf.getInt();
+                long value = buf.getLong();
+                InetAddress src = packet.getSource();
+                long now = System.currentTimeMillis();
+
+                switch (type) {
+                case SLOT_REQUEST:
+                    long duration = Math.min(value, ThroughputTester.MAX_DURATION * 4);
+                    if (slot.tryReserve(src, now, duration)) {
+                        // it won't be testing us if it never hears about it
+                        if (!send(src, SLOT_GRANT, id, duration))
+                            slot.release(src);
+                    } else
+                        send(src, SLOT_DENY, id, slot.remaining(now));
+                    break;
+                case SLOT_RELEASE:
+                    slot.release(src);
+                    break;
+                case SLOT_GRANT:
+                case SLOT_DENY:
+                    replies.add(packet);
+                    break;
+                default:
+                    System.err.println("DEBUG: Unknown test scheduler message from " + src);
+                }
+            }
+        }
+    }
+
+    /**
+     * The one test slot a node has. It is either free, held by a node that is
+     * testing us, or held by us while we test someone else. A holder that
+     * never releases it loses it when it expires.
+     */
+    static class Slot {
+        private InetAddress holder;
+        private long expires;
+
+        synchronized boolean tryReserve(InetAddress addr, long now, long duration) {
+            if (holder != null && now < expires && !holder.equals(addr))
+                return false;
+
+            holder = addr;
+            expires = now + duration;
+            return true;
+        }
+
+        synchronized void release(InetAddress addr) {
+            if (addr.equals(holder))
+                holder = null;
+        }
+
+        // how long until the slot is free (at the latest)
+        synchronized long remaining(long now) {
+            return holder == null ? 0 : Math.max(0, expires - now);
+        }
+    }
+}
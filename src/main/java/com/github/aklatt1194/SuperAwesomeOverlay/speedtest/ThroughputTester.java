@@ -0,0 +1,437 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.speedtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput to a neighbor, both ways, by pushing as much data as
+ * we can over a few parallel TCP streams for a couple of seconds. Every node
+ * runs the server half on PORT. When to test whom is up to the TestScheduler.
+ *
+ * Each stream starts with a request (direction and duration) which the server
+ * accepts or turns down if it is already busy with too many streams. For an
+ * upstream test we send and the server tells us how much it got, for a
+ * downstream test the server sends and we count. Either way the number is
+ * taken by the receiving end, since the sender's count includes whatever is
+ * still sitting in socket buffers.
+ *
+ * All data goes out of a single read only direct buffer, so sending doesn't
+ * allocate or copy anything. Tests are capped in duration and streams, and a
+ * watchdog closes any stream that runs over, so a test can't hog a link.
+ */
+public class ThroughputTester {
+    public static final int PORT = 4545;
+    public static final long DEFAULT_DURATION = 2 * 1000;
+    public static final int DEFAULT_STREAMS = 2;
+
+    // hard limits, whatever anyone asks for
+    public static final long MAX_DURATION = 10 * 1000;
+    public static final int MAX_STREAMS = 8;
+    public static final int MAX_SERVER_STREAMS = 8;
+
+    private static final long CONNECT_TIMEOUT = 5 * 1000;
+    private static final long GRACE = 5 * 1000; // on top of the duration
+    private static final long TURN_DOWN_LINGER = 1000; // before closing a stream we turned down
+    private static final int BUFFER_SIZE = 128 * 1024;
+
+    protected static final byte UPSTREAM = 0x1;
+    protected static final byte DOWNSTREAM = 0x2;
+    protected static final byte ACCEPTED = 0x1;
+    protected static final byte BUSY = 0x2;
+    protected static final int REQUEST_LENGTH = 5; // direction, duration
+    protected static final int REPORT_LENGTH = 16; // bytes, nanos
+
+    private static final ByteBuffer PAYLOAD = createPayload();
+
+    private volatile long duration = DEFAULT_DURATION;
+    private volatile int streams = DEFAULT_STREAMS;
+
+    private ExecutorService workers;
+    private ScheduledExecutorService watchdog;
+    private Semaphore serverStreams;
+    private Server server;
+    private Thread serverThread;
+
+    public ThroughputTester() {
+        ThreadFactory daemons = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        workers = Executors.newCachedThreadPool(daemons);
+        watchdog = Executors.newSingleThreadScheduledExecutor(daemons);
+        serverStreams = new Semaphore(MAX_SERVER_STREAMS);
+
+        server = new Server();
+        serverThread = new Thread(server);
+        serverThread.start();
+    }
+
+    /**
+     * Stop the server and cut off every stream, ours and other nodes'. The
+     * port is free again once this returns.
+     */
+    public void shutdown() {
+        server.close();
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+
+        // the socket is only really closed once the server thread is out of
+        // accept()
+        try {
+            serverThread.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * How long a whole test (both directions) can take at most with the
+     * current settings, in ms
+     */
+    public long getMaxTestTime() {
+        return 2 * (duration + GRACE);
+    }
+
+    /**
+     * Set how long (ms) each direction of a test runs and how many parallel
+     * streams it uses. Both are capped at MAX_DURATION and MAX_STREAMS.
+     */
+    public void setTestParameters(long duration, int streams) {
+        this.duration = Math.max(1, Math.min(duration, MAX_DURATION));
+        this.streams = Math.max(1, Math.min(streams, MAX_STREAMS));
+    }
+
+    /**
+     * Test the throughput to and from target. Returns null if the test
+     * couldn't be run (the node is down, busy, etc).
+     */
+    public Result runTest(InetAddress target) {
+        try {
+            Result result = new Result();
+            result.upstream = measure(target, UPSTREAM);
+            result.downstream = measure(target, DOWNSTREAM);
+            return result;
+        } catch (IOException e) {
+            System.err.println("DEBUG: Throughput test to " + target + " failed: "
+                    + e.getMessage());
+            return null;
+        } catch (RejectedExecutionException e) {
+            // we have been shut down
+            return null;
+        }
+    }
+
+    /**
+     * Run one direction of a test over parallel streams. Returns bits/s.
+     */
+    private double measure(InetAddress target, final byte direction) throws IOException {
+        final long testDuration = duration;
+        int testStreams = streams;
+
+        final List<SocketChannel> channels = new ArrayList<>();
+        List<Future<long[]>> results = new ArrayList<>();
+        ScheduledFuture<?> timeout = null;
+
+        try {
+            for (int i = 0; i < testStreams; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channels.add(channel);
+                channel.socket().connect(new InetSocketAddress(target, PORT),
+                        (int) CONNECT_TIMEOUT);
+            }
+
+            timeout = closeLater(channels, testDuration + GRACE);
+
+            for (final SocketChannel channel : channels) {
+                results.add(workers.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws IOException {
+                        return runClientStream(channel, direction, testDuration);
+                    }
+                }));
+            }
+
+            // bytes add up, the time is however long the slowest stream took
+            long bytes = 0;
+            long nanos = 0;
+            for (Future<long[]> result : results) {
+                long[] stream = get(result);
+                bytes += stream[0];
+                nanos = Math.max(nanos, stream[1]);
+            }
+
+            if (nanos <= 0)
+                throw new IOException("Nothing was transferred");
+
+            return bytes * 8 / (nanos / 1e9);
+        } finally {
+            if (timeout != null)
+                timeout.cancel(false);
+            closeAll(channels);
+        }
+    }
+
+    // One stream of a test, from our end. Returns bytes and nanos as counted
+    // by the receiving end.
+    private long[] runClientStream(SocketChannel channel, byte direction, long testDuration)
+            throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(REQUEST_LENGTH);
+        request.put(direction);
+        request.putInt((int) testDuration);
+        request.flip();
+        writeFully(channel, request);
+
+        ByteBuffer status = readFully(channel, 1);
+        if (status.get() != ACCEPTED)
+            throw new IOException("Server is busy");
+
+        if (direction == DOWNSTREAM)
+            return receive(channel);
+
+        send(channel, testDuration);
+        channel.shutdownOutput();
+
+        ByteBuffer report = readFully(channel, REPORT_LENGTH);
+        return new long[] { report.getLong(), report.getLong() };
+    }
+
+    // The server's half of a single stream, which already holds one of the
+    // serverStreams permits
+    private void runServerStream(SocketChannel channel) {
+        ScheduledFuture<?> timeout = closeLater(Collections.singletonList(channel),
+                MAX_DURATION + GRACE);
+
+        try {
+            ByteBuffer request = readFully(channel, REQUEST_LENGTH);
+            byte direction = request.get();
+            long testDuration = Math.max(1, Math.min(request.getInt(), MAX_DURATION));
+
+            writeFully(channel, status(ACCEPTED));
+
+            if (direction == UPSTREAM) {
+                long[] received = receive(channel);
+                ByteBuffer report = ByteBuffer.allocate(REPORT_LENGTH);
+                report.putLong(received[0]);
+                report.putLong(received[1]);
+                report.flip();
+                writeFully(channel, report);
+            } else if (direction == DOWNSTREAM) {
+                send(channel, testDuration);
+            }
+        } catch (IOException e) {
+            // the other end went away or ran over, nothing to clean up but
+            // the channel
+        } finally {
+            serverStreams.release();
+            timeout.cancel(false);
+            closeAll(Collections.singletonList(channel));
+        }
+    }
+
+    // Tell a stream that we have no room for it without giving it a thread.
+    // The answer goes out before its request is read, and the channel is
+    // closed a little later so that the answer isn't lost to a reset.
+    private void turnDown(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(status(BUSY));
+            channel.shutdownOutput();
+            closeLater(Collections.singletonList(channel), TURN_DOWN_LINGER);
+        } catch (IOException | RejectedExecutionException e) {
+            closeAll(Collections.singletonList(channel));
+        }
+    }
+
+    private static ByteBuffer status(byte status) {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        buf.put(status);
+        buf.flip();
+        return buf;
+    }
+
+    // Send as fast as the socket will take it for testDuration ms
+    private static void send(SocketChannel channel, long testDuration) throws IOException {
+        ByteBuffer data = PAYLOAD.duplicate();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(testDuration);
+
+        while (System.nanoTime() < end) {
+            if (!data.hasRemaining())
+                data.rewind();
+            channel.write(data);
+        }
+    }
+
+    // Count everything up to EOF. The clock starts at the first byte so that
+    // connection setup doesn't count against the link.
+    private static long[] receive(SocketChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long bytes = 0;
+        long start = 0;
+        long end = 0;
+
+        int n;
+        while ((n = channel.read(buf)) != -1) {
+            if (n > 0) {
+                long now = System.nanoTime();
+                if (bytes == 0)
+                    start = now;
+                end = now;
+                bytes += n;
+            }
+            buf.clear();
+        }
+
+        return new long[] { bytes, end - start };
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1)
+                throw new IOException("Connection closed early");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    private ScheduledFuture<?> closeLater(final List<SocketChannel> channels, long delay) {
+        return watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeAll(channels);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeAll(List<SocketChannel> channels) {
+        for (SocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static long[] get(Future<long[]> future) throws IOException {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                continue;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static ByteBuffer createPayload() {
+        // random so that nothing along the way can compress it
+        byte[] bytes = new byte[BUFFER_SIZE];
+        new Random().nextBytes(bytes);
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buf.put(bytes);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * The result of a test, in bits/s
+     */
+    public static class Result {
+        public double upstream;
+        public double downstream;
+    }
+
+    class Server implements Runnable {
+        private ServerSocketChannel serverChannel;
+
+        public Server() {
+            try {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.socket().bind(new InetSocketAddress(PORT));
+            } catch (IOException e) {
+                System.err.println("Unable to open throughput test server socket");
+                e.printStackTrace();
+                close();
+                serverChannel = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (serverChannel == null)
+                return;
+
+            while (serverChannel.isOpen()) {
+                final SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (serverChannel.isOpen())
+                        System.err.println("DEBUG: Throughput test accept failed");
+                    continue;
+                }
+
+                // only the streams we are going to run get a thread, a flood
+                // of connections can't run up the thread count
+                if (!serverStreams.tryAcquire()) {
+                    turnDown(channel);
+                    continue;
+                }
+
+                try {
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runServerStream(channel);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // shut down between the accept and here
+                    serverStreams.release();
+                    closeAll(Collections.singletonList(channel));
+                    break;
+                }
+            }
+        }
+
+        private void close() {
+            if (serverChannel == null)
+                return;
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
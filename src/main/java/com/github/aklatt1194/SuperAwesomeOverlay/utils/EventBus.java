@@ -0,0 +1,102 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands events to listeners on threads of its own, so that whoever publishes
+ * an event never waits on a listener (or holds its locks while a listener
+ * runs). Publishing doesn't block.
+ *
+ * Each listener gets every event published after it subscribed, one at a
+ * time and in the order they were published. Listeners don't wait for each
+ * other, a slow one only falls behind itself.
+ */
+public class EventBus<L> {
+    private List<Subscriber> subscribers;
+    private Executor executor;
+
+    /**
+     * Something that happened, which knows which callback of the listener to
+     * call
+     */
+    public interface Event<L> {
+        public void deliverTo(L listener);
+    }
+
+    public EventBus() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    /**
+     * Deliver events on the threads of executor. It has to run whatever it is
+     * given eventually, but doesn't need to keep it in order.
+     */
+    public EventBus(Executor executor) {
+        this.executor = executor;
+        subscribers = new CopyOnWriteArrayList<>();
+    }
+
+    public void subscribe(L listener) {
+        subscribers.add(new Subscriber(listener));
+    }
+
+    public void publish(Event<L> event) {
+        for (Subscriber subscriber : subscribers)
+            subscriber.offer(event);
+    }
+
+    /**
+     * A listener and the events it hasn't seen yet. At most one thread at a
+     * time delivers them.
+     */
+    private class Subscriber implements Runnable {
+        private L listener;
+        private Queue<Event<L>> pending;
+        private AtomicBoolean scheduled;
+
+        private Subscriber(L listener) {
+            this.listener = listener;
+            pending = new ConcurrentLinkedQueue<>();
+            scheduled = new AtomicBoolean();
+        }
+
+        private void offer(Event<L> event) {
+            pending.offer(event);
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Event<L> event;
+            while ((event = pending.poll()) != null) {
+                try {
+                    event.deliverTo(listener);
+                } catch (RuntimeException e) {
+                    System.err.println("Error delivering an event to " + listener);
+                    e.printStackTrace();
+                }
+            }
+            scheduled.set(false);
+
+            // something may have come in after we last looked, and its
+            // publisher saw that we were still scheduled
+            if (!pending.isEmpty() && scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+    }
+}
@@ -39,19 +39,44 @@ public class IPUtils {
         return 0;
     }
     
+    /**
+     * Write the address to the buffer as a length followed by the raw bytes. A
+     * null address is written as a zero length.
+     */
     public static void serializeIPAddr(InetAddress addr, ByteBuffer buf) {
+        if (addr == null) {
+            buf.putInt(0);
+            return;
+        }
         byte[] bytes = addr.getAddress();
         buf.putInt(bytes.length);
         buf.put(bytes);
     }
     
+    /**
+     * The number of bytes serializeIPAddr will use for the given address
+     */
+    public static int serializedLength(InetAddress addr) {
+        return 4 + (addr == null ? 0 : addr.getAddress().length);
+    }
+    
+    /**
+     * Read an address written by serializeIPAddr. Throws an
+     * IllegalArgumentException if the buffer doesn't hold one.
+     */
     public static InetAddress deserializeIPAddr(ByteBuffer buf) {
+        if (buf.remaining() < 4)
+            throw new IllegalArgumentException("Truncated address");
         int len = buf.getInt();
-        byte[] bytes = new byte[len];
+        if (len == 0)
+            return null;
         
-        for (int i = 0; i < len; i++) {
-            bytes[i] = buf.get();
-        }
+        // IPv4 or IPv6, and it has to all be there
+        if ((len != 4 && len != 16) || len > buf.remaining())
+            throw new IllegalArgumentException("Malformed address length: " + len);
+        
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
         
         try {
             return InetAddress.getByAddress(bytes);
@@ -0,0 +1,82 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the parts of a node that run threads or hold on to
+ * resources, so that the node can be taken down cleanly (e.g. for a rolling
+ * restart) instead of just dying.
+ *
+ * Components are added as they are started, and stopped in the opposite
+ * order, so everything a component depends on is still up while it drains.
+ * Each component is expected to bound its own shutdown. A component that
+ * throws doesn't keep the rest from stopping.
+ */
+public class Lifecycle {
+    private List<Component> components;
+    private boolean stopped;
+
+    public Lifecycle() {
+        components = new ArrayList<>();
+    }
+
+    /**
+     * Something that can be shut down
+     */
+    public interface Stoppable {
+        public void shutdown();
+    }
+
+    /**
+     * Add a component that has just been started
+     */
+    public synchronized void started(String name, Stoppable stoppable) {
+        components.add(new Component(name, stoppable));
+    }
+
+    /**
+     * Stop everything when the JVM is asked to exit (SIGTERM, ctrl-c,
+     * System.exit())
+     */
+    public void stopOnExit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }));
+    }
+
+    /**
+     * Stop every component, newest first. Only the first call does anything.
+     */
+    public synchronized void stop() {
+        if (stopped)
+            return;
+        stopped = true;
+
+        for (int i = components.size() - 1; i >= 0; i--) {
+            Component component = components.get(i);
+            long start = System.currentTimeMillis();
+            try {
+                component.stoppable.shutdown();
+            } catch (RuntimeException e) {
+                System.err.println("Error stopping " + component.name);
+                e.printStackTrace();
+            }
+            System.out.println("Stopped " + component.name + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    private static class Component {
+        private String name;
+        private Stoppable stoppable;
+
+        private Component(String name, Stoppable stoppable) {
+            this.name = name;
+            this.stoppable = stoppable;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and gauges for keeping an eye on a running node. Hot
+ * paths only ever touch a LongAdder or an atomic array slot, all of the
+ * adding up happens when somebody asks for a snapshot.
+ *
+ * Counters and histograms are looked up by name and created on first use,
+ * so several nodes in one process (the simulator) share them. A gauge is
+ * just a callback that gets asked for its value, and registering one under a
+ * name that is already taken replaces the old one.
+ */
+public class StatsRegistry {
+    private static final StatsRegistry instance = new StatsRegistry();
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, GaugeFamily> gauges = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, String> help = new ConcurrentHashMap<>();
+
+    public static StatsRegistry getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name, String description) {
+        help.putIfAbsent(name, description);
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * A histogram of (non negative) values, e.g. durations in microseconds.
+     * The unit should be part of the name.
+     */
+    public Histogram histogram(String name, String description) {
+        help.putIfAbsent(name, description);
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    public void gauge(String name, String description, final Gauge gauge) {
+        gauges(name, description, null, new GaugeFamily() {
+            @Override
+            public Map<String, Number> values() {
+                Map<String, Number> values = new LinkedHashMap<>();
+                values.put(null, gauge.value());
+                return values;
+            }
+        });
+    }
+
+    /**
+     * A set of gauges that only differ in one label, e.g. bytes sent per link
+     * labeled by peer
+     */
+    public void gauges(String name, String description, String label, GaugeFamily family) {
+        help.put(name, description);
+        gauges.put(name, label == null ? family : new LabeledFamily(label, family));
+    }
+
+    /**
+     * Everything, in a form that turns into sensible JSON
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Counter> entry : sorted(counters).entrySet())
+            result.put(entry.getKey(), entry.getValue().get());
+
+        for (Map.Entry<String, GaugeFamily> entry : sorted(gauges).entrySet()) {
+            Map<String, Number> values = entry.getValue().values();
+            if (entry.getValue() instanceof LabeledFamily)
+                result.put(entry.getKey(), values);
+            else if (!values.isEmpty())
+                result.put(entry.getKey(), values.values().iterator().next());
+        }
+
+        for (Map.Entry<String, Histogram> entry : sorted(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            Map<String, Object> summary = new LinkedHashMap<>();
+            long count = histogram.getCount();
+            summary.put("count", count);
+            summary.put("mean", count == 0 ? 0 : histogram.getSum() / (double) count);
+            for (double q : QUANTILES)
+                summary.put("p" + Math.round(q * 100), histogram.getQuantile(q));
+            summary.put("max", histogram.getMax());
+            result.put(entry.getKey(), summary);
+        }
+
+        return result;
+    }
+
+    /**
+     * Everything in the Prometheus text format. Histograms are written as
+     * summaries.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+
+        for (Map.Entry<String, Counter> entry : sorted(counters).entrySet()) {
+            header(out, entry.getKey(), "counter");
+            sample(out, entry.getKey(), null, entry.getValue().get());
+        }
+
+        for (Map.Entry<String, GaugeFamily> entry : sorted(gauges).entrySet()) {
+            header(out, entry.getKey(), "gauge");
+            String label = entry.getValue() instanceof LabeledFamily ? ((LabeledFamily) entry
+                    .getValue()).label : null;
+            for (Map.Entry<String, Number> value : entry.getValue().values().entrySet()) {
+                String labels = label == null ? null : label + "=\"" + escape(value.getKey())
+                        + "\"";
+                sample(out, entry.getKey(), labels, value.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Histogram> entry : sorted(histograms).entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+
+            header(out, name, "summary");
+            for (double q : QUANTILES)
+                sample(out, name, "quantile=\"" + q + "\"", histogram.getQuantile(q));
+            sample(out, name + "_sum", null, histogram.getSum());
+            sample(out, name + "_count", null, histogram.getCount());
+        }
+
+        return out.toString();
+    }
+
+    private void header(StringBuilder out, String name, String type) {
+        String description = help.get(name);
+        if (description != null)
+            out.append("# HELP ").append(name).append(' ').append(description).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Number value) {
+        out.append(name);
+        if (labels != null)
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static <T> Map<String, T> sorted(Map<String, T> map) {
+        return new TreeMap<>(map);
+    }
+
+    public interface Gauge {
+        public Number value();
+    }
+
+    public interface GaugeFamily {
+        /**
+         * The current value for each label value
+         */
+        public Map<String, Number> values();
+    }
+
+    private static class LabeledFamily implements GaugeFamily {
+        private String label;
+        private GaugeFamily family;
+
+        private LabeledFamily(String label, GaugeFamily family) {
+            this.label = label;
+            this.family = family;
+        }
+
+        @Override
+        public Map<String, Number> values() {
+            return family.values();
+        }
+    }
+
+    public static class Counter {
+        private LongAdder adder = new LongAdder();
+
+        public void inc() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * A log-linear histogram in the style of HdrHistogram: every power of two
+     * is split into SUB_BUCKETS equal buckets, so any value is off by at most
+     * 1/SUB_BUCKETS (about 6%) no matter how big it is, and recording is a
+     * couple of shifts and an atomic add.
+     */
+    public static class Histogram {
+        protected static final int SUB_BUCKET_BITS = 4;
+        protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private LongAdder count = new LongAdder();
+        private LongAdder sum = new LongAdder();
+        private AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+
+            buckets.incrementAndGet(index(value));
+            count.increment();
+            sum.add(value);
+
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value))
+                current = max.get();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * The value that a fraction q of the recorded values are at or below
+         * (the top of its bucket, but never more than the max). 0 if nothing
+         * has been recorded.
+         */
+        public long getQuantile(double q) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(upperBound(i), getMax());
+            }
+            return getMax();
+        }
+
+        protected static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        protected static long lowerBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        protected static long upperBound(int index) {
+            return index + 1 == BUCKETS ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+        }
+    }
+}
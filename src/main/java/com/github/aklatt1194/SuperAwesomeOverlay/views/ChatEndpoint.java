@@ -57,6 +57,14 @@ public class ChatEndpoint {
         send(message);
     }
     
+    /**
+     * Stop passing chat messages between the overlay and the websockets
+     */
+    public static void shutdown() {
+        if (socket != null)
+            socket.close();
+    }
+
     /**
      * Write the message to the websocket
      */
@@ -89,8 +97,8 @@ public class ChatEndpoint {
         
         @Override
         public void run() {
-            while (true) {
-                SimpleDatagramPacket packet = socket.receive();
+            SimpleDatagramPacket packet;
+            while ((packet = socket.receive()) != null) {
                 String message =  new String(packet.getPayload(), charset);
                 send(message);
             }
@@ -29,8 +29,11 @@ public class KnownNodesEndpoint {
     private List<GeoIPEntry> lookupKnownNodes() {
         List<GeolocateDatabaseProvider.GeoIPEntry> result = new ArrayList<>();
 
-        for (InetAddress addr : model.getKnownNeighbors()) {
-            result.add(db.lookupNode(addr));
+        // every node in the overlay, not just the ones we are linked to
+        for (InetAddress addr : model.getKnownNodes()) {
+            if (!addr.equals(model.getSelfAddress())) {
+                result.add(db.lookupNode(addr));
+            }
         }
         
         GeoIPEntry self = db.lookupNode(model.getSelfAddress());
@@ -0,0 +1,26 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.views;
+
+import static spark.Spark.get;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.JsonUtil;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry;
+
+public class StatsEndpoint {
+    private StatsRegistry stats;
+
+    public StatsEndpoint(StatsRegistry stats) {
+        this.stats = stats;
+
+        // counters, queue depths and timings as JSON, or for Prometheus to
+        // scrape with ?format=prometheus
+        get("/endpoints/stats", (req, res) -> {
+            if ("prometheus".equals(req.queryParams("format"))) {
+                res.type("text/plain; version=0.0.4");
+                return this.stats.toPrometheus();
+            }
+
+            res.type("application/json");
+            return JsonUtil.toJson(this.stats.snapshot());
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.aklatt1194.SuperAwesomeOverlay;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.network.NetworkInterface;
+
+public class PeerSelectorTest extends TestCase {
+    private InetAddress a, b;
+
+    public PeerSelectorTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PeerSelectorTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        a = InetAddress.getByName("10.0.0.1");
+        b = InetAddress.getByName("10.0.0.2");
+    }
+
+    public void testLostLinksAreOnlyRedialedUnderTheCap() {
+        PeerSelector selector = new PeerSelector(new OverlayRoutingModel(a), null,
+                new NetworkInterface(a));
+        selector.setMaxDegree(3);
+
+        assertTrue(selector.shouldRedial(b, 0));
+        assertTrue(selector.shouldRedial(b, 2));
+        assertFalse(selector.shouldRedial(b, 3));
+        assertFalse(selector.shouldRedial(b, 10));
+    }
+
+    /**
+     * A node we dropped for being redundant isn't redialed, even once we are
+     * under the cap again
+     */
+    public void testDroppedLinksAreHeldDown() throws IOException {
+        InetAddress self = InetAddress.getByName("127.3.0.1");
+        OverlayRoutingModel model = new OverlayRoutingModel(self);
+        NetworkInterface networkInterface = new NetworkInterface(self);
+        networkInterface.initialize(model, Collections.<InetAddress> emptyList());
+
+        // six neighbors that are all linked to each other as well
+        List<InetAddress> nodes = new ArrayList<>();
+        for (int i = 1; i <= 6; i++)
+            nodes.add(InetAddress.getByName("10.0.1." + i));
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        TopologyUpdate ours = new TopologyUpdate();
+        ours.src = self;
+        ours.metrics.put(self, -1.);
+        updates.add(ours);
+        for (InetAddress node : nodes) {
+            model.addNode(node);
+            ours.metrics.put(node, 10.);
+
+            TopologyUpdate theirs = new TopologyUpdate();
+            theirs.src = node;
+            theirs.metrics.put(node, -1.);
+            theirs.metrics.put(self, 10.);
+            for (InetAddress other : nodes) {
+                if (other != node)
+                    theirs.metrics.put(other, 10.);
+            }
+            updates.add(theirs);
+        }
+        model.update(updates);
+
+        PeerSelector selector = new PeerSelector(model, null, networkInterface);
+        selector.setMaxDegree(3);
+        selector.rebalance();
+
+        int held = 0;
+        for (InetAddress node : nodes) {
+            if (!selector.shouldRedial(node, 0))
+                held++;
+        }
+        assertEquals(3, held);
+
+        networkInterface.shutdown(1000);
+    }
+
+    /**
+     * A bootstrap node that was turned down because we were at the cap is
+     * dialed again once we lose our links
+     */
+    public void testBootstrapRetrySurvivesTheCap() throws IOException, InterruptedException {
+        InetAddress self = InetAddress.getByName("127.3.0.2");
+        InetAddress neighbor = InetAddress.getByName("127.3.0.3");
+        InetAddress bootstrap = InetAddress.getByName("127.3.0.4");
+
+        NetworkInterface neighborInterface = new NetworkInterface(neighbor);
+        neighborInterface.initialize(new OverlayRoutingModel(neighbor),
+                Collections.<InetAddress> emptyList());
+
+        // the bootstrap node isn't up yet, so its first retry comes due while
+        // the link to the neighbor has us at the cap
+        OverlayRoutingModel model = new OverlayRoutingModel(self);
+        NetworkInterface networkInterface = new NetworkInterface(self);
+        PeerSelector selector = new PeerSelector(model, null, networkInterface);
+        selector.setMaxDegree(1);
+        networkInterface.setRedialPolicy(selector);
+        networkInterface.initialize(model, Arrays.asList(neighbor, bootstrap));
+
+        NetworkInterface bootstrapInterface = null;
+        try {
+            assertTrue(waitForNeighbor(model, neighbor));
+            Thread.sleep(2000);
+            assertFalse(model.isNeighbor(bootstrap));
+
+            // now it is up and we lose the only link we had
+            bootstrapInterface = new NetworkInterface(bootstrap);
+            bootstrapInterface.initialize(new OverlayRoutingModel(bootstrap),
+                    Collections.<InetAddress> emptyList());
+            neighborInterface.shutdown(1000);
+
+            assertTrue(waitForNeighbor(model, bootstrap));
+        } finally {
+            networkInterface.shutdown(1000);
+            neighborInterface.shutdown(1000);
+            if (bootstrapInterface != null)
+                bootstrapInterface.shutdown(1000);
+        }
+    }
+
+    private boolean waitForNeighbor(OverlayRoutingModel model, InetAddress addr)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!model.isNeighbor(addr) && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        return model.isNeighbor(addr);
+    }
+}
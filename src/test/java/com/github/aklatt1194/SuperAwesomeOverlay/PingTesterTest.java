@@ -0,0 +1,77 @@
+package com.github.aklatt1194.SuperAwesomeOverlay;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.PingTester.ProbeTrain;
+import com.github.aklatt1194.SuperAwesomeOverlay.PingTester.Summary;
+
+public class PingTesterTest extends TestCase {
+    private static final long MS = 1000 * 1000;
+
+    public PingTesterTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PingTesterTest.class);
+    }
+
+    public void testSummaryCountsLostProbes() {
+        ProbeTrain train = new ProbeTrain(100, 4);
+        long[] rtts = { 1, 3, -1, 2 }; // the third probe never comes back
+
+        for (int i = 0; i < rtts.length; i++) {
+            long sent = i * 20 * MS;
+            train.sent(i, sent);
+            if (rtts[i] > 0)
+                train.received(100 + i, sent, sent + rtts[i] * MS);
+        }
+
+        Summary summary = train.summarize();
+        assertEquals(4, summary.sent);
+        assertEquals(3, summary.received);
+        assertEquals(0.25, summary.loss, 1e-9);
+        assertEquals(2., summary.median, 1e-9);
+        assertEquals(3., summary.p90, 1e-9);
+        // |3 - 1| and |2 - 3|
+        assertEquals(1.5, summary.jitter, 1e-9);
+    }
+
+    public void testSubMillisecondRtts() {
+        ProbeTrain train = new ProbeTrain(0, 2);
+        train.sent(0, 0);
+        train.sent(1, MS);
+        train.received(0, 0, 250 * 1000);
+        train.received(1, MS, MS + 350 * 1000);
+
+        Summary summary = train.summarize();
+        assertEquals(0.25, summary.median, 1e-9);
+        assertEquals(0.35, summary.p90, 1e-9);
+    }
+
+    public void testStrayResponsesAreIgnored() {
+        ProbeTrain train = new ProbeTrain(10, 2);
+        train.sent(0, 0);
+        train.sent(1, MS);
+
+        // from an older train, a duplicate and one with the wrong timestamp
+        train.received(9, 0, 5 * MS);
+        train.received(10, 0, 2 * MS);
+        train.received(10, 0, 7 * MS);
+        train.received(11, 0, 9 * MS);
+
+        Summary summary = train.summarize();
+        assertEquals(1, summary.received);
+        assertEquals(2., summary.median, 1e-9);
+        assertEquals(0.5, summary.loss, 1e-9);
+    }
+
+    public void testAllLost() {
+        ProbeTrain train = new ProbeTrain(0, 3);
+        Summary summary = train.summarize();
+        assertEquals(0, summary.received);
+        assertEquals(1., summary.loss, 1e-9);
+    }
+}
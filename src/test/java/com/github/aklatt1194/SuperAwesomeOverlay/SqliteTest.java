@@ -1,5 +1,7 @@
 package com.github.aklatt1194.SuperAwesomeOverlay;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.Map;
 import java.util.Random;
@@ -64,5 +66,27 @@ public class SqliteTest extends TestCase {
         }
 
         System.out.println("\nEND OF DB TEST\n\n\n");
+        dbManager.close();
+    }
+
+    /**
+     * Inserts that haven't been committed yet can be read right away, and
+     * make it to disk when the db is closed
+     */
+    public void testUncommittedInserts() throws IOException {
+        File file = File.createTempFile("overlay-test", ".db");
+        String name = file.getPath().substring(0, file.getPath().length() - ".db".length());
+
+        MetricsDatabaseManager dbManager = new MetricsDatabaseProvider(name);
+        int count = MetricsDatabaseProvider.COMMIT_BATCH / 2;
+        for (int i = 0; i < count; i++)
+            dbManager.addLatencyData("Node1", i, i);
+        assertEquals(count, dbManager.getLatencyData("Node1", 0, count).size());
+        dbManager.close();
+
+        dbManager = new MetricsDatabaseProvider(name);
+        assertEquals(count, dbManager.getLatencyData("Node1", 0, count).size());
+        dbManager.close();
+        file.delete();
     }
 }
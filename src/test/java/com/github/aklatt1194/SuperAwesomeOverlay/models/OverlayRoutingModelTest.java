@@ -0,0 +1,242 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.models;
+
+import static com.github.aklatt1194.SuperAwesomeOverlay.models.TopologyUpdates.update;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+
+public class OverlayRoutingModelTest extends TestCase {
+    private InetAddress a, b, c, d;
+
+    public OverlayRoutingModelTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(OverlayRoutingModelTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        a = InetAddress.getByName("10.0.0.1");
+        b = InetAddress.getByName("10.0.0.2");
+        c = InetAddress.getByName("10.0.0.3");
+        d = InetAddress.getByName("10.0.0.4");
+    }
+
+    /**
+     * A square where the MST has to go the long way around to reach d, but
+     * the shortest path goes straight there.
+     * 
+     * <pre>
+     * a --10-- b
+     * |        |
+     * 25       10
+     * |        |
+     * d --10-- c
+     * </pre>
+     */
+    public void testShortestPathDiffersFromMst() {
+        OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+        model.addNode(c);
+        model.addNode(d);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10., d, 25.));
+        updates.add(update(b, a, 10., c, 10.));
+        updates.add(update(c, b, 10., d, 10.));
+        updates.add(update(d, c, 10., a, 25.));
+        model.update(updates);
+
+        Map<InetAddress, InetAddress> mst = model.getForwardingTable();
+        assertEquals(b, mst.get(d));
+        assertEquals(b, mst.get(c));
+
+        Map<InetAddress, InetAddress> sp = model.getShortestPathTable();
+        assertEquals(d, sp.get(d));
+        assertEquals(b, sp.get(b));
+        assertEquals(b, sp.get(c));
+        assertNull(sp.get(a));
+    }
+
+    /**
+     * A diamond where both ways around to d cost the same, so both b and c
+     * should be usable next hops.
+     * 
+     * <pre>
+     * a --10-- b
+     * |        |
+     * 10       10
+     * |        |
+     * c --10-- d
+     * </pre>
+     */
+    public void testEqualCostPathsAreKept() {
+        OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+        model.addNode(c);
+        model.addNode(d);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10., c, 10.));
+        updates.add(update(b, a, 10., d, 10.));
+        updates.add(update(c, a, 10., d, 10.));
+        updates.add(update(d, b, 10., c, 10.));
+        model.update(updates);
+
+        List<InetAddress> hops = model.getMultipathTable().get(d);
+        assertEquals(2, hops.size());
+        assertTrue(hops.contains(b));
+        assertTrue(hops.contains(c));
+
+        // a direct neighbor is only reached directly
+        assertEquals(1, model.getMultipathTable().get(b).size());
+    }
+
+    /**
+     * Nodes that we only hear about through link state updates are routable,
+     * but they aren't neighbors.
+     * 
+     * <pre>
+     * a --10-- b --10-- c
+     * </pre>
+     */
+    public void testRemoteNodesAreNotNeighbors() {
+        OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10.));
+        updates.add(update(b, a, 10., c, 10.));
+        updates.add(update(c, b, 10.));
+        model.update(updates);
+
+        assertEquals(1, model.getKnownNeighbors().size());
+        assertTrue(model.getKnownNodes().contains(c));
+        assertEquals(b, model.getForwardingTable().get(c));
+        assertEquals(2, model.getDegree(b));
+    }
+
+    /**
+     * Once b stops reporting its link to c, c's old update alone isn't enough
+     * to keep the link (or c) around.
+     */
+    public void testStaleLinksAreDropped() {
+        OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10.));
+        updates.add(update(b, a, 10., c, 10.));
+        updates.add(update(c, b, 10.));
+        model.update(updates);
+
+        updates.clear();
+        updates.add(update(a, b, 10.));
+        updates.add(update(b, a, 10.));
+        model.update(updates);
+
+        assertEquals(OverlayRoutingModel.NO_EDGE, model.getLinkMetric(b, c));
+        assertNull(model.getForwardingTable().get(c));
+
+        // and the next round forgets about it
+        model.update(updates);
+        assertFalse(model.getKnownNodes().contains(c));
+    }
+
+    /**
+     * A node that said it was leaving is gone right away, and old updates
+     * that still list it don't bring it back. Its own update does.
+     */
+    public void testLeavingNodesAreRemoved() {
+        OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10.));
+        updates.add(update(b, a, 10., c, 10.));
+        updates.add(update(c, b, 10.));
+        model.update(updates);
+
+        model.removeNodes(Arrays.asList(b, c));
+        assertFalse(model.isNeighbor(b));
+        assertFalse(model.getKnownNodes().contains(b));
+        assertFalse(model.getKnownNodes().contains(c));
+        assertNull(model.getForwardingTable().get(c));
+
+        // the link closing afterwards is a no-op
+        model.deleteNode(b);
+
+        updates.clear();
+        updates.add(update(a, b, 10.));
+        model.update(updates);
+        assertFalse(model.getKnownNodes().contains(b));
+
+        updates.add(update(b, a, 10.));
+        model.update(updates);
+        assertTrue(model.getKnownNodes().contains(b));
+    }
+
+    /**
+     * Losing every neighbor at once is rebuilt as one batch, and listeners
+     * hear about it afterwards without the model locked.
+     */
+    public void testLostLinksAreBatched() throws InterruptedException {
+        final OverlayRoutingModel model = new OverlayRoutingModel(a);
+        model.addNode(b);
+        model.addNode(c);
+        model.addNode(d);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10., c, 10.));
+        updates.get(0).metrics.put(d, 10.);
+        updates.add(update(b, a, 10.));
+        updates.add(update(c, a, 10.));
+        updates.add(update(d, a, 10.));
+        model.update(updates);
+
+        final List<InetAddress> deleted = new ArrayList<>();
+        final boolean[] locked = new boolean[1];
+        final CountDownLatch done = new CountDownLatch(3);
+        model.addListener(new OverlayRoutingModelListener() {
+            @Override
+            public void nodeAddCallback(InetAddress addr) {
+            }
+
+            @Override
+            public void nodeDeleteCallback(InetAddress addr) {
+                locked[0] |= Thread.holdsLock(model);
+                synchronized (deleted) {
+                    deleted.add(addr);
+                }
+                done.countDown();
+            }
+        });
+
+        model.deleteNode(b);
+        model.deleteNode(c);
+        model.deleteNode(d);
+
+        // the links are gone right away, the tables catch up with the batch
+        assertEquals(OverlayRoutingModel.NO_EDGE, model.getLinkMetric(a, b));
+        assertTrue(model.getKnownNeighbors().isEmpty());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(b, c, d), deleted);
+        assertFalse(locked[0]);
+        assertTrue(model.getForwardingTable().isEmpty());
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.models;
+
+import static com.github.aklatt1194.SuperAwesomeOverlay.models.TopologyUpdates.update;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.RoutingStateFile.Snapshot;
+
+public class RoutingStateFileTest extends TestCase {
+    private InetAddress a, b, c;
+    private File file;
+
+    public RoutingStateFileTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(RoutingStateFileTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        a = InetAddress.getByName("10.0.0.1");
+        b = InetAddress.getByName("10.0.0.2");
+        c = InetAddress.getByName("10.0.0.3");
+        file = File.createTempFile("routing-state", null);
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * A node that comes back up has routes to everyone it knew about before
+     * its first round of updates.
+     * 
+     * <pre>
+     * a --10-- b --10-- c
+     * </pre>
+     */
+    public void testRestartComesBackWithRoutes() {
+        OverlayRoutingModel before = new OverlayRoutingModel(a);
+        before.addNode(b);
+
+        List<TopologyUpdate> updates = new ArrayList<>();
+        updates.add(update(a, b, 10.));
+        updates.add(update(b, a, 10., c, 10.));
+        updates.add(update(c, b, 10.));
+        before.update(updates);
+
+        RoutingStateFile state = new RoutingStateFile(file.getPath());
+        state.save(before);
+
+        Snapshot snapshot = state.load(a);
+        assertNotNull(snapshot);
+        assertEquals(Arrays.asList(b), snapshot.neighbors);
+        assertEquals(3, snapshot.updates.size());
+
+        OverlayRoutingModel after = new OverlayRoutingModel(a);
+        after.seed(snapshot.updates);
+        assertEquals(b, after.getForwardingTable().get(c));
+        assertEquals(b, after.getShortestPathTable().get(b));
+        assertEquals(10., after.getLinkMetric(b, c));
+
+        // only b's word for the link to us until we report our own
+        assertEquals(10., after.getLinkMetric(a, b));
+        assertFalse(after.isNeighbor(b));
+    }
+
+    public void testOnlyRecentStateOfOurOwnIsUsed() throws IOException {
+        RoutingStateFile state = new RoutingStateFile(file.getPath());
+        assertNull(state.load(a));
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.self = a;
+        snapshot.savedAt = System.currentTimeMillis();
+        snapshot.neighbors.add(b);
+        snapshot.updates.add(update(a, b, 10.));
+        Files.write(file.toPath(), RoutingStateFile.serialize(snapshot));
+
+        assertNotNull(state.load(a));
+        assertNull(state.load(b));
+
+        snapshot.savedAt -= RoutingStateFile.MAX_AGE + 1;
+        Files.write(file.toPath(), RoutingStateFile.serialize(snapshot));
+        assertNull(state.load(a));
+    }
+
+    public void testCorruptStateIsIgnored() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.self = a;
+        snapshot.savedAt = System.currentTimeMillis();
+        snapshot.neighbors.add(b);
+        snapshot.updates.add(update(b, a, 10., c, 10.));
+        byte[] bytes = RoutingStateFile.serialize(snapshot);
+
+        assertNotNull(RoutingStateFile.deserialize(bytes));
+        for (int length = 0; length < bytes.length; length++)
+            assertNull(RoutingStateFile.deserialize(Arrays.copyOf(bytes, length)));
+
+        bytes[0] = 42;
+        assertNull(RoutingStateFile.deserialize(bytes));
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.models;
+
+import java.net.InetAddress;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+
+/**
+ * Builds the link state updates that the model tests feed in
+ */
+class TopologyUpdates {
+    private TopologyUpdates() {
+    }
+
+    // What src would advertise with a single link, to n1
+    static TopologyUpdate update(InetAddress src, InetAddress n1, double m1) {
+        TopologyUpdate upd = new TopologyUpdate();
+        upd.src = src;
+        upd.metrics.put(src, -1.);
+        upd.metrics.put(n1, m1);
+        return upd;
+    }
+
+    // What src would advertise with links to n1 and n2
+    static TopologyUpdate update(InetAddress src, InetAddress n1, double m1, InetAddress n2,
+            double m2) {
+        TopologyUpdate upd = update(src, n1, m1);
+        upd.metrics.put(n2, m2);
+        return upd;
+    }
+}
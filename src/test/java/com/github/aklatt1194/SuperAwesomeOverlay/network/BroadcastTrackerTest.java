@@ -0,0 +1,186 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.network.BroadcastTracker.Nack;
+
+public class BroadcastTrackerTest extends TestCase {
+    private InetAddress origin;
+    private InetAddress neighbor;
+
+    public BroadcastTrackerTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BroadcastTrackerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        origin = InetAddress.getByName("10.0.0.1");
+        neighbor = InetAddress.getByName("10.0.0.2");
+    }
+
+    /**
+     * A packet we have already seen should not be delivered (or forwarded)
+     * again
+     */
+    public void testDuplicatesAreFiltered() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+
+        assertEquals(1, tracker.receive(packet(100), neighbor, nacks, 0).size());
+        assertNull(tracker.receive(packet(100), neighbor, nacks, 0));
+        assertEquals(1, tracker.receive(packet(101), neighbor, nacks, 0).size());
+        assertNull(tracker.receive(packet(100), neighbor, nacks, 0));
+        assertTrue(nacks.isEmpty());
+    }
+
+    /**
+     * Out of order packets are held until the gap is filled and a NACK goes
+     * out for the missing ones
+     */
+    public void testGapIsRepairedInOrder() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+
+        tracker.receive(packet(1), neighbor, nacks, 0);
+        assertTrue(tracker.receive(packet(3), neighbor, nacks, 0).isEmpty());
+        assertEquals(1, nacks.size());
+        assertEquals(neighbor, nacks.get(0).target);
+        assertEquals(Long.valueOf(2), nacks.get(0).seqs.get(0));
+
+        List<SimpleDatagramPacket> delivered = tracker.receive(packet(2), neighbor, nacks, 10);
+        assertEquals(2, delivered.size());
+        assertEquals(2, delivered.get(0).getSequenceNumber());
+        assertEquals(3, delivered.get(1).getSequenceNumber());
+    }
+
+    /**
+     * If the repair never shows up, we eventually skip ahead
+     */
+    public void testGapTimesOut() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+
+        tracker.receive(packet(1), neighbor, nacks, 0);
+        tracker.receive(packet(3), neighbor, nacks, 0);
+
+        assertTrue(tracker.expire(nacks, 10).isEmpty());
+        List<SimpleDatagramPacket> delivered = tracker.expire(nacks,
+                BroadcastTracker.REORDER_TIMEOUT + 1);
+        assertEquals(1, delivered.size());
+        assertEquals(3, delivered.get(0).getSequenceNumber());
+    }
+
+    /**
+     * A gap deeper than the window is skipped as soon as it falls out of the
+     * window, and everything still inside the window can be repaired
+     */
+    public void testDeepGapSlidesWithTheWindow() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+        int window = BroadcastTracker.WINDOW_SIZE;
+
+        tracker.receive(packet(1), neighbor, nacks, 0);
+        long last = 1 + window + 10;
+        assertTrue(tracker.receive(packet(last), neighbor, nacks, 0).isEmpty());
+
+        // too old to tell from a duplicate, so it was given up on
+        assertNull(tracker.receive(packet(2), neighbor, nacks, 0));
+
+        List<SimpleDatagramPacket> delivered = new ArrayList<>();
+        for (long seq = last - window + 1; seq < last; seq++) {
+            List<SimpleDatagramPacket> ready = tracker.receive(packet(seq), neighbor, nacks, 0);
+            assertNotNull(ready);
+            delivered.addAll(ready);
+        }
+        assertEquals(window, delivered.size());
+        for (int i = 0; i < window; i++)
+            assertEquals(last - window + 1 + i, delivered.get(i).getSequenceNumber());
+    }
+
+    /**
+     * A lost packet doesn't hold up the ones behind it once they are a
+     * window's worth ahead, even before the reorder timeout
+     */
+    public void testLostPacketDoesNotStallPastTheWindow() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+        int window = BroadcastTracker.WINDOW_SIZE;
+
+        tracker.receive(packet(1), neighbor, nacks, 0);
+        int delivered = 0;
+        for (long seq = 3; seq <= 4 * window; seq++)
+            delivered += tracker.receive(packet(seq), neighbor, nacks, 0).size();
+        assertEquals(4 * window - 2, delivered);
+    }
+
+    /**
+     * A big jump in sequence numbers means the origin restarted
+     */
+    public void testRestartedOriginResyncs() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        List<Nack> nacks = new ArrayList<>();
+
+        tracker.receive(packet(1), neighbor, nacks, 0);
+        long restarted = 1 + BroadcastTracker.RESYNC_GAP * 2;
+        assertEquals(1, tracker.receive(packet(restarted), neighbor, nacks, 0).size());
+        assertTrue(nacks.isEmpty());
+    }
+
+    /**
+     * A repair goes out with the ttl the packet came in with, not whatever is
+     * left after forwarding it
+     */
+    public void testRepairKeepsTheArrivalTtl() {
+        BroadcastTracker tracker = new BroadcastTracker();
+        SimpleDatagramPacket packet = packet(1);
+        packet.ttl = 10;
+
+        tracker.receive(packet, neighbor, new ArrayList<Nack>(), 0);
+        packet.ttl--;
+        assertEquals(10, tracker.lookup(origin, 1).ttl);
+    }
+
+    /**
+     * NACKs that are cut short or claim more sequence numbers than they carry
+     * are rejected
+     */
+    public void testMalformedNacksAreRejected() {
+        List<Long> seqs = new ArrayList<>();
+        seqs.add(5L);
+        seqs.add(6L);
+        byte[] valid = new Nack(neighbor, origin, seqs).serialize();
+
+        ByteBuffer buf = ByteBuffer.wrap(valid);
+        buf.get();
+        assertEquals(seqs, Nack.deserialize(neighbor, buf).seqs);
+
+        for (int length : new int[] { 1, 3, 9, valid.length - 1 }) {
+            buf = ByteBuffer.wrap(Arrays.copyOf(valid, length));
+            buf.get();
+            try {
+                Nack.deserialize(neighbor, buf);
+                fail("parsed a NACK cut to " + length + " bytes");
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+    private SimpleDatagramPacket packet(long seq) {
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(origin, null, 1, 1, new byte[0]);
+        packet.seq = seq;
+        return packet;
+    }
+}
@@ -0,0 +1,459 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.OverlayRoutingManager.TopologyUpdate;
+import com.github.aklatt1194.SuperAwesomeOverlay.models.OverlayRoutingModel;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.IPUtils;
+
+/**
+ * Two network interfaces talking to each other over loopback
+ */
+public class NetworkInterfaceTest extends TestCase {
+    private static final int PORT = 4000;
+
+    private InetAddress a, b;
+    private OverlayRoutingModel modelA, modelB;
+    private NetworkInterface niA, niB;
+
+    public NetworkInterfaceTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(NetworkInterfaceTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException, InterruptedException {
+        a = InetAddress.getByName("127.2.0.1");
+        b = InetAddress.getByName("127.2.0.2");
+        modelA = new OverlayRoutingModel(a);
+        modelB = new OverlayRoutingModel(b);
+
+        niA = new NetworkInterface(a);
+        niB = new NetworkInterface(b);
+        niA.initialize(modelA, Collections.<InetAddress> emptyList());
+        niB.initialize(modelB, Collections.singletonList(a));
+
+        long end = System.currentTimeMillis() + 5000;
+        while (!(modelA.isNeighbor(b) && modelB.isNeighbor(a))
+                && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertTrue(modelA.isNeighbor(b));
+    }
+
+    @Override
+    protected void tearDown() {
+        niB.shutdown(1000);
+        niA.shutdown(1000);
+    }
+
+    public void testOversizedPacketsAreRejected() throws IOException {
+        BaseLayerSocket sender = new BaseLayerSocket(niA);
+        BaseLayerSocket receiver = new BaseLayerSocket(niB);
+        receiver.bind(PORT);
+
+        // too big for the other end (or for the write buffer)
+        for (int size : new int[] { SimpleDatagramPacket.MAX_PACKET_LENGTH + 1, 200000 }) {
+            try {
+                sender.send(new SimpleDatagramPacket(a, b, PORT, PORT, new byte[size]));
+                fail("sent a packet with a payload of " + size);
+            } catch (IOException e) {
+            }
+        }
+
+        // the biggest one that fits still makes it, and the link stays up
+        SimpleDatagramPacket largest = new SimpleDatagramPacket(a, b, PORT, PORT, new byte[0]);
+        int room = SimpleDatagramPacket.MAX_PACKET_LENGTH - largest.getLength();
+        sender.send(new SimpleDatagramPacket(a, b, PORT, PORT, new byte[room]));
+
+        SimpleDatagramPacket received = receiver.receive(5000);
+        assertNotNull(received);
+        assertEquals(room, received.getPayload().length);
+        assertTrue(modelA.isNeighbor(b));
+        receiver.close();
+    }
+
+    /**
+     * Packets sent faster than the selector can flush them are batched up and
+     * all make it, in order
+     */
+    public void testBurstArrivesInOrder() throws IOException {
+        BaseLayerSocket sender = new BaseLayerSocket(niA);
+        BaseLayerSocket receiver = new BaseLayerSocket(niB);
+        receiver.bind(PORT);
+
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer payload = ByteBuffer.allocate(100);
+            payload.putInt(i);
+            sender.send(new SimpleDatagramPacket(a, b, PORT, PORT, payload.array()));
+        }
+
+        for (int i = 0; i < count; i++) {
+            SimpleDatagramPacket received = receiver.receive(5000);
+            assertNotNull(received);
+            assertEquals(i, ByteBuffer.wrap(received.getPayload()).getInt());
+        }
+        receiver.close();
+    }
+
+    /**
+     * A node that reconnects while we still have writes queued for it gets
+     * the rest of them on the new link, whole. Only the frame the old link
+     * stopped in the middle of is lost.
+     */
+    public void testLinkReplacedWithWritesPending() throws Exception {
+        InetAddress c = InetAddress.getByName("127.2.0.3");
+        int count = 200;
+
+        // the first link says hello and then doesn't read a thing, so the
+        // writes back up
+        SocketChannel stalled = openLink(c);
+        SocketChannel fresh = null;
+        try {
+            long end = System.currentTimeMillis() + 5000;
+            while (!modelA.isNeighbor(c) && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertTrue(modelA.isNeighbor(c));
+
+            BaseLayerSocket sender = new BaseLayerSocket(niA);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer payload = ByteBuffer.allocate(32 * 1024);
+                payload.putInt(i);
+                sender.send(new SimpleDatagramPacket(a, c, PORT, PORT, payload.array()));
+            }
+            Thread.sleep(200);
+
+            // c comes back on a new link, which replaces the stalled one
+            fresh = openLink(c);
+            List<Integer> after = new ArrayList<>();
+            assertEquals(0, readData(fresh, after, count - 1));
+
+            List<Integer> before = new ArrayList<>();
+            boolean cutOff = readData(stalled, before, -1) > 0;
+
+            for (int i = 0; i < before.size(); i++)
+                assertEquals(i, (int) before.get(i));
+            assertFalse(after.isEmpty());
+            int first = after.get(0);
+            if (cutOff)
+                assertTrue(first == before.size() || first == before.size() + 1);
+            else
+                assertEquals(before.size(), first);
+            for (int i = 0; i < after.size(); i++)
+                assertEquals(first + i, (int) after.get(i));
+            assertEquals(count - 1, (int) after.get(after.size() - 1));
+        } finally {
+            stalled.close();
+            if (fresh != null)
+                fresh.close();
+        }
+    }
+
+    /**
+     * A link whose connection is reset is dropped right away, not once the
+     * keepalives time out
+     */
+    public void testResetLinkIsDroppedRightAway() throws Exception {
+        InetAddress c = InetAddress.getByName("127.2.0.3");
+        SocketChannel channel = openLink(c);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (!modelA.isNeighbor(c) && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertTrue(modelA.isNeighbor(c));
+
+        // closing with a linger of 0 sends a RST rather than a FIN
+        channel.socket().setSoLinger(true, 0);
+        channel.close();
+
+        end = System.currentTimeMillis() + NetworkInterface.DEFAULT_KEEPALIVE_TIMEOUT / 2;
+        while (modelA.isNeighbor(c) && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(modelA.isNeighbor(c));
+    }
+
+    /**
+     * Control packets that are empty or cut short are dropped without taking
+     * the router down
+     */
+    public void testMalformedControlPacketsAreDropped() throws Exception {
+        InetAddress c = InetAddress.getByName("127.2.0.3");
+        SocketChannel channel = openLink(c);
+        try {
+            for (byte[] payload : new byte[][] { {}, { BroadcastTracker.NACK },
+                    { BroadcastTracker.NACK, 0, 0, 0, 4, 10 }, { NetworkInterface.HELLO, 0, 0 } }) {
+                SimpleDatagramPacket packet = new SimpleDatagramPacket(c, a, 0, 0, payload);
+                packet.flags = SimpleDatagramPacket.CONTROL;
+                ByteBuffer raw = packet.getRawPacket();
+                while (raw.hasRemaining())
+                    channel.write(raw);
+            }
+
+            // A's router still delivers
+            BaseLayerSocket sender = new BaseLayerSocket(niB);
+            BaseLayerSocket receiver = new BaseLayerSocket(niA);
+            receiver.bind(PORT);
+            sender.send(new SimpleDatagramPacket(b, a, PORT, PORT, new byte[] { 1 }));
+            assertNotNull(receiver.receive(5000));
+            receiver.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Payloads are only compressed on links whose other end advertised
+     * FEATURE_COMPRESSION in its HELLO
+     */
+    public void testCompressionOnlyWhereNegotiated() throws Exception {
+        int[] features = { 0, NetworkInterface.FEATURE_COMPRESSION };
+        for (int i = 0; i < features.length; i++) {
+            InetAddress c = InetAddress.getByName("127.2.0." + (3 + i));
+            SocketChannel channel = openLink(c, features[i]);
+            try {
+                long end = System.currentTimeMillis() + 5000;
+                while (!modelA.isNeighbor(c) && System.currentTimeMillis() < end)
+                    Thread.sleep(10);
+                assertTrue(modelA.isNeighbor(c));
+
+                // plenty of zeros, so it is worth compressing
+                BaseLayerSocket sender = new BaseLayerSocket(niA);
+                sender.send(new SimpleDatagramPacket(a, c, PORT, PORT, new byte[4096]));
+
+                int flags = readFrameFlags(channel);
+                assertEquals(features[i] != 0, (flags & SimpleDatagramPacket.COMPRESSED) != 0);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Two nodes that dial each other at the same time end up with a single
+     * link, and both keep the same one of the two connections
+     */
+    public void testSimultaneousDialsLeaveOneLink() throws Exception {
+        long duplicates = 0;
+
+        // the dials don't always cross (and a wrong answer can still come
+        // out right by luck), so give it a few goes
+        for (int i = 0; i < 10; i++) {
+            InetAddress c = InetAddress.getByName("127.2.1." + (2 * i + 1));
+            InetAddress d = InetAddress.getByName("127.2.1." + (2 * i + 2));
+            OverlayRoutingModel modelC = new OverlayRoutingModel(c);
+            OverlayRoutingModel modelD = new OverlayRoutingModel(d);
+            NetworkInterface niC = new NetworkInterface(c);
+            NetworkInterface niD = new NetworkInterface(d);
+            niC.initialize(modelC, Collections.<InetAddress> emptyList());
+            niD.initialize(modelD, Collections.<InetAddress> emptyList());
+
+            try {
+                niC.connectAndAdd(d);
+                niD.connectAndAdd(c);
+
+                long end = System.currentTimeMillis() + 5000;
+                while (!(modelC.isNeighbor(d) && modelD.isNeighbor(c))
+                        && System.currentTimeMillis() < end)
+                    Thread.sleep(10);
+                assertTrue(modelC.isNeighbor(d) && modelD.isNeighbor(c));
+
+                // the selectors only drop the keys of closed channels on
+                // their next select
+                end = System.currentTimeMillis() + 3000;
+                while ((niC.getKeyCount() > 2 || niD.getKeyCount() > 2)
+                        && System.currentTimeMillis() < end)
+                    Thread.sleep(10);
+
+                // one link each (plus the server socket), and it is the same
+                // connection seen from both ends
+                SocketChannel atC = niC.getLinkChannel(d);
+                SocketChannel atD = niD.getLinkChannel(c);
+                assertTrue(atC.isOpen() && atD.isOpen());
+                assertEquals(atC.getLocalAddress(), atD.getRemoteAddress());
+                assertEquals(atD.getLocalAddress(), atC.getRemoteAddress());
+                assertEquals(2, niC.getKeyCount());
+                assertEquals(2, niD.getKeyCount());
+
+                // and neither end had to dial again to get there (an end
+                // that was dialed first doesn't dial at all). If they picked
+                // different winners both connections die, and it only looks
+                // right once the redial has gone through.
+                assertTrue(niC.getStats().counter("overlay_dials_total", "").get() <= 1);
+                assertTrue(niD.getStats().counter("overlay_dials_total", "").get() <= 1);
+
+                duplicates += niC.getStats().counter("overlay_duplicate_links_total", "").get()
+                        + niD.getStats().counter("overlay_duplicate_links_total", "").get();
+            } finally {
+                niC.shutdown(1000);
+                niD.shutdown(1000);
+            }
+        }
+
+        assertTrue("the dials never crossed", duplicates > 0);
+    }
+
+    /**
+     * A unicast packet for a node two hops away is passed on by the node in
+     * the middle without being handed to its socket on the same port, and a
+     * packet the middle node has no route for goes nowhere
+     */
+    public void testUnicastIsForwardedThroughTheMiddle() throws Exception {
+        InetAddress c = InetAddress.getByName("127.2.0.4");
+        InetAddress d = InetAddress.getByName("127.2.0.5");
+        OverlayRoutingModel modelC = new OverlayRoutingModel(c);
+        NetworkInterface niC = new NetworkInterface(c);
+        niC.initialize(modelC, Collections.singletonList(b));
+
+        OverlaySocket sender = new OverlaySocket(niA);
+        OverlaySocket atB = new OverlaySocket(niB);
+        OverlaySocket atC = new OverlaySocket(niC);
+        atB.bind(PORT);
+        atC.bind(PORT);
+
+        try {
+            long end = System.currentTimeMillis() + 5000;
+            while (!(modelB.isNeighbor(c) && modelC.isNeighbor(b))
+                    && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+            assertTrue(modelB.isNeighbor(c));
+
+            // a - b - c, and only a thinks that d hangs off of b
+            List<TopologyUpdate> updates = new ArrayList<>();
+            updates.add(linkState(a, b));
+            updates.add(linkState(b, a, c));
+            updates.add(linkState(c, b));
+            modelB.update(updates);
+            modelC.update(updates);
+            updates.set(1, linkState(b, a, c, d));
+            updates.add(linkState(d, b));
+            modelA.update(updates);
+            assertEquals(b, modelA.getForwardingTable().get(c));
+
+            sender.send(new SimpleDatagramPacket(a, c, PORT, PORT, "for c".getBytes()));
+            SimpleDatagramPacket received = atC.receive(5000);
+            assertNotNull(received);
+            assertEquals("for c", new String(received.getPayload()));
+            assertEquals(a, received.getSource());
+
+            sender.send(new SimpleDatagramPacket(a, d, PORT, PORT, "for d".getBytes()));
+            sender.send(new SimpleDatagramPacket(a, c, PORT, PORT, "after d".getBytes()));
+            received = atC.receive(5000);
+            assertNotNull(received);
+            assertEquals("after d", new String(received.getPayload()));
+
+            // b saw all three go by, but none of them were for it
+            assertNull(atB.receive(200));
+            assertTrue(modelA.isNeighbor(b) && modelB.isNeighbor(c));
+        } finally {
+            atB.close();
+            atC.close();
+            niC.shutdown(1000);
+        }
+    }
+
+    // The link state that src would advertise with a link of metric 1 to each
+    // of the neighbors
+    private TopologyUpdate linkState(InetAddress src, InetAddress... neighbors) {
+        TopologyUpdate update = new TopologyUpdate();
+        update.src = src;
+        update.metrics.put(src, -1.);
+        for (InetAddress neighbor : neighbors)
+            update.metrics.put(neighbor, 1.);
+        return update;
+    }
+
+    // Connect to A as addr and say hello
+    private SocketChannel openLink(InetAddress addr) throws IOException {
+        return openLink(addr, 0);
+    }
+
+    // Connect to A as addr and say hello, advertising features
+    private SocketChannel openLink(InetAddress addr, int features) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.socket().setReceiveBufferSize(16 * 1024);
+        channel.socket().bind(new InetSocketAddress(addr, 0));
+        channel.connect(new InetSocketAddress(a, NetworkInterface.LINK_PORT));
+
+        ByteBuffer hello = ByteBuffer.allocate(9 + IPUtils.serializedLength(addr));
+        hello.put(NetworkInterface.HELLO);
+        hello.putInt(NetworkInterface.PROTOCOL_VERSION);
+        hello.putInt(features);
+        IPUtils.serializeIPAddr(addr, hello);
+
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(addr, a, 0, 0, hello.array());
+        packet.flags = SimpleDatagramPacket.CONTROL;
+        ByteBuffer raw = packet.getRawPacket();
+        while (raw.hasRemaining())
+            channel.write(raw);
+        return channel;
+    }
+
+    // Collect the numbers of the data packets that come in on channel until
+    // the one numbered last shows up or the stream ends. Returns how many
+    // bytes of a partial packet were left at the end.
+    private int readData(SocketChannel channel, List<Integer> numbers, int last)
+            throws IOException, InterruptedException {
+        channel.configureBlocking(false);
+        ByteBuffer buf = ByteBuffer.allocate(2 * SimpleDatagramPacket.MAX_PACKET_LENGTH);
+        long end = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < end) {
+            int read = channel.read(buf);
+            buf.flip();
+            SimpleDatagramPacket packet;
+            while ((packet = SimpleDatagramPacket.createFromBuffer(buf)) != null) {
+                if ((packet.flags & SimpleDatagramPacket.CONTROL) == 0)
+                    numbers.add(ByteBuffer.wrap(packet.getPayload()).getInt());
+            }
+            buf.compact();
+
+            if (read == -1 || (!numbers.isEmpty() && numbers.get(numbers.size() - 1) == last))
+                break;
+            if (read == 0)
+                Thread.sleep(10);
+        }
+        return buf.position();
+    }
+
+    // The flags of the first data packet that comes in on channel, as they
+    // were on the wire
+    private int readFrameFlags(SocketChannel channel) throws IOException, InterruptedException {
+        channel.configureBlocking(false);
+        ByteBuffer buf = ByteBuffer.allocate(2 * SimpleDatagramPacket.MAX_PACKET_LENGTH);
+        long end = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < end) {
+            if (channel.read(buf) == 0)
+                Thread.sleep(10);
+
+            buf.flip();
+            while (buf.remaining() >= 20) {
+                int flags = buf.getInt(buf.position());
+                int length = SimpleDatagramPacket.getLength(buf, buf.position());
+                if (buf.remaining() < length)
+                    break;
+                if ((flags & SimpleDatagramPacket.CONTROL) == 0)
+                    return flags;
+                buf.position(buf.position() + length);
+            }
+            buf.compact();
+        }
+
+        fail("no data packet came in");
+        return 0;
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PayloadCompressorTest extends TestCase {
+    public PayloadCompressorTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(PayloadCompressorTest.class);
+    }
+
+    public void testRoundTrip() throws DataFormatException {
+        byte[] payload = linkState(50);
+        byte[] compressed = PayloadCompressor.compress(payload);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length < payload.length);
+        assertTrue(Arrays.equals(payload, PayloadCompressor.decompress(compressed)));
+    }
+
+    /**
+     * Payloads that don't get any smaller (or are too small to bother with)
+     * are left alone
+     */
+    public void testIncompressiblePayloads() {
+        byte[] noise = new byte[1024];
+        new Random(1).nextBytes(noise);
+
+        assertNull(PayloadCompressor.compress(noise));
+        assertNull(PayloadCompressor.compress(new byte[4]));
+    }
+
+    /**
+     * Truncated or corrupt payloads are a DataFormatException, never anything
+     * else
+     */
+    public void testCorruptPayloads() {
+        byte[] compressed = PayloadCompressor.compress(linkState(50));
+
+        byte[] flipped = compressed.clone();
+        for (int i = 4; i < flipped.length; i++)
+            flipped[i] ^= 0x5a;
+        byte[] badLength = compressed.clone();
+        ByteBuffer.wrap(badLength).putInt(-1);
+
+        for (byte[] corrupt : new byte[][] { {}, { 0, 0, 1 },
+                Arrays.copyOf(compressed, 4), Arrays.copyOf(compressed, compressed.length / 2),
+                flipped, badLength }) {
+            try {
+                PayloadCompressor.decompress(corrupt);
+                fail("decompressed " + corrupt.length + " corrupt bytes");
+            } catch (DataFormatException e) {
+            }
+        }
+    }
+
+    // what a link state update with the given number of links looks like
+    private byte[] linkState(int links) {
+        ByteBuffer buf = ByteBuffer.allocate(links * 16);
+        for (int i = 0; i < links; i++) {
+            buf.putInt(4);
+            buf.put(new byte[] { 10, 0, 0, (byte) i });
+            buf.putDouble(10. + i % 3);
+        }
+        return buf.array();
+    }
+}
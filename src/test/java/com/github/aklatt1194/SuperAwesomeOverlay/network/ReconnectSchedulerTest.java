@@ -0,0 +1,103 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ReconnectSchedulerTest extends TestCase {
+    private InetAddress node;
+
+    public ReconnectSchedulerTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReconnectSchedulerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        node = InetAddress.getByName("10.0.0.1");
+    }
+
+    /**
+     * A retry shows up once its backoff has passed, and not before
+     */
+    public void testRetryComesDueAfterBackoff() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(0);
+        scheduler.schedule(node, 0);
+
+        assertNull(scheduler.poll(ReconnectScheduler.INITIAL_BACKOFF / 2 - ReconnectScheduler.TICK));
+        assertEquals(node, scheduler.poll(ReconnectScheduler.INITIAL_BACKOFF + ReconnectScheduler.TICK));
+        assertNull(scheduler.poll(ReconnectScheduler.INITIAL_BACKOFF + 2 * ReconnectScheduler.TICK));
+    }
+
+    /**
+     * Each failure doubles the backoff, so the second retry takes longer
+     */
+    public void testBackoffGrows() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(0);
+        long now = 0;
+
+        scheduler.schedule(node, now);
+        now = ReconnectScheduler.INITIAL_BACKOFF + ReconnectScheduler.TICK;
+        assertEquals(node, scheduler.poll(now));
+
+        // the second backoff is at least the full initial backoff
+        scheduler.schedule(node, now);
+        assertNull(scheduler.poll(now + ReconnectScheduler.INITIAL_BACKOFF - ReconnectScheduler.TICK));
+        assertEquals(node, scheduler.poll(now + 2 * ReconnectScheduler.INITIAL_BACKOFF
+                + ReconnectScheduler.TICK));
+    }
+
+    /**
+     * Cancelled retries never come due, and non-persistent nodes are given up
+     * on eventually
+     */
+    public void testCancelAndGiveUp() {
+        ReconnectScheduler scheduler = new ReconnectScheduler(0);
+        scheduler.schedule(node, 0);
+        scheduler.cancel(node);
+        assertNull(scheduler.poll(ReconnectScheduler.MAX_BACKOFF));
+        assertFalse(scheduler.hasPending());
+
+        long now = 0;
+        for (int i = 0; i < ReconnectScheduler.MAX_ATTEMPTS; i++) {
+            scheduler.schedule(node, now);
+            now += ReconnectScheduler.MAX_BACKOFF + ReconnectScheduler.TICK;
+            assertEquals(node, scheduler.poll(now));
+        }
+        scheduler.schedule(node, now);
+        assertFalse(scheduler.hasPending());
+    }
+
+    /**
+     * A turned down retry of a persistent address comes around again without
+     * its backoff growing, anything else is dropped
+     */
+    public void testDeferredKeepsPersistentAddresses() throws UnknownHostException {
+        InetAddress other = InetAddress.getByName("10.0.0.2");
+        ReconnectScheduler scheduler = new ReconnectScheduler(0);
+        scheduler.addPersistent(node);
+
+        long now = 0;
+        scheduler.schedule(node, now);
+        scheduler.schedule(other, now);
+        now = ReconnectScheduler.INITIAL_BACKOFF + ReconnectScheduler.TICK;
+        InetAddress first = scheduler.poll(now);
+        InetAddress second = scheduler.poll(now);
+        assertTrue(node.equals(first) ? other.equals(second) : node.equals(second));
+
+        scheduler.deferred(node, now);
+        scheduler.deferred(other, now);
+        for (int i = 0; i < 3; i++) {
+            now += 2 * ReconnectScheduler.INITIAL_BACKOFF + ReconnectScheduler.TICK;
+            assertEquals(node, scheduler.poll(now));
+            assertNull(scheduler.poll(now));
+            scheduler.deferred(node, now);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class RttEstimatorTest extends TestCase {
+    private static final long MS = 1000 * 1000;
+
+    public RttEstimatorTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(RttEstimatorTest.class);
+    }
+
+    /**
+     * The two ends have unrelated clocks and b sits on a's probe for a while
+     * before answering, neither of which should end up in the RTT.
+     */
+    public void testRttIgnoresClockOffsetAndHoldTime() {
+        RttEstimator a = new RttEstimator();
+        RttEstimator b = new RttEstimator();
+        long aClock = 1000 * MS;
+        long bClock = 987654 * MS;
+
+        // a -> b takes 5 ms, b -> a takes 5 ms
+        ByteBuffer probe = probe(a, aClock);
+        b.readProbe(probe, bClock + 5 * MS);
+        assertEquals(-1., b.getRtt());
+
+        probe = probe(b, bClock + 505 * MS);
+        a.readProbe(probe, aClock + 510 * MS);
+        assertEquals(10., a.getRtt(), 0.001);
+    }
+
+    public void testSamplesAreSmoothed() {
+        RttEstimator a = new RttEstimator();
+        RttEstimator b = new RttEstimator();
+        long now = 0;
+
+        for (int i = 0; i < 75; i++) {
+            long rtt = (i < 25) ? 10 : 50;
+            b.readProbe(probe(a, now), now + rtt / 2 * MS);
+            a.readProbe(probe(b, now + rtt / 2 * MS), now + rtt * MS);
+            now += 1000 * MS;
+
+            if (i == 25) {
+                // one sample doesn't move it all the way
+                assertTrue(a.getRtt() > 10 && a.getRtt() < 20);
+            }
+        }
+
+        assertEquals(50., a.getRtt(), 1.);
+    }
+
+    private ByteBuffer probe(RttEstimator from, long now) {
+        ByteBuffer buf = ByteBuffer.allocate(RttEstimator.PROBE_LENGTH);
+        from.writeProbe(buf, now);
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SelectedKeySetTest extends TestCase {
+    public SelectedKeySetTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SelectedKeySetTest.class);
+    }
+
+    public void testAddAndReset() throws IOException {
+        Selector selector = Selector.open();
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        SelectionKey key = pipe.source().register(selector, SelectionKey.OP_READ);
+
+        SelectedKeySet set = new SelectedKeySet();
+        for (int i = 0; i < 100; i++)
+            assertTrue(set.add(key));
+        assertFalse(set.add(null));
+
+        assertEquals(100, set.size());
+        assertSame(key, set.get(99));
+
+        set.reset();
+        assertEquals(0, set.size());
+        assertFalse(set.iterator().hasNext());
+
+        selector.close();
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    public void testContainsAndRemove() throws IOException {
+        Selector selector = Selector.open();
+        Pipe first = Pipe.open();
+        Pipe second = Pipe.open();
+        first.source().configureBlocking(false);
+        second.source().configureBlocking(false);
+        SelectionKey one = first.source().register(selector, SelectionKey.OP_READ);
+        SelectionKey two = second.source().register(selector, SelectionKey.OP_READ);
+
+        SelectedKeySet set = new SelectedKeySet();
+        set.add(one);
+        set.add(two);
+        assertTrue(set.contains(one));
+        assertFalse(set.contains(null));
+
+        assertTrue(set.remove(one));
+        assertFalse(set.remove(one));
+        assertFalse(set.contains(one));
+        assertEquals(1, set.size());
+        assertSame(two, set.get(0));
+
+        selector.close();
+        first.source().close();
+        first.sink().close();
+        second.source().close();
+        second.sink().close();
+    }
+
+    public void testSelectorFillsIt() throws IOException {
+        Selector selector = Selector.open();
+        SelectedKeySet set = SelectedKeySet.install(selector);
+        // newer JDKs only let us in with --add-opens (see the pom)
+        assertNotNull("Java 9+ needs --add-opens java.base/sun.nio.ch=ALL-UNNAMED", set);
+
+        Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        SelectionKey key = pipe.source().register(selector, SelectionKey.OP_READ);
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+
+        assertEquals(1, selector.select(1000));
+        assertEquals(1, set.size());
+        assertSame(key, set.get(0));
+        assertTrue(set.get(0).isReadable());
+
+        // a key that is still in the set isn't added again, and gets what it
+        // was last ready for
+        assertEquals(0, selector.selectNow());
+        assertEquals(1, set.size());
+
+        // a failed pass over the keys still has to reset it, after which the
+        // key shows up again
+        set.reset();
+        assertEquals(1, selector.selectNow());
+        assertSame(key, set.get(0));
+
+        // cancelled keys get taken out of the selector without complaint
+        set.reset();
+        key.cancel();
+        selector.selectNow();
+        assertEquals(0, set.size());
+
+        selector.close();
+        pipe.source().close();
+        pipe.sink().close();
+    }
+}
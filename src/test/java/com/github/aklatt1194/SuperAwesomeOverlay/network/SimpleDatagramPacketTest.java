@@ -0,0 +1,81 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SimpleDatagramPacketTest extends TestCase {
+    private InetAddress a, b;
+
+    public SimpleDatagramPacketTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(SimpleDatagramPacketTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        a = InetAddress.getByName("10.0.0.1");
+        b = InetAddress.getByName("::2");
+    }
+
+    public void testRoundTrip() {
+        SimpleDatagramPacket packet = new SimpleDatagramPacket(a, b, 1, 2, new byte[] { 1, 2, 3 });
+        packet.ttl = 7;
+        packet.seq = 42;
+
+        // two packets back to back, and the start of a third
+        ByteBuffer buf = ByteBuffer.allocate(3 * packet.getLength());
+        buf.put(packet.getRawPacket());
+        buf.put(packet.getRawPacket());
+        buf.put(packet.getRawPacket().array(), 0, 10);
+        buf.flip();
+
+        for (int i = 0; i < 2; i++) {
+            SimpleDatagramPacket parsed = SimpleDatagramPacket.createFromBuffer(buf);
+            assertEquals(a, parsed.getSource());
+            assertEquals(b, parsed.getDestination());
+            assertEquals(2, parsed.getDestinationPort());
+            assertEquals(7, parsed.ttl);
+            assertEquals(42, parsed.getSequenceNumber());
+            assertEquals(3, parsed.getPayload().length);
+        }
+        assertNull(SimpleDatagramPacket.createFromBuffer(buf));
+        assertEquals(10, buf.remaining());
+    }
+
+    /**
+     * Address lengths that are wrong, negative or reach past the packet are
+     * rejected, never read out of the next packet
+     */
+    public void testMalformedAddressesAreRejected() {
+        int lengthAt = 16;
+        int srcAt = 28;
+        int dstAt = srcAt + 8;
+
+        for (int[] corrupt : new int[][] { { srcAt, -1 }, { srcAt, 5 }, { srcAt, 1 << 20 },
+                { dstAt, 16 }, { dstAt, -100 }, { lengthAt, 30 } }) {
+            SimpleDatagramPacket packet = new SimpleDatagramPacket(a, a, 1, 2, new byte[0]);
+            ByteBuffer raw = packet.getRawPacket();
+
+            // a valid packet right behind it that mustn't be eaten into
+            ByteBuffer buf = ByteBuffer.allocate(2 * raw.limit() + 64);
+            buf.put(raw);
+            buf.put(new SimpleDatagramPacket(b, b, 3, 4, new byte[32]).getRawPacket());
+            buf.putInt(corrupt[0], corrupt[1]);
+            buf.flip();
+
+            try {
+                SimpleDatagramPacket.createFromBuffer(buf);
+                fail("parsed a packet with " + corrupt[1] + " at " + corrupt[0]);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.network;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ThroughputEstimatorTest extends TestCase {
+    private static final long MS = 1000 * 1000;
+
+    public ThroughputEstimatorTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ThroughputEstimatorTest.class);
+    }
+
+    public void testBurstRate() {
+        ThroughputEstimator meter = new ThroughputEstimator();
+
+        // 64KB every 10 ms for a second is 52.4 Mbit/s
+        long now = 0;
+        for (int i = 0; i <= 100; i++) {
+            meter.sent(64 * 1024, now);
+            now += 10 * MS;
+        }
+
+        assertEquals(101 * 64 * 1024L, meter.getBytesSent());
+        assertEquals(0L, meter.getBytesReceived());
+        // nothing until the burst is over
+        assertEquals(-1., meter.getThroughput(true, now));
+        now += ThroughputEstimator.BURST_GAP * MS;
+        assertEquals(-1., meter.getThroughput(false, now));
+        assertEquals(64 * 1024 * 8 * 100., meter.getThroughput(true, now), 1.);
+    }
+
+    public void testSmallBurstsDontCount() {
+        ThroughputEstimator meter = new ThroughputEstimator();
+
+        // plenty of bytes all in all, but never more than 100KB in a row
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            meter.received(10 * 1024, now);
+            now += (i % 10 == 9) ? 100 * MS : MS;
+        }
+
+        assertEquals(-1., meter.getThroughput(false, now));
+    }
+
+    public void testFastestRecentBurstWins() {
+        ThroughputEstimator meter = new ThroughputEstimator();
+
+        long now = burst(meter, 0, 10 * MS);
+        double slow = meter.getThroughput(false, now);
+        now = burst(meter, now + 1000 * MS, 5 * MS);
+        double fast = meter.getThroughput(false, now);
+        now = burst(meter, now + 1000 * MS, 20 * MS);
+
+        assertEquals(2 * slow, fast, 1.);
+        assertEquals(fast, meter.getThroughput(false, now), 1.);
+
+        // and it's forgotten once it's old
+        assertEquals(-1., meter.getThroughput(false, now + ThroughputEstimator.MAX_AGE * MS
+                + MS));
+    }
+
+    // 50 reads of 32KB, spacing apart. Returns a time just after the burst is
+    // over.
+    private long burst(ThroughputEstimator meter, long start, long spacing) {
+        long now = start;
+        for (int i = 0; i < 50; i++) {
+            meter.received(32 * 1024, now);
+            now += spacing;
+        }
+        return now - spacing + (ThroughputEstimator.BURST_GAP + 1) * MS;
+    }
+}
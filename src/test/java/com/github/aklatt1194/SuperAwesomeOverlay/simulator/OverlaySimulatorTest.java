@@ -0,0 +1,57 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.simulator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.simulator.OverlaySimulator.SimulatedNode;
+
+/**
+ * A handful of simulated nodes, each on its own NetworkInterface
+ */
+public class OverlaySimulatorTest extends TestCase {
+    private static final int NODES = 4;
+
+    private OverlaySimulator simulator;
+
+    public OverlaySimulatorTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(OverlaySimulatorTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        simulator = new OverlaySimulator(5, 0);
+
+        // the first round would otherwise be a minute off
+        simulator.setLinkStatePeriod(3000);
+    }
+
+    @Override
+    protected void tearDown() {
+        simulator.shutdown();
+    }
+
+    /**
+     * Nodes that all bootstrap off of the first one end up with routes to
+     * everybody else
+     */
+    public void testSmallOverlayConverges() throws Exception {
+        SimulatedNode[] nodes = new SimulatedNode[NODES];
+        for (int i = 0; i < NODES; i++)
+            nodes[i] = simulator.startNode();
+
+        long converged = simulator.awaitConvergence(System.currentTimeMillis() + 60 * 1000);
+        assertTrue(simulator.countConverged() + " of " + NODES + " nodes converged",
+                converged >= 0);
+
+        // and every node knows about every other one
+        for (SimulatedNode node : nodes) {
+            assertEquals(NODES, node.getModel().getKnownNodes().size());
+            assertFalse(node.getModel().getKnownNeighbors().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.speedtest;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.speedtest.TestScheduler.Slot;
+
+public class TestSchedulerTest extends TestCase {
+    private InetAddress a, b;
+
+    public TestSchedulerTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestSchedulerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws UnknownHostException {
+        a = InetAddress.getByName("10.0.0.1");
+        b = InetAddress.getByName("10.0.0.2");
+    }
+
+    public void testOnlyOneHolderAtATime() {
+        Slot slot = new Slot();
+
+        assertTrue(slot.tryReserve(a, 0, 1000));
+        assertFalse(slot.tryReserve(b, 100, 1000));
+        assertEquals(900, slot.remaining(100));
+
+        // a can renew its own slot, and only a can give it up
+        assertTrue(slot.tryReserve(a, 200, 1000));
+        slot.release(b);
+        assertFalse(slot.tryReserve(b, 300, 1000));
+        slot.release(a);
+        assertTrue(slot.tryReserve(b, 300, 1000));
+    }
+
+    public void testSlotExpires() {
+        Slot slot = new Slot();
+
+        assertTrue(slot.tryReserve(a, 0, 1000));
+        assertFalse(slot.tryReserve(b, 999, 1000));
+        assertTrue(slot.tryReserve(b, 1000, 1000));
+    }
+}
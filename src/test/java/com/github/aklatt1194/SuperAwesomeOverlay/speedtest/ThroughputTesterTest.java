@@ -0,0 +1,166 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.speedtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.speedtest.ThroughputTester.Result;
+
+public class ThroughputTesterTest extends TestCase {
+    private InetAddress localhost;
+
+    public ThroughputTesterTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ThroughputTesterTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        localhost = InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * A test against our own server moves data both ways
+     */
+    public void testLoopbackTransfer() {
+        ThroughputTester tester = new ThroughputTester();
+        try {
+            tester.setTestParameters(200, 2);
+            Result result = tester.runTest(localhost);
+            assertNotNull(result);
+            assertTrue(result.upstream > 0);
+            assertTrue(result.downstream > 0);
+        } finally {
+            tester.shutdown();
+        }
+    }
+
+    /**
+     * Once the server is running MAX_SERVER_STREAMS streams it turns new ones
+     * down, and takes them again once those are done
+     */
+    public void testBusyServerTurnsStreamsDown() throws Exception {
+        ThroughputTester tester = new ThroughputTester();
+        List<SocketChannel> streams = new ArrayList<>();
+        try {
+            tester.setTestParameters(100, 1);
+            for (int i = 0; i < ThroughputTester.MAX_SERVER_STREAMS; i++) {
+                SocketChannel channel = connect();
+                streams.add(channel);
+                assertEquals(ThroughputTester.ACCEPTED, request(channel));
+            }
+
+            SocketChannel extra = connect();
+            streams.add(extra);
+            assertEquals(ThroughputTester.BUSY, request(extra));
+            assertNull(tester.runTest(localhost));
+
+            // the ones turned down are answered and hung up on without the
+            // server waiting for their request
+            SocketChannel silent = connect();
+            streams.add(silent);
+            ByteBuffer answer = ByteBuffer.allocate(2);
+            while (silent.read(answer) != -1)
+                ;
+            answer.flip();
+            assertEquals(1, answer.remaining());
+            assertEquals(ThroughputTester.BUSY, answer.get());
+
+            // finish the upstream streams, the server reports what it got
+            for (SocketChannel channel : streams.subList(0, ThroughputTester.MAX_SERVER_STREAMS)) {
+                channel.shutdownOutput();
+                ByteBuffer report = ByteBuffer.allocate(ThroughputTester.REPORT_LENGTH);
+                while (report.hasRemaining() && channel.read(report) != -1)
+                    ;
+                assertFalse(report.hasRemaining());
+            }
+
+            Result result = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (result == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                result = tester.runTest(localhost);
+            }
+            assertNotNull(result);
+        } finally {
+            for (SocketChannel channel : streams)
+                channel.close();
+            tester.shutdown();
+        }
+    }
+
+    /**
+     * A server that hangs up without answering fails the test instead of
+     * producing a number
+     */
+    public void testServerHangingUpFailsTheTest() throws Exception {
+        // take the port first, so the tester's own server can't have it
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(ThroughputTester.PORT));
+        Thread hangUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        server.accept().close();
+                } catch (IOException e) {
+                    // closed, we're done
+                }
+            }
+        });
+        hangUp.setDaemon(true);
+        hangUp.start();
+
+        ThroughputTester tester = new ThroughputTester();
+        try {
+            tester.setTestParameters(100, 2);
+            assertNull(tester.runTest(localhost));
+        } finally {
+            tester.shutdown();
+            server.close();
+            hangUp.join(1000);
+        }
+    }
+
+    /**
+     * Nothing listening at all
+     */
+    public void testUnreachableServerFailsTheTest() {
+        ThroughputTester tester = new ThroughputTester();
+        tester.shutdown();
+        assertNull(tester.runTest(localhost));
+    }
+
+    private SocketChannel connect() throws IOException {
+        return SocketChannel.open(new InetSocketAddress(localhost, ThroughputTester.PORT));
+    }
+
+    // Ask for an upstream stream and return the server's answer
+    private byte request(SocketChannel channel) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(ThroughputTester.REQUEST_LENGTH);
+        request.put(ThroughputTester.UPSTREAM);
+        request.putInt(1000);
+        request.flip();
+        while (request.hasRemaining())
+            channel.write(request);
+
+        ByteBuffer status = ByteBuffer.allocate(1);
+        while (status.hasRemaining()) {
+            if (channel.read(status) == -1)
+                throw new IOException("Connection closed early");
+        }
+        return status.get(0);
+    }
+}
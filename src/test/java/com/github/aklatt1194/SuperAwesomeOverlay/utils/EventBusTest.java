@@ -0,0 +1,115 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.EventBus.Event;
+
+public class EventBusTest extends TestCase {
+    public EventBusTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(EventBusTest.class);
+    }
+
+    public void testEachListenerGetsEverythingInOrder() throws InterruptedException {
+        EventBus<Recorder> bus = new EventBus<>();
+        Recorder first = new Recorder(1000);
+        Recorder second = new Recorder(1000);
+        bus.subscribe(first);
+        bus.subscribe(second);
+
+        for (int i = 0; i < 1000; i++)
+            bus.publish(new Number(i));
+
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int) first.seen.get(i));
+            assertEquals(i, (int) second.seen.get(i));
+        }
+    }
+
+    public void testSlowListenerOnlyHoldsUpItself() throws InterruptedException {
+        EventBus<Recorder> bus = new EventBus<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder stuck = new Recorder(2) {
+            @Override
+            void see(int n) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.see(n);
+            }
+        };
+        Recorder quick = new Recorder(2);
+        bus.subscribe(stuck);
+        bus.subscribe(quick);
+
+        // publishing doesn't wait for either of them
+        bus.publish(new Number(1));
+        bus.publish(new Number(2));
+
+        assertTrue(quick.done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, stuck.done.getCount());
+
+        release.countDown();
+        assertTrue(stuck.done.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testFailingListenerKeepsGettingEvents() throws InterruptedException {
+        EventBus<Recorder> bus = new EventBus<>();
+        Recorder picky = new Recorder(1) {
+            @Override
+            void see(int n) {
+                if (n == 1)
+                    throw new IllegalArgumentException("not that one");
+                super.see(n);
+            }
+        };
+        bus.subscribe(picky);
+
+        bus.publish(new Number(1));
+        bus.publish(new Number(2));
+        assertTrue(picky.done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, (int) picky.seen.get(0));
+    }
+
+    private static class Recorder {
+        List<Integer> seen = new ArrayList<>();
+        CountDownLatch done;
+
+        Recorder(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        void see(int n) {
+            synchronized (seen) {
+                seen.add(n);
+            }
+            done.countDown();
+        }
+    }
+
+    private static class Number implements Event<Recorder> {
+        private int n;
+
+        Number(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public void deliverTo(Recorder listener) {
+            listener.see(n);
+        }
+    }
+}
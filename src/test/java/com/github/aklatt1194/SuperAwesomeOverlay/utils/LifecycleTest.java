@@ -0,0 +1,65 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.Lifecycle.Stoppable;
+
+public class LifecycleTest extends TestCase {
+    private List<String> stopped;
+
+    public LifecycleTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(LifecycleTest.class);
+    }
+
+    @Override
+    protected void setUp() {
+        stopped = new ArrayList<>();
+    }
+
+    public void testStopsNewestFirst() {
+        Lifecycle lifecycle = new Lifecycle();
+        lifecycle.started("db", record("db"));
+        lifecycle.started("network", record("network"));
+        lifecycle.started("pings", record("pings"));
+
+        lifecycle.stop();
+        assertEquals(Arrays.asList("pings", "network", "db"), stopped);
+
+        // only once
+        lifecycle.stop();
+        assertEquals(3, stopped.size());
+    }
+
+    public void testFailureDoesNotStopTheRest() {
+        Lifecycle lifecycle = new Lifecycle();
+        lifecycle.started("db", record("db"));
+        lifecycle.started("broken", new Stoppable() {
+            @Override
+            public void shutdown() {
+                throw new IllegalStateException("already gone");
+            }
+        });
+
+        lifecycle.stop();
+        assertEquals(Arrays.asList("db"), stopped);
+    }
+
+    private Stoppable record(final String name) {
+        return new Stoppable() {
+            @Override
+            public void shutdown() {
+                stopped.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.aklatt1194.SuperAwesomeOverlay.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.GaugeFamily;
+import com.github.aklatt1194.SuperAwesomeOverlay.utils.StatsRegistry.Histogram;
+
+public class StatsRegistryTest extends TestCase {
+    public StatsRegistryTest(String testname) {
+        super(testname);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StatsRegistryTest.class);
+    }
+
+    public void testBucketsCoverEveryValue() {
+        // every value lands in a bucket whose bounds hold it, and buckets
+        // are never wider than 1/SUB_BUCKETS of what is in them
+        long[] values = { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int index = Histogram.index(value);
+            assertTrue(Histogram.lowerBound(index) <= value);
+            assertTrue(Histogram.upperBound(index) >= value);
+
+            long width = Histogram.upperBound(index) - Histogram.lowerBound(index) + 1;
+            assertTrue(width <= Math.max(1, Histogram.lowerBound(index) / Histogram.SUB_BUCKETS));
+        }
+    }
+
+    public void testQuantiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSum());
+        assertEquals(1000, histogram.getMax());
+
+        // within a bucket of the real thing
+        assertEquals(500, histogram.getQuantile(0.5), 500 / Histogram.SUB_BUCKETS);
+        assertEquals(990, histogram.getQuantile(0.99), 990 / Histogram.SUB_BUCKETS);
+        assertEquals(1000, histogram.getQuantile(1));
+        assertEquals(0, new Histogram().getQuantile(0.5));
+    }
+
+    public void testCountersAreShared() {
+        StatsRegistry stats = new StatsRegistry();
+        stats.counter("a_total", "A").inc();
+        stats.counter("a_total", "A").add(2);
+
+        assertEquals(3L, stats.counter("a_total", "A").get());
+        assertEquals(3L, stats.snapshot().get("a_total"));
+    }
+
+    public void testPrometheus() {
+        StatsRegistry stats = new StatsRegistry();
+        stats.counter("packets_total", "Packets").add(5);
+        stats.histogram("time_us", "Time").record(7);
+        stats.gauges("bytes", "Bytes", "peer", new GaugeFamily() {
+            @Override
+            public Map<String, Number> values() {
+                Map<String, Number> values = new TreeMap<>();
+                values.put("10.0.0.1", 42);
+                return values;
+            }
+        });
+
+        String text = stats.toPrometheus();
+        assertTrue(text.contains("# TYPE packets_total counter\npackets_total 5\n"));
+        assertTrue(text.contains("bytes{peer=\"10.0.0.1\"} 42\n"));
+        assertTrue(text.contains("time_us{quantile=\"0.5\"} 7\n"));
+        assertTrue(text.contains("time_us_count 1\n"));
+    }
+}